@@ -4,6 +4,8 @@ import android.app.Application
 import com.abaltatech.mcs.logger.MCSLogger
 import com.abaltatech.mcs.logger.android.LoggerAndroid
 import com.abaltatech.weblinkclient.WebLinkClientCore
+import com.tngdev.weblinkclient.compatibility.CodecSelectionCache
+import com.tngdev.weblinkclient.framedecoding.CodecSelfTest
 
 class App: Application() {
 
@@ -19,6 +21,11 @@ class App: Application() {
         //register MCSLogger. used for internal logs.
         MCSLogger.registerLogger(LoggerAndroid())
         MCSLogger.setLogLevel(MCSLogger.eAll)
+
+        // Must be loaded before the decoder picks its codec candidates
+        CodecSelectionCache.init(this)
+        // Rank the decoders in the background the first time we run on this device / OS build
+        CodecSelfTest.startIfNeeded()
     }
 
     fun getWebLinkClientCore() = instance.wlClient.getWebLinkClientCore()
@@ -28,6 +28,7 @@ import com.abaltatech.weblinkclient.framedecoding.FrameDecoderFactory
 import com.abaltatech.weblinkclient.framedecoding.IFrameDecoder
 import com.tngdev.weblinkclient.databinding.ActivityMainBinding
 import com.tngdev.weblinkclient.framedecoding.FrameDecoder_H264_Custom
+import com.tngdev.weblinkclient.framedecoding.FrameDecoder_I420_GL
 import com.tngdev.weblinkclient.ui.autoconnect.AutoConnectFragment
 import com.tngdev.weblinkclient.ui.weblink.WebLinkFragment
 import com.tngdev.weblinkclient.ui.weblink.WebLinkFragment_SurfaceView
@@ -155,8 +156,8 @@ class MainActivity : FragmentActivity(), IWebLinkActivity {
         // Sets the resolution of the video, generated by the WebLink Host.
         // This is also the resolution that the decoder on the client side
         // will use.
-        val encodeWidth = 800
-        val encodeHeight = 480
+        val encodeWidth = ENCODE_WIDTH
+        val encodeHeight = ENCODE_HEIGHT
 
         // Sets the resolution at which WebLink applications are rendered before
         // being encoded into video.
@@ -205,17 +206,21 @@ class MainActivity : FragmentActivity(), IWebLinkActivity {
         mClientDisplay = wlClient.defaultDisplay
 
 
-        var decoderClass: Class<out IFrameDecoder?>? = null
-        val decoderType = WLTypes.FRAME_ENCODING_H264
-
+        val decoderClass: Class<out IFrameDecoder?> = FrameDecoder_H264_Custom::class.java
         MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "Chosen decoder: Custom Hardware H264")
-        decoderClass = FrameDecoder_H264_Custom::class.java
 
         //unregister all other decoders, re-register only the selected version.
         FrameDecoderFactory.instance().unregisterDecoder(WLTypes.FRAME_ENCODING_H264)
         FrameDecoderFactory.instance().unregisterDecoder(WLTypes.FRAME_ENCODING_I420)
         FrameDecoderFactory.instance().unregisterDecoder(WLTypes.FRAME_ENCODING_YUV)
-        FrameDecoderFactory.instance().registerDecoder(decoderType, decoderClass)
+        FrameDecoderFactory.instance().registerDecoder(WLTypes.FRAME_ENCODING_H264, decoderClass)
+
+        // The H264 codecs of the device failed repeatedly in recent sessions, offer raw frames
+        // too. H264 stays registered, the codecs are probed again once their failures expire.
+        if (!FrameDecoder_H264_Custom.hasUsableCodec()) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "Fallback decoder: OpenGL I420")
+            FrameDecoderFactory.instance().registerDecoder(WLTypes.FRAME_ENCODING_I420, FrameDecoder_I420_GL::class.java)
+        }
 
         if (mClientDisplay != null) {
             val decoderMask = FrameDecoderFactory.instance().registeredDecodersMask
@@ -393,6 +398,10 @@ class MainActivity : FragmentActivity(), IWebLinkActivity {
 
     companion object {
         val TAG = MainActivity::class.simpleName
+
+        // Resolution at which the WebLink host encodes the video
+        const val ENCODE_WIDTH = 800
+        const val ENCODE_HEIGHT = 480
     }
 
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ import com.abaltatech.weblinkclient.WebLinkClientCore
 import com.abaltatech.weblinkclient.audiodecoding.AudioDecoder_MediaCodec
 import com.abaltatech.weblinkclient.audiodecoding.AudioOutput
 import com.tngdev.weblinkclient.audio.AudioConfigFileParser
+import com.tngdev.weblinkclient.framedecoding.FrameDecoder_H264_Custom
 import com.tngdev.weblinkclient.util.Utils
 import java.io.IOException
 import java.io.InputStream
@@ -55,6 +56,9 @@ class WebLinkClient(private val context: Context) : IClientNotification {
 
         mClientCore = WebLinkClientCore(context, this, mDeviceIdentity, null)
 
+        // The SDK does not ask before it hands a frame to the decoder, the decoder asks instead
+        FrameDecoder_H264_Custom.setFrameAdmissionCheck { canProcessFrame() }
+
         setupAudio()
     }
 
@@ -158,7 +162,12 @@ class WebLinkClient(private val context: Context) : IClientNotification {
     }
 
     override fun canProcessFrame(): Boolean {
-        return clientListener?.canProcessFrame() ?: true
+        clientListener?.let { return it.canProcessFrame() }
+
+        // No screen is attached: only a decoder that holds its output for the next one can
+        // still use the frames
+        val decoder = mClientCore.frameDecoder
+        return if (decoder is FrameDecoder_H264_Custom) decoder.canAcceptFrame() else true
     }
 
     override fun onShowKeyboard(type: Short) {
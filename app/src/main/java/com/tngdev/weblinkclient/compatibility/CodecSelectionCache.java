@@ -0,0 +1,298 @@
+/****************************************************************************
+ *
+ * @file CodecSelectionCache.java
+ * @brief
+ *
+ * Contains the CodecSelectionCache class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.compatibility;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the outcome of the decoder selection across process starts.
+ * <p></p>
+ * The codec that produced output, the time it took to do so, the failures of the codecs and the
+ * ranking of the decoder self-test are stored in the app private preferences. The entry is keyed by
+ * {@link WLCompatibilityUtils_Custom#getHardwareID()} and the OS build fingerprint, so an OTA
+ * update invalidates it and the codecs are tested again, once.
+ * <p></p>
+ * A single failure can be caused by the host, e.g. a late IDR, or by a transient error, so a
+ * codec is only deprioritized after {@link #MAX_CODEC_FAILURES} failures in a row. The failures
+ * expire {@link #CODEC_FAILURE_EXPIRY_MS} after the last one, and the codec is tried again.
+ * <p></p>
+ * {@link #init(Context)} has to be called before the decoder classes are loaded, typically from
+ * {@code Application.onCreate()}. Without it the cache is empty and nothing is persisted.
+ */
+public class CodecSelectionCache {
+    private static final String TAG = "CodecSelectionCache";
+
+    private static final String PREFERENCES_NAME = "codec_selection";
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_WORKING_CODEC = "working_codec";
+    private static final String KEY_FIRST_OUTPUT_MS = "first_output_ms";
+    private static final String KEY_FAILED_CODECS_LEGACY = "failed_codecs";
+    private static final String KEY_CODEC_FAILURES = "codec_failures";
+    private static final String KEY_RANKED_CODECS = "ranked_codecs";
+    private static final String RANKED_CODECS_SEPARATOR = ",";
+    // A codec failure entry is <name>|<count>|<time of the last failure in milliseconds>
+    private static final String CODEC_FAILURE_SEPARATOR = "|";
+
+    /**
+     * Number of failures after which a codec is tried after all the others.
+     */
+    private static int MAX_CODEC_FAILURES = 3;
+
+    /**
+     * Time after the last failure at which the failures of a codec are forgotten (7 days).
+     */
+    private static long CODEC_FAILURE_EXPIRY_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static SharedPreferences m_preferences;
+
+    /**
+     * Loads the cache. Entries recorded for another hardware ID or OS build are discarded.
+     *
+     * @param context Any context, the application context is used
+     */
+    public static synchronized void init(Context context) {
+        m_preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String deviceId = getDeviceId();
+        if (!deviceId.equals(m_preferences.getString(KEY_DEVICE_ID, null))) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "init: New device or OS build %s, clearing the cache", deviceId);
+            m_preferences.edit()
+                    .clear()
+                    .putString(KEY_DEVICE_ID, deviceId)
+                    .apply();
+        } else {
+            if (m_preferences.contains(KEY_FAILED_CODECS_LEGACY)) {
+                // Failures recorded without a count or a time, test the codecs again
+                m_preferences.edit().remove(KEY_FAILED_CODECS_LEGACY).apply();
+            }
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "init: Known good codec %s (first output in %d ms), codec failures %s, ranking %s",
+                    getWorkingCodec(), getFirstOutputLatencyMs(), getCodecFailureEntries(), getRankedCodecs());
+        }
+    }
+
+    /**
+     * Sets the number of failures after which a codec is deprioritized.
+     *
+     * @param maxFailures Number of failures, at least 1
+     */
+    public static synchronized void setMaxCodecFailures(int maxFailures) {
+        if (maxFailures < 1) {
+            throw new IllegalArgumentException("maxFailures must be at least 1");
+        }
+        MAX_CODEC_FAILURES = maxFailures;
+    }
+
+    /**
+     * Sets the time after the last failure at which the failures of a codec are forgotten.
+     *
+     * @param expiryMs Expiry time in milliseconds
+     */
+    public static synchronized void setCodecFailureExpiryMs(long expiryMs) {
+        CODEC_FAILURE_EXPIRY_MS = expiryMs;
+    }
+
+    /**
+     * Returns the name of the codec that last produced output on this device, or null.
+     */
+    public static synchronized String getWorkingCodec() {
+        return m_preferences != null ? m_preferences.getString(KEY_WORKING_CODEC, null) : null;
+    }
+
+    /**
+     * Returns the time the working codec needed to produce its first output in milliseconds,
+     * or -1 if unknown.
+     */
+    public static synchronized long getFirstOutputLatencyMs() {
+        return m_preferences != null ? m_preferences.getLong(KEY_FIRST_OUTPUT_MS, -1) : -1;
+    }
+
+    /**
+     * Returns the names of the codecs that failed {@link #MAX_CODEC_FAILURES} times on this
+     * device, the last time less than {@link #CODEC_FAILURE_EXPIRY_MS} ago. They should be tried
+     * after the other codecs.
+     */
+    public static synchronized Set<String> getDeprioritizedCodecs() {
+        Set<String> codecs = new HashSet<String>();
+        long nowMs = System.currentTimeMillis();
+        for (String entry : getCodecFailureEntries()) {
+            String[] fields = splitCodecFailure(entry);
+            if (fields != null && !isExpired(fields, nowMs) && Integer.parseInt(fields[1]) >= MAX_CODEC_FAILURES) {
+                codecs.add(fields[0]);
+            }
+        }
+        return codecs;
+    }
+
+    /**
+     * Returns the codecs that passed the decoder self-test, fastest first. Empty if the
+     * self-test has not run on this device and OS build yet.
+     */
+    public static synchronized List<String> getRankedCodecs() {
+        String rankedCodecs = m_preferences != null ? m_preferences.getString(KEY_RANKED_CODECS, null) : null;
+        if (rankedCodecs == null || rankedCodecs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(Arrays.asList(rankedCodecs.split(RANKED_CODECS_SEPARATOR)));
+    }
+
+    /**
+     * Returns true if the decoder self-test has run on this device and OS build.
+     */
+    public static synchronized boolean hasRanking() {
+        return m_preferences != null && m_preferences.contains(KEY_RANKED_CODECS);
+    }
+
+    /**
+     * Records the result of the decoder self-test.
+     *
+     * @param rankedCodecs The codecs that passed the self-test, fastest first
+     */
+    public static synchronized void recordRankedCodecs(List<String> rankedCodecs) {
+        if (m_preferences == null) {
+            return;
+        }
+        StringBuilder value = new StringBuilder();
+        for (String codecName : rankedCodecs) {
+            if (value.length() > 0) {
+                value.append(RANKED_CODECS_SEPARATOR);
+            }
+            value.append(codecName);
+        }
+        m_preferences.edit()
+                .putString(KEY_RANKED_CODECS, value.toString())
+                .apply();
+    }
+
+    /**
+     * Records the codec that produced output.
+     *
+     * @param codecName The codec name
+     * @param firstOutputLatencyMs Time from the codec start to its first output in milliseconds
+     */
+    public static synchronized void recordWorkingCodec(String codecName, long firstOutputLatencyMs) {
+        if (m_preferences == null) {
+            return;
+        }
+        Set<String> failures = getCodecFailureEntries();
+        removeCodecFailure(failures, codecName);
+        m_preferences.edit()
+                .putString(KEY_WORKING_CODEC, codecName)
+                .putLong(KEY_FIRST_OUTPUT_MS, firstOutputLatencyMs)
+                .putStringSet(KEY_CODEC_FAILURES, failures)
+                .apply();
+    }
+
+    /**
+     * Records a codec that failed to start or to produce output. The failure count restarts if
+     * the previous failures have expired.
+     *
+     * @param codecName The codec name
+     */
+    public static synchronized void recordFailedCodec(String codecName) {
+        if (m_preferences == null) {
+            return;
+        }
+        long nowMs = System.currentTimeMillis();
+        Set<String> failures = getCodecFailureEntries();
+        String[] fields = removeCodecFailure(failures, codecName);
+        int count = fields != null && !isExpired(fields, nowMs) ? Integer.parseInt(fields[1]) + 1 : 1;
+        failures.add(codecName + CODEC_FAILURE_SEPARATOR + count + CODEC_FAILURE_SEPARATOR + nowMs);
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "recordFailedCodec: %s failed %d time(s)", codecName, count);
+
+        SharedPreferences.Editor editor = m_preferences.edit().putStringSet(KEY_CODEC_FAILURES, failures);
+        if (count >= MAX_CODEC_FAILURES && codecName.equals(getWorkingCodec())) {
+            editor.remove(KEY_WORKING_CODEC).remove(KEY_FIRST_OUTPUT_MS);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns a copy of the stored codec failure entries.
+     */
+    private static Set<String> getCodecFailureEntries() {
+        if (m_preferences == null) {
+            return new HashSet<String>();
+        }
+        return new HashSet<String>(m_preferences.getStringSet(KEY_CODEC_FAILURES, Collections.<String>emptySet()));
+    }
+
+    /**
+     * Removes the failure entry of the codec from the set.
+     *
+     * @return The fields of the removed entry, or null if there was none
+     */
+    private static String[] removeCodecFailure(Set<String> failures, String codecName) {
+        for (String entry : failures) {
+            String[] fields = splitCodecFailure(entry);
+            if (fields != null && fields[0].equals(codecName)) {
+                failures.remove(entry);
+                return fields;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Splits a codec failure entry into the name, the count and the time of the last failure.
+     *
+     * @return The fields, or null if the entry is malformed
+     */
+    static String[] splitCodecFailure(String entry) {
+        int countStart = entry.indexOf(CODEC_FAILURE_SEPARATOR);
+        int timeStart = entry.lastIndexOf(CODEC_FAILURE_SEPARATOR);
+        if (countStart <= 0 || timeStart <= countStart) {
+            return null;
+        }
+        String[] fields = new String[] {
+                entry.substring(0, countStart),
+                entry.substring(countStart + 1, timeStart),
+                entry.substring(timeStart + 1)
+        };
+        try {
+            Integer.parseInt(fields[1]);
+            Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return fields;
+    }
+
+    private static boolean isExpired(String[] fields, long nowMs) {
+        return nowMs - Long.parseLong(fields[2]) > CODEC_FAILURE_EXPIRY_MS;
+    }
+
+    private static String getDeviceId() {
+        return WLCompatibilityUtils_Custom.getHardwareID() + "@" + Build.FINGERPRINT;
+    }
+}
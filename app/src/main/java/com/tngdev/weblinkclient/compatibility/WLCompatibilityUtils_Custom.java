@@ -43,8 +43,15 @@ import java.util.Locale;
  */
 public class WLCompatibilityUtils_Custom
 {
+    /**
+     * Device quirk: the decoder holds back frames unless the SPS signals that no reordering
+     * is needed. The SPS of the incoming stream is rewritten to signal zero reorder frames.
+     */
+    public static final int QUIRK_REWRITE_SPS_VUI = 0x0001;
+
     private static final String                     m_hardwareID;
     private static final HashMap<String, CodecInfo> m_deviceCodecInfo;
+    private static final HashMap<String, Integer>   m_deviceQuirks;
     private static final CodecInfo					m_defaultCodecInfo = new CodecInfo();
     
     static {
@@ -77,7 +84,14 @@ public class WLCompatibilityUtils_Custom
         //deviceCodecInfo.put("unknown@atc@autochipsac83xx", new CodecInfo("OMX.google.h264.decoder", 1024*1024*128, 0));
         
         m_deviceCodecInfo = deviceCodecInfo;
-        
+
+        // Init the device specific quirks (combination of the QUIRK_* flags).
+        HashMap<String, Integer> deviceQuirks = new HashMap<String, Integer>();
+        deviceQuirks.put("unknown@atc@autochipsac83xx", QUIRK_REWRITE_SPS_VUI);
+
+        deviceQuirks.put("unknown@alps@mt6735",         QUIRK_REWRITE_SPS_VUI);
+
+        m_deviceQuirks = deviceQuirks;
     }
     
     /**
@@ -103,4 +117,15 @@ public class WLCompatibilityUtils_Custom
     	}
     	return m_defaultCodecInfo; // Use the default codec.
     }
+
+    /**
+     * Checks if the current hardware needs the given workaround.
+     *
+     * @param quirk One of the QUIRK_* flags
+     * @return true if the workaround should be applied
+     */
+    public static boolean hasQuirk(int quirk) {
+        Integer quirks = m_deviceQuirks.get(m_hardwareID);
+        return quirks != null && (quirks & quirk) != 0;
+    }
 }
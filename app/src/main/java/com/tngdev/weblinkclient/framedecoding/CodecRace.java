@@ -0,0 +1,526 @@
+/****************************************************************************
+ *
+ * @file CodecRace.java
+ * @brief
+ *
+ * Contains the CodecRace class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.graphics.ImageFormat;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+import com.abaltatech.weblink.core.DataBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Starts several codec candidates at once, feeds all of them the same frames and keeps the one
+ * that produces the first output.
+ * <p></p>
+ * Trying the candidates one after the other costs up to the first output timeout per codec that
+ * fails silently. Racing them finds a working codec in the time the fastest one needs.
+ * <p></p>
+ * The racers decode into offscreen {@link ImageReader}s, so they do not fight over the output
+ * surface. The winner is handed over to the {@link Listener}, which moves it to the real surface
+ * with {@link MediaCodec#setOutputSurface} and takes over its callbacks. The other racers are
+ * released. Requires Android 6.0+ and the asynchronous codec mode.
+ * <p></p>
+ * All codec callbacks run on the given handler. The race state is guarded by the given lock,
+ * which is shared with the decoder, so {@link #feed} must be called with the lock held.
+ * {@link #feed} only parks the frame, a single copy shared by all racers. The frames are
+ * copied into the codec input buffers on the callback handler, outside of the lock.
+ * <p></p>
+ * A racer keeps at most as many frames as the decoder may park, starting at the last IDR. If
+ * it falls further behind, it drops its backlog and resumes at the next IDR.
+ */
+final class CodecRace {
+    private static final String TAG = "CodecRace";
+
+    // Images the offscreen surfaces can hold. Nothing is rendered to them, they only have to
+    // be valid output surfaces.
+    private static final int MAX_IMAGES = 2;
+
+
+    /**
+     * Receives the race events. Called on the callback handler.
+     */
+    interface Listener {
+        /**
+         * Returns the format the racing codec is configured with.
+         *
+         * @param codec The freshly created codec
+         * @param width Video width
+         * @param height Video height
+         */
+        MediaFormat createFormat(MediaCodec codec, int width, int height);
+
+        /**
+         * Called with the race lock held when a codec produced the first output. The listener
+         * takes over the codec, its free input slots and its pending frames.
+         *
+         * @param codec The winning codec, still rendering to its offscreen surface
+         * @param codecName Name of the winning codec
+         * @param freeInputSlots Input buffers the codec reported free that were not used yet
+         * @param pendingFrames Frames waiting for a free input buffer of the codec, starting at
+         *                      the last IDR, taken from the pool given to the race
+         * @param waitingForKeyFrame True if the codec dropped its backlog and the frames up to
+         *                           the next IDR must be skipped
+         * @return The callback that receives the codec events from now on, starting with the
+         *         first output buffer, or null if the codec could not be taken over
+         */
+        MediaCodec.Callback onRaceWon(MediaCodec codec, String codecName,
+                                      ArrayDeque<Integer> freeInputSlots,
+                                      ArrayDeque<FrameBufferPool.Frame> pendingFrames,
+                                      boolean waitingForKeyFrame);
+
+        /**
+         * Returns the stored parameter sets of the stream. A racer that dropped its backlog gets
+         * them again along with the next IDR. Called with the race lock held, on the thread that
+         * feeds the frames.
+         */
+        DataBuffer getConfigFrameBits();
+
+        /**
+         * Called with the race lock held when a racer failed to start or reported an error
+         * before the race was decided.
+         *
+         * @param codecName Name of the failed codec
+         */
+        void onRacerFailed(String codecName);
+
+        /**
+         * Called without the race lock when all racers failed, or the winner could not be
+         * taken over.
+         */
+        void onRaceFailed();
+    }
+
+    /**
+     * A codec taking part in the race.
+     */
+    private final class Racer extends MediaCodec.Callback {
+        final String name;
+        MediaCodec codec;
+        ImageReader imageReader;
+        boolean failed;
+        // Set when the racer dropped its backlog, until the next IDR
+        boolean waitingForKeyFrame;
+        final ArrayDeque<Integer> freeInputSlots = new ArrayDeque<Integer>();
+        final ArrayDeque<FrameBufferPool.Frame> pendingFrames = new ArrayDeque<FrameBufferPool.Frame>();
+
+        // Set once the racer won, receives all further events
+        MediaCodec.Callback handoff;
+
+        Racer(String codecName) {
+            name = codecName;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (handoff != null) {
+                handoff.onInputBufferAvailable(codec, index);
+                return;
+            }
+            synchronized (m_lock) {
+                if (!isRunning(this)) {
+                    return;
+                }
+                freeInputSlots.add(index);
+            }
+            queuePendingFrames();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (handoff != null) {
+                handoff.onOutputBufferAvailable(codec, index, info);
+                return;
+            }
+            boolean raceFailed = false;
+            synchronized (m_lock) {
+                if (!isRunning(this)) {
+                    return;
+                }
+                if (m_winner == null) {
+                    MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "%s produced the first output in %d milliseconds",
+                            name, System.currentTimeMillis() - m_startTimestamp);
+                    m_winner = this;
+                    handoff = m_listener.onRaceWon(codec, name, freeInputSlots, pendingFrames, waitingForKeyFrame);
+                    for (Racer racer : m_racers) {
+                        if (racer != this) {
+                            releaseLater(racer);
+                        }
+                    }
+                    if (handoff == null) {
+                        raceFailed = true;
+                        releaseLater(this);
+                    } else {
+                        // The codec, its input slots and frames belong to the listener now,
+                        // only the offscreen surface is left
+                        this.codec = null;
+                        freeInputSlots.clear();
+                        pendingFrames.clear();
+                        releaseLater(this);
+                    }
+                }
+            }
+            if (handoff != null) {
+                handoff.onOutputBufferAvailable(codec, index, info);
+            } else if (raceFailed) {
+                m_listener.onRaceFailed();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            if (handoff != null) {
+                handoff.onError(codec, e);
+                return;
+            }
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onError: " + name + " reported an error: ", e);
+            synchronized (m_lock) {
+                if (isRunning(this)) {
+                    fail(this);
+                }
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (handoff != null) {
+                handoff.onOutputFormatChanged(codec, format);
+            }
+        }
+    }
+
+    /**
+     * A parked frame taken for a free input buffer of a racer, queued outside of the lock.
+     */
+    private static final class PendingInput {
+        final Racer racer;
+        final MediaCodec codec;
+        final int index;
+        final FrameBufferPool.Frame frame;
+        Exception error;
+
+        PendingInput(Racer racer, MediaCodec codec, int index, FrameBufferPool.Frame frame) {
+            this.racer = racer;
+            this.codec = codec;
+            this.index = index;
+            this.frame = frame;
+        }
+    }
+
+    private final Runnable m_queuePendingFrames = new Runnable() {
+        @Override
+        public void run() {
+            queuePendingFrames();
+        }
+    };
+
+    private final List<Racer> m_racers = new ArrayList<Racer>();
+    private final int m_width;
+    private final int m_height;
+    private final Handler m_handler;
+    private final Object m_lock;
+    private final Listener m_listener;
+    private final FrameBufferPool m_pendingFramePool;
+    private final int m_maxPendingFrames;
+    private boolean m_queuePending = false;
+    private Racer m_winner;
+    private boolean m_released = false;
+    private long m_startTimestamp; // in milliseconds
+
+    /**
+     * @param codecNames Names of the racing codecs
+     * @param width Video width
+     * @param height Video height
+     * @param handler Handler the codec callbacks run on
+     * @param lock Lock guarding the race state
+     * @param pendingFramePool Pool for the frames that wait for a free input buffer
+     * @param maxPendingFrames Frames a racer may keep waiting for a free input buffer, at most
+     *                         as many as the listener can take over
+     * @param listener Receives the race events
+     */
+    CodecRace(List<String> codecNames, int width, int height, Handler handler, Object lock,
+              FrameBufferPool pendingFramePool, int maxPendingFrames, Listener listener) {
+        for (String codecName : codecNames) {
+            m_racers.add(new Racer(codecName));
+        }
+        m_width = width;
+        m_height = height;
+        m_handler = handler;
+        m_lock = lock;
+        m_pendingFramePool = pendingFramePool;
+        m_maxPendingFrames = maxPendingFrames;
+        m_listener = listener;
+    }
+
+    /**
+     * Creates, configures and starts the racing codecs. Racers that fail to start are reported
+     * through {@link Listener#onRacerFailed} and left out.
+     *
+     * @return The number of codecs that started
+     */
+    int start() {
+        int started = 0;
+        m_startTimestamp = System.currentTimeMillis();
+        for (Racer racer : m_racers) {
+            try {
+                racer.imageReader = ImageReader.newInstance(m_width, m_height, ImageFormat.PRIVATE, MAX_IMAGES);
+                racer.codec = MediaCodec.createByCodecName(racer.name);
+                MediaFormat format = m_listener.createFormat(racer.codec, m_width, m_height);
+                racer.codec.setCallback(racer, m_handler);
+                racer.codec.configure(format, racer.imageReader.getSurface(), null, 0);
+                racer.codec.start();
+                ++started;
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "start: " + racer.name + " failed to start: ", e);
+                synchronized (m_lock) {
+                    fail(racer);
+                }
+            }
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "start: %d of %d codecs racing", started, m_racers.size());
+        return started;
+    }
+
+    /**
+     * Submits the frame to every racer still in the race. Must be called with the race lock
+     * held. Never waits for the codecs: the frame is parked and the racers with a free input
+     * buffer get it on the callback handler.
+     *
+     * @param frameBits The encoded frame
+     * @param presentationTimeUs Presentation timestamp of the frame in microseconds
+     * @param flags MediaCodec buffer flags to queue the frame with
+     * @param isKeyFrame True if the frame is an IDR
+     */
+    void feed(DataBuffer frameBits, long presentationTimeUs, int flags, boolean isKeyFrame) {
+        if (m_released || m_winner != null) {
+            return;
+        }
+        FrameBufferPool.Frame frame = null;
+        boolean queue = false;
+        for (Racer racer : m_racers) {
+            if (!isRunning(racer)) {
+                continue;
+            }
+            if (isKeyFrame) {
+                // The frames before the IDR are not needed anymore, the parameter sets are
+                dropPendingFrames(racer, true);
+                if (racer.waitingForKeyFrame) {
+                    racer.waitingForKeyFrame = false;
+                    DataBuffer configFrameBits = m_listener.getConfigFrameBits();
+                    if (configFrameBits != null && configFrameBits.getSize() > 0) {
+                        racer.pendingFrames.add(m_pendingFramePool.acquire(configFrameBits, presentationTimeUs,
+                                MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+                    }
+                }
+            } else if (racer.waitingForKeyFrame) {
+                continue;
+            } else if (racer.pendingFrames.size() >= m_maxPendingFrames) {
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "feed: %s fell behind, waiting for the next IDR", racer.name);
+                dropPendingFrames(racer, false);
+                racer.waitingForKeyFrame = true;
+                continue;
+            }
+            if (frame == null) {
+                frame = m_pendingFramePool.acquire(frameBits, presentationTimeUs, flags);
+            } else {
+                m_pendingFramePool.retain(frame);
+            }
+            racer.pendingFrames.add(frame);
+            queue |= !racer.freeInputSlots.isEmpty();
+        }
+        if (queue && !m_queuePending) {
+            m_queuePending = m_handler.post(m_queuePendingFrames);
+        }
+    }
+
+    /**
+     * Copies the parked frames into the free input buffers of the racers. Runs on the callback
+     * handler, which is the only thread queueing input to the racers.
+     */
+    private void queuePendingFrames() {
+        List<PendingInput> inputs = new ArrayList<PendingInput>();
+        synchronized (m_lock) {
+            m_queuePending = false;
+            for (Racer racer : m_racers) {
+                if (!isRunning(racer)) {
+                    continue;
+                }
+                while (!racer.freeInputSlots.isEmpty() && !racer.pendingFrames.isEmpty()) {
+                    inputs.add(new PendingInput(racer, racer.codec, racer.freeInputSlots.poll(),
+                            racer.pendingFrames.poll()));
+                }
+            }
+        }
+        if (inputs.isEmpty()) {
+            return;
+        }
+        for (PendingInput input : inputs) {
+            try {
+                // The frame is shared by the racers
+                ByteBuffer data = input.frame.data.duplicate();
+                ByteBuffer buffer = input.codec.getInputBuffer(input.index);
+                int size = data.remaining();
+                buffer.clear();
+                buffer.put(data);
+                input.codec.queueInputBuffer(input.index, 0, size, input.frame.presentationTimeUs, input.frame.flags);
+            } catch (Exception e) {
+                input.error = e;
+            }
+        }
+        synchronized (m_lock) {
+            for (PendingInput input : inputs) {
+                m_pendingFramePool.release(input.frame);
+                // Errors after the race was released are expected, the codecs are gone
+                if (input.error != null && isRunning(input.racer)) {
+                    MCSLogger.log(MCSLogger.ELogType.eError, TAG, "queuePendingFrames: " + input.racer.name + " failed to queue a frame: ", input.error);
+                    fail(input.racer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the frames the racer has not queued yet. Called with the race lock held.
+     *
+     * @param keepConfigFrames True to keep the parameter sets
+     */
+    private void dropPendingFrames(Racer racer, boolean keepConfigFrames) {
+        Iterator<FrameBufferPool.Frame> it = racer.pendingFrames.iterator();
+        while (it.hasNext()) {
+            FrameBufferPool.Frame frame = it.next();
+            if (!keepConfigFrames || (frame.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                it.remove();
+                m_pendingFramePool.release(frame);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the racers that are still in the race, or an empty list once the
+     * race is decided. Must be called with the race lock held.
+     */
+    List<String> getRunningCodecNames() {
+        List<String> names = new ArrayList<String>();
+        if (m_winner == null) {
+            for (Racer racer : m_racers) {
+                if (isRunning(racer)) {
+                    names.add(racer.name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Ends the race and releases all codecs that were not handed over to the listener. Must be
+     * called without the race lock, the codecs are released on the calling thread.
+     */
+    void release() {
+        List<Racer> racers = new ArrayList<Racer>();
+        synchronized (m_lock) {
+            m_released = true;
+            racers.addAll(m_racers);
+        }
+        for (Racer racer : racers) {
+            releaseRacer(racer);
+        }
+    }
+
+    private boolean isRunning(Racer racer) {
+        return !m_released && !racer.failed && racer.codec != null && (m_winner == null || m_winner == racer);
+    }
+
+    /**
+     * Drops the racer from the race. Called with the race lock held.
+     */
+    private void fail(Racer racer) {
+        if (racer.failed) {
+            return;
+        }
+        racer.failed = true;
+        m_listener.onRacerFailed(racer.name);
+        releaseLater(racer);
+
+        for (Racer other : m_racers) {
+            if (!other.failed) {
+                return;
+            }
+        }
+        if (!m_released) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "fail: No codec left in the race");
+            m_handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    m_listener.onRaceFailed();
+                }
+            });
+        }
+    }
+
+    /**
+     * Releases the racer on the callback handler, outside of the codec callbacks and the lock.
+     */
+    private void releaseLater(final Racer racer) {
+        for (FrameBufferPool.Frame frame : racer.pendingFrames) {
+            m_pendingFramePool.release(frame);
+        }
+        racer.pendingFrames.clear();
+        racer.freeInputSlots.clear();
+        m_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseRacer(racer);
+            }
+        });
+    }
+
+    private void releaseRacer(Racer racer) {
+        MediaCodec codec;
+        ImageReader imageReader;
+        synchronized (m_lock) {
+            codec = racer.codec;
+            imageReader = racer.imageReader;
+            racer.codec = null;
+            racer.imageReader = null;
+        }
+        if (codec != null) {
+            try {
+                codec.release();
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "releaseRacer: Exception raised while releasing " + racer.name + ": ", e);
+            }
+        }
+        if (imageReader != null) {
+            imageReader.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/****************************************************************************
+ *
+ * @file CodecSelfTest.java
+ * @brief
+ *
+ * Contains the CodecSelfTest class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Build.VERSION;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+import com.tngdev.weblinkclient.compatibility.CodecSelectionCache;
+import com.tngdev.weblinkclient.framedecoding.h264.SyntheticStreamGenerator;
+import com.tngdev.weblinkclient.util.ThreadScheduler;
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmarks the H264 codec candidates of {@link FrameDecoder_H264_Custom} and ranks them.
+ * <p></p>
+ * Every candidate decodes the same synthetic clip (see {@link SyntheticStreamGenerator}) into an
+ * offscreen {@link ImageReader}, configured like a real session. The test measures:
+ * <ul>
+ *     <li>the first output time - from the codec start to its first decoded frame</li>
+ *     <li>the per-frame latency - frames are fed one at a time for the first part of the clip,
+ *     each one only after the previous one came out</li>
+ *     <li>the sustained frame rate - the rest of the clip is fed as fast as the codec takes it</li>
+ * </ul>
+ * Codecs that keep up with {@link #TARGET_FRAME_RATE} are ranked by their median latency, the
+ * others by their frame rate. The ranking is stored in {@link CodecSelectionCache} and the
+ * decoder tries the candidates in that order from its next start on.
+ * <p></p>
+ * The test runs on its own background thread, on first launch ({@link #startIfNeeded()}) or on
+ * demand ({@link #start(Listener)}). It creates one codec at a time, but should not be started
+ * while a session is decoding, as it competes for the same hardware. Starting a session cancels
+ * a running self-test.
+ */
+public class CodecSelfTest {
+    private static final String TAG = "CodecSelfTest";
+
+    // Clip parameters. 720p is the typical projection resolution.
+    private static final int CLIP_WIDTH = 1280;
+    private static final int CLIP_HEIGHT = 720;
+    private static final int CLIP_FRAME_COUNT = 240;
+    private static final int CLIP_GOP_LENGTH = 60;
+    private static final long FRAME_INTERVAL_US = 1000000 / 60;
+
+    // Number of frames fed one at a time to measure the latency, and how long a paced frame
+    // may stay in the codec before the next one is fed anyway
+    private static final int PACED_FRAME_COUNT = 60;
+    private static final long PACED_FRAME_TIMEOUT_MS = 200;
+
+    // Frame rate a codec needs to sustain to be ranked by latency
+    private static final double TARGET_FRAME_RATE = 60;
+
+    private static final long FIRST_OUTPUT_TIMEOUT_MS = 2500;
+    private static final long CODEC_TEST_TIMEOUT_MS = 15000;
+    private static final long DEQUEUE_TIMEOUT_US = 2000;
+    private static final int MAX_IMAGES = 3;
+
+    // Minimum share of the clip a codec has to output to pass
+    private static final double MIN_OUTPUT_RATIO = 0.9;
+
+    /**
+     * Receives the results of the self-test.
+     */
+    public interface Listener {
+        /**
+         * Called on the self-test thread when all candidates were tested.
+         *
+         * @param results The results, best codec first
+         */
+        void onSelfTestFinished(List<Result> results);
+    }
+
+    /**
+     * The measurements of a single codec.
+     */
+    public static class Result {
+        private final String m_codecName;
+        private boolean m_passed = false;
+        private long m_firstOutputMs = -1;
+        private long m_medianLatencyUs = -1;
+        private long m_p99LatencyUs = -1;
+        private double m_framesPerSecond = 0;
+        private int m_framesDecoded = 0;
+
+        Result(String codecName) {
+            m_codecName = codecName;
+        }
+
+        public String getCodecName() {
+            return m_codecName;
+        }
+
+        /**
+         * Returns true if the codec decoded the clip.
+         */
+        public boolean isPassed() {
+            return m_passed;
+        }
+
+        /**
+         * Returns the time from the codec start to its first output, -1 if there was none.
+         */
+        public long getFirstOutputMs() {
+            return m_firstOutputMs;
+        }
+
+        /**
+         * Returns the median time a frame spent in the codec, -1 if unknown.
+         */
+        public long getMedianLatencyUs() {
+            return m_medianLatencyUs;
+        }
+
+        /**
+         * Returns the 99th percentile of the time a frame spent in the codec, -1 if unknown.
+         */
+        public long getP99LatencyUs() {
+            return m_p99LatencyUs;
+        }
+
+        /**
+         * Returns the sustained decoding frame rate.
+         */
+        public double getFramesPerSecond() {
+            return m_framesPerSecond;
+        }
+
+        public int getFramesDecoded() {
+            return m_framesDecoded;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %s, first output %d ms, latency p50/p99 %d/%d us, %.1f fps, %d frames",
+                    m_codecName, m_passed ? "passed" : "failed", m_firstOutputMs,
+                    m_medianLatencyUs, m_p99LatencyUs, m_framesPerSecond, m_framesDecoded);
+        }
+    }
+
+    /**
+     * Orders the results best first.
+     */
+    static final Comparator<Result> RANKING = new Comparator<Result>() {
+        @Override
+        public int compare(Result lhs, Result rhs) {
+            if (lhs.m_passed != rhs.m_passed) {
+                return lhs.m_passed ? -1 : 1;
+            }
+            boolean lhsRealtime = lhs.m_framesPerSecond >= TARGET_FRAME_RATE;
+            boolean rhsRealtime = rhs.m_framesPerSecond >= TARGET_FRAME_RATE;
+            if (lhsRealtime != rhsRealtime) {
+                return lhsRealtime ? -1 : 1;
+            }
+            if (lhsRealtime && lhs.m_medianLatencyUs != rhs.m_medianLatencyUs) {
+                return lhs.m_medianLatencyUs < rhs.m_medianLatencyUs ? -1 : 1;
+            }
+            return Double.compare(rhs.m_framesPerSecond, lhs.m_framesPerSecond);
+        }
+    };
+
+    private static Thread SELF_TEST_THREAD;
+    private static volatile boolean SELF_TEST_CANCELLED = false;
+
+    /**
+     * Starts the self-test if it has not run on this device and OS build yet.
+     */
+    public static void startIfNeeded() {
+        if (CodecSelectionCache.hasRanking()) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startIfNeeded: Codec ranking is known, %s",
+                    CodecSelectionCache.getRankedCodecs());
+            return;
+        }
+        start(null);
+    }
+
+    /**
+     * Starts the self-test in the background.
+     *
+     * @param listener Optional listener for the results
+     * @return false if the self-test is already running
+     */
+    public static synchronized boolean start(final Listener listener) {
+        if (isRunning()) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "start: The self-test is already running");
+            return false;
+        }
+        SELF_TEST_CANCELLED = false;
+        SELF_TEST_THREAD = ThreadScheduler.newThread(ThreadClass.WORKER, "CodecSelfTest", new Runnable() {
+            @Override
+            public void run() {
+                List<Result> results = runSelfTest();
+                if (listener != null) {
+                    listener.onSelfTestFinished(results);
+                }
+            }
+        });
+        SELF_TEST_THREAD.start();
+        return true;
+    }
+
+    /**
+     * Stops the self-test after the codec under test. Nothing is stored.
+     */
+    public static synchronized void cancel() {
+        SELF_TEST_CANCELLED = true;
+    }
+
+    /**
+     * Returns true while the self-test is running.
+     */
+    public static synchronized boolean isRunning() {
+        return SELF_TEST_THREAD != null && SELF_TEST_THREAD.isAlive();
+    }
+
+    private static List<Result> runSelfTest() {
+        List<String> codecNames = FrameDecoder_H264_Custom.getCodecCandidateNames();
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "runSelfTest: Testing %s", codecNames);
+        List<byte[]> clip = new SyntheticStreamGenerator(CLIP_WIDTH, CLIP_HEIGHT).generate(CLIP_FRAME_COUNT, CLIP_GOP_LENGTH);
+
+        List<Result> results = new ArrayList<Result>();
+        for (String codecName : codecNames) {
+            if (SELF_TEST_CANCELLED) {
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "runSelfTest: Cancelled");
+                return results;
+            }
+            Result result = testCodec(codecName, clip);
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "runSelfTest: %s", result);
+            results.add(result);
+        }
+        if (SELF_TEST_CANCELLED) {
+            return results;
+        }
+
+        Collections.sort(results, RANKING);
+        List<String> rankedCodecs = new ArrayList<String>();
+        for (Result result : results) {
+            if (result.m_passed) {
+                rankedCodecs.add(result.m_codecName);
+            }
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "runSelfTest: Ranking %s", rankedCodecs);
+        CodecSelectionCache.recordRankedCodecs(rankedCodecs);
+        FrameDecoder_H264_Custom.onCodecSelectionChanged();
+        return results;
+    }
+
+    /**
+     * Decodes the clip with the codec and measures it.
+     */
+    private static Result testCodec(String codecName, List<byte[]> clip) {
+        Result result = new Result(codecName);
+        MediaCodec codec = null;
+        ImageReader imageReader = null;
+        LatencyHistogram latency = new LatencyHistogram();
+        try {
+            int imageFormat = VERSION.SDK_INT >= Build.VERSION_CODES.M ? ImageFormat.PRIVATE : ImageFormat.YUV_420_888;
+            imageReader = ImageReader.newInstance(CLIP_WIDTH, CLIP_HEIGHT, imageFormat, MAX_IMAGES);
+
+            int maxFrameSize = 0;
+            for (byte[] frame : clip) {
+                maxFrameSize = Math.max(maxFrameSize, frame.length);
+            }
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, CLIP_WIDTH, CLIP_HEIGHT);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxFrameSize);
+
+            codec = MediaCodec.createByCodecName(codecName);
+            LowLatencyFormatConfigurator.apply(codec, MediaFormat.MIMETYPE_VIDEO_AVC, format, CLIP_WIDTH, CLIP_HEIGHT);
+            codec.configure(format, imageReader.getSurface(), null, 0);
+            codec.start();
+
+            long startNs = System.nanoTime();
+            long testDeadlineNs = startNs + CODEC_TEST_TIMEOUT_MS * 1000000;
+            long[] queueTimesNs = new long[clip.size()];
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long lastQueueNs = 0;
+            int framesQueued = 0;
+            int framesDecoded = 0;
+            int unpacedFramesDecoded = 0;
+            long unpacedStartNs = 0;
+            long lastOutputNs = 0;
+            boolean endOfStreamQueued = false;
+            boolean endOfStreamReceived = false;
+
+            while (!endOfStreamReceived && !SELF_TEST_CANCELLED) {
+                long now = System.nanoTime();
+                if (now > testDeadlineNs
+                        || (framesDecoded == 0 && now - startNs > FIRST_OUTPUT_TIMEOUT_MS * 1000000)) {
+                    MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "testCodec: %s timed out", codecName);
+                    break;
+                }
+
+                // Paced frames are only fed once the previous one has been decoded
+                boolean canQueue = !endOfStreamQueued
+                        && (framesQueued >= PACED_FRAME_COUNT || framesDecoded >= framesQueued
+                                || now - lastQueueNs > PACED_FRAME_TIMEOUT_MS * 1000000);
+                if (canQueue) {
+                    int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        if (framesQueued < clip.size()) {
+                            byte[] frame = clip.get(framesQueued);
+                            ByteBuffer inputBuffer = codec.getInputBuffer(inputIndex);
+                            inputBuffer.clear();
+                            inputBuffer.put(frame);
+                            if (framesQueued == PACED_FRAME_COUNT) {
+                                unpacedStartNs = System.nanoTime();
+                            }
+                            lastQueueNs = System.nanoTime();
+                            queueTimesNs[framesQueued] = lastQueueNs;
+                            codec.queueInputBuffer(inputIndex, 0, frame.length, framesQueued * FRAME_INTERVAL_US, 0);
+                            ++framesQueued;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            endOfStreamQueued = true;
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, canQueue ? 0 : DEQUEUE_TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    long outputNs = System.nanoTime();
+                    codec.releaseOutputBuffer(outputIndex, info.size > 0);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 || info.size > 0) {
+                        int frameIndex = (int) (info.presentationTimeUs / FRAME_INTERVAL_US);
+                        if (framesDecoded == 0) {
+                            result.m_firstOutputMs = (outputNs - startNs) / 1000000;
+                        }
+                        ++framesDecoded;
+                        if (frameIndex >= 0 && frameIndex < PACED_FRAME_COUNT) {
+                            latency.record((outputNs - queueTimesNs[frameIndex]) / 1000);
+                        } else {
+                            ++unpacedFramesDecoded;
+                            lastOutputNs = outputNs;
+                        }
+                    }
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        endOfStreamReceived = true;
+                    }
+                }
+                drainImages(imageReader);
+            }
+
+            result.m_framesDecoded = framesDecoded;
+            result.m_medianLatencyUs = latency.getPercentileUs(50);
+            result.m_p99LatencyUs = latency.getPercentileUs(99);
+            if (unpacedFramesDecoded > 0 && lastOutputNs > unpacedStartNs) {
+                result.m_framesPerSecond = unpacedFramesDecoded * 1e9 / (lastOutputNs - unpacedStartNs);
+            }
+            result.m_passed = !SELF_TEST_CANCELLED && framesDecoded >= clip.size() * MIN_OUTPUT_RATIO;
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "testCodec: %s failed: %s", codecName, e);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (Exception e) {
+                    // The codec may not have been started
+                }
+                codec.release();
+            }
+            if (imageReader != null) {
+                imageReader.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Releases the rendered images, so the codec never waits for a free output buffer.
+     */
+    private static void drainImages(ImageReader imageReader) {
+        Image image;
+        while ((image = imageReader.acquireNextImage()) != null) {
+            image.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/****************************************************************************
+ *
+ * @file DecoderLifecycle.java
+ * @brief
+ *
+ * Contains the DecoderLifecycle class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lifecycle of a decoding session, shared by the threads that start, stop and use the decoder.
+ * <p></p>
+ * A session goes {@link State#IDLE} (or {@link State#RELEASED}) -> {@link State#CONFIGURING} ->
+ * {@link State#RUNNING} -> {@link State#DRAINING} -> {@link State#RELEASED}. Every transition is
+ * a compare-and-set, so exactly one thread wins it and owns the work that follows: the thread
+ * that moves the session to CONFIGURING creates the codec, the thread that moves it from
+ * RUNNING to DRAINING releases it.
+ * <p></p>
+ * A stop that arrives while the session is still configuring moves it to DRAINING right away.
+ * The starting thread notices when it tries to move on to RUNNING, and releases what it created
+ * itself. The stopping thread waits for that with {@link #awaitSettled(long)}, without holding
+ * any lock.
+ */
+final class DecoderLifecycle {
+
+    /**
+     * Interval at which {@link #awaitSettled(long)} checks the state. A stop only waits for
+     * another thread during overlapping start/stop calls.
+     */
+    private static final long SETTLE_POLL_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    enum State {
+        // No session was started yet
+        IDLE,
+        // A start is creating and configuring the codec
+        CONFIGURING,
+        // The codec takes frames
+        RUNNING,
+        // A stop is tearing the session down
+        DRAINING,
+        // The session was torn down, a new one can start
+        RELEASED
+    }
+
+    private final AtomicReference<State> m_state = new AtomicReference<State>(State.IDLE);
+
+    /**
+     * @return The current state
+     */
+    State get() {
+        return m_state.get();
+    }
+
+    /**
+     * @return true if the session is {@link State#RUNNING}
+     */
+    boolean isRunning() {
+        return m_state.get() == State.RUNNING;
+    }
+
+    /**
+     * Starts a session: {@link State#IDLE} or {@link State#RELEASED} -> {@link State#CONFIGURING}.
+     *
+     * @return true if the calling thread now owns the start
+     */
+    boolean beginConfigure() {
+        return m_state.compareAndSet(State.IDLE, State.CONFIGURING)
+                || m_state.compareAndSet(State.RELEASED, State.CONFIGURING);
+    }
+
+    /**
+     * Completes a start: {@link State#CONFIGURING} -> {@link State#RUNNING}.
+     *
+     * @return false if a stop arrived while configuring. The calling thread then releases what
+     * it created and calls {@link #onReleased()}.
+     */
+    boolean onConfigured() {
+        return m_state.compareAndSet(State.CONFIGURING, State.RUNNING);
+    }
+
+    /**
+     * Starts a stop: {@link State#RUNNING} or {@link State#CONFIGURING} ->
+     * {@link State#DRAINING}.
+     *
+     * @return The state the session left. Only {@link State#RUNNING} makes the calling thread
+     * the owner of the release. For {@link State#CONFIGURING} and {@link State#DRAINING} another
+     * thread releases the session, see {@link #awaitSettled(long)}.
+     */
+    State beginDrain() {
+        while (true) {
+            State state = m_state.get();
+            if (state != State.RUNNING && state != State.CONFIGURING) {
+                return state;
+            }
+            if (m_state.compareAndSet(state, State.DRAINING)) {
+                return state;
+            }
+        }
+    }
+
+    /**
+     * Completes a release: {@link State#CONFIGURING} (failed start) or {@link State#DRAINING} ->
+     * {@link State#RELEASED}. Called by the owner of the release only.
+     */
+    void onReleased() {
+        if (!m_state.compareAndSet(State.DRAINING, State.RELEASED)) {
+            m_state.compareAndSet(State.CONFIGURING, State.RELEASED);
+        }
+    }
+
+    /**
+     * Waits until the session is neither configuring nor draining.
+     *
+     * @param timeoutMs Maximum time to wait
+     * @return false on timeout or if the thread was interrupted
+     */
+    boolean awaitSettled(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            State state = m_state.get();
+            if (state != State.CONFIGURING && state != State.DRAINING) {
+                return true;
+            }
+            if (deadline - System.nanoTime() <= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            LockSupport.parkNanos(this, SETTLE_POLL_INTERVAL_NS);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/****************************************************************************
+ *
+ * @file DecoderPool.java
+ * @brief
+ *
+ * Contains the DecoderPool class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.graphics.ImageFormat;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+import com.tngdev.weblinkclient.util.ThreadScheduler;
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps a configured codec across sessions, so that a (re)connect does not have to create and
+ * configure one.
+ * <p></p>
+ * The pool holds at most one codec. It is either pre-warmed ({@link #prewarm}) - created and
+ * configured while the client is still looking for a host - or parked ({@link #park}) - flushed
+ * after a session ended. A parked codec renders to an offscreen {@link ImageReader}, the next
+ * session moves it to its surface with {@link MediaCodec#setOutputSurface}, which needs Android
+ * 6.0+.
+ * <p></p>
+ * Pooled codecs run in asynchronous mode. Their callbacks are delivered on the pool thread
+ * ({@link #getHandler()}) through a {@link CallbackProxy}, as the thread must outlive the
+ * session the codec was configured in. The decoder uses the pool thread as its callback
+ * thread while it runs a pooled codec.
+ */
+final class DecoderPool {
+    private static final String TAG = "DecoderPool";
+
+    // Images the parking surface can hold. Nothing is rendered to it.
+    private static final int MAX_IMAGES = 2;
+
+    /**
+     * Forwards the codec events to the decoder that currently uses the codec. Events that
+     * arrive while the codec is pooled are dropped.
+     */
+    static final class CallbackProxy extends MediaCodec.Callback {
+        private volatile MediaCodec.Callback m_target;
+
+        void setTarget(MediaCodec.Callback target) {
+            m_target = target;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            MediaCodec.Callback target = m_target;
+            if (target != null) {
+                target.onInputBufferAvailable(codec, index);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            MediaCodec.Callback target = m_target;
+            if (target != null) {
+                target.onOutputBufferAvailable(codec, index, info);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            MediaCodec.Callback target = m_target;
+            if (target != null) {
+                target.onError(codec, e);
+            } else {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onError: Pooled codec reported an error: ", e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            MediaCodec.Callback target = m_target;
+            if (target != null) {
+                target.onOutputFormatChanged(codec, format);
+            }
+        }
+    }
+
+    /**
+     * A codec created by the pool, configured for one video size, or for any size up to the
+     * maximum one with adaptive playback.
+     */
+    static final class Entry {
+        final String codecName;
+        final int width;
+        final int height;
+        final boolean adaptive;
+        final int maxWidth;
+        final int maxHeight;
+        final MediaCodec codec;
+        final CallbackProxy callback = new CallbackProxy();
+
+        // Low latency keys the codec was configured with
+        List<String> lowLatencyKeys = Collections.emptyList();
+
+        // Offscreen surface the codec renders to while it is pooled
+        private ImageReader m_parkingSurface;
+
+        private Entry(String codecName, MediaFormat format, int width, int height, MediaCodec codec) {
+            this.codecName = codecName;
+            this.width = width;
+            this.height = height;
+            this.adaptive = format.containsKey(MediaFormat.KEY_MAX_WIDTH) && format.containsKey(MediaFormat.KEY_MAX_HEIGHT);
+            this.maxWidth = adaptive ? format.getInteger(MediaFormat.KEY_MAX_WIDTH) : width;
+            this.maxHeight = adaptive ? format.getInteger(MediaFormat.KEY_MAX_HEIGHT) : height;
+            this.codec = codec;
+        }
+
+        private boolean matches(String codecName, int width, int height) {
+            if (!this.codecName.equals(codecName)) {
+                return false;
+            }
+            if (adaptive) {
+                return width <= maxWidth && height <= maxHeight;
+            }
+            return this.width == width && this.height == height;
+        }
+    }
+
+    private static HandlerThread HANDLER_THREAD;
+    private static Handler HANDLER;
+    private static Entry POOLED_ENTRY;
+
+    private DecoderPool() {
+    }
+
+    /**
+     * Returns the handler of the pool thread, which receives the callbacks of the pooled codecs.
+     * The thread is started on first use and runs for the lifetime of the process.
+     */
+    static synchronized Handler getHandler() {
+        if (HANDLER == null) {
+            HANDLER_THREAD = ThreadScheduler.newHandlerThread(ThreadClass.VIDEO, "DecoderPoolCallbackThread");
+            HANDLER_THREAD.start();
+            HANDLER = new Handler(HANDLER_THREAD.getLooper());
+        }
+        return HANDLER;
+    }
+
+    /**
+     * Creates a codec and configures it in asynchronous mode, with its callbacks on the pool
+     * thread. The codec is not started.
+     *
+     * @param codecName Name of the codec
+     * @param format Format to configure the codec with, the supported low latency keys are
+     *               added when lowLatency is set
+     * @param lowLatency Apply the low latency keys (see {@link LowLatencyFormatConfigurator})
+     * @param surface Output surface, or null to configure the codec with a parking surface
+     * @return The configured codec
+     */
+    static Entry create(String codecName, MediaFormat format, int width, int height,
+                        boolean lowLatency, Surface surface) throws IOException {
+        Entry entry = new Entry(codecName, format, width, height, MediaCodec.createByCodecName(codecName));
+        try {
+            if (lowLatency) {
+                entry.lowLatencyKeys = LowLatencyFormatConfigurator.apply(entry.codec, MediaFormat.MIMETYPE_VIDEO_AVC,
+                        format, width, height);
+            }
+            if (surface == null) {
+                entry.m_parkingSurface = ImageReader.newInstance(width, height, ImageFormat.PRIVATE, MAX_IMAGES);
+                surface = entry.m_parkingSurface.getSurface();
+            }
+            entry.codec.setCallback(entry.callback, getHandler());
+            entry.codec.configure(format, surface, null, 0);
+        } catch (RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+        return entry;
+    }
+
+    /**
+     * Creates and configures a codec in the background, to be picked up by the next
+     * {@link #take}. A pooled codec for the same name and size is kept.
+     */
+    static void prewarm(final String codecName, final MediaFormat format, final int width,
+                        final int height, final boolean lowLatency) {
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DecoderPool.class) {
+                    if (POOLED_ENTRY != null && POOLED_ENTRY.matches(codecName, width, height)) {
+                        return;
+                    }
+                    clear();
+                    try {
+                        long startTimestamp = System.currentTimeMillis();
+                        POOLED_ENTRY = create(codecName, format, width, height, lowLatency, null);
+                        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "prewarm: %s configured for %dx%d in %d milliseconds",
+                                codecName, width, height, System.currentTimeMillis() - startTimestamp);
+                    } catch (Exception e) {
+                        MCSLogger.log(MCSLogger.ELogType.eError, TAG, "prewarm: Failed to create " + codecName + ": ", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes the pooled codec if it matches the name and size. A pooled codec that does not
+     * match is released. The returned codec is configured (and possibly flushed), it still has
+     * to be moved to the output surface and started.
+     *
+     * @return The pooled codec, or null if there is no matching one
+     */
+    static synchronized Entry take(String codecName, int width, int height) {
+        Entry entry = POOLED_ENTRY;
+        POOLED_ENTRY = null;
+        if (entry != null && !entry.matches(codecName, width, height)) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "take: Pooled %s (%dx%d) does not match, releasing it",
+                    entry.codecName, entry.width, entry.height);
+            release(entry);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * Parks a codec of a finished session: moves it to the parking surface and flushes it.
+     * Replaces the pooled codec. The codec is released if it cannot be parked.
+     */
+    static void park(Entry entry) {
+        entry.callback.setTarget(null);
+        try {
+            if (entry.m_parkingSurface == null) {
+                entry.m_parkingSurface = ImageReader.newInstance(entry.width, entry.height, ImageFormat.PRIVATE, MAX_IMAGES);
+            }
+            entry.codec.setOutputSurface(entry.m_parkingSurface.getSurface());
+            entry.codec.flush();
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "park: Failed to park " + entry.codecName + ", releasing it: ", e);
+            release(entry);
+            return;
+        }
+        synchronized (DecoderPool.class) {
+            clear();
+            POOLED_ENTRY = entry;
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "park: %s parked for %dx%d", entry.codecName, entry.width, entry.height);
+    }
+
+    /**
+     * Releases the pooled codec, if any.
+     */
+    static synchronized void clear() {
+        if (POOLED_ENTRY != null) {
+            release(POOLED_ENTRY);
+            POOLED_ENTRY = null;
+        }
+    }
+
+    /**
+     * Releases the codec and its parking surface.
+     */
+    static void release(Entry entry) {
+        entry.callback.setTarget(null);
+        try {
+            entry.codec.release();
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "release: Exception raised while releasing " + entry.codecName + ": ", e);
+        }
+        if (entry.m_parkingSurface != null) {
+            entry.m_parkingSurface.close();
+            entry.m_parkingSurface = null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/****************************************************************************
+ *
+ * @file FrameBufferPool.java
+ * @brief
+ *
+ * Contains the FrameBufferPool class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import com.abaltatech.weblink.core.DataBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of direct {@link ByteBuffer}s used to hold encoded frames that could not be
+ * handed to the codec right away.
+ * <p></p>
+ * Buffers are recycled instead of being allocated per frame, so large key-frames do not cause
+ * heap churn. A buffer only grows when a frame larger than its current capacity arrives.
+ * <p></p>
+ * A frame may have several owners, see {@link #retain(Frame)}. It goes back to the pool when
+ * the last owner released it.
+ * <p></p>
+ * The pool is not thread safe, the caller is expected to guard it.
+ */
+class FrameBufferPool {
+
+    /**
+     * Initial capacity of newly allocated buffers. Large enough for the typical P-frame.
+     */
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+
+    /**
+     * An encoded frame parked in a pooled buffer.
+     */
+    static class Frame {
+        // Frame data, ready to be read
+        ByteBuffer data;
+
+        // Presentation timestamp of the frame in microseconds
+        long presentationTimeUs;
+
+        // MediaCodec buffer flags to queue the frame with
+        int flags;
+
+        // Number of owners that have not released the frame yet
+        int refCount;
+    }
+
+    private final ArrayDeque<Frame> m_freeFrames = new ArrayDeque<Frame>();
+    private final int m_maxPooledFrames;
+
+    /**
+     * @param maxPooledFrames Maximum number of released frames kept for reuse
+     */
+    FrameBufferPool(int maxPooledFrames) {
+        m_maxPooledFrames = maxPooledFrames;
+    }
+
+    /**
+     * Returns a pooled frame holding a copy of the given frame data, ready to be read (flipped).
+     *
+     * @param frameBits The encoded frame
+     * @param presentationTimeUs Presentation timestamp of the frame in microseconds
+     * @param flags MediaCodec buffer flags to queue the frame with
+     * @return Pooled frame
+     */
+    Frame acquire(DataBuffer frameBits, long presentationTimeUs, int flags) {
+        int size = frameBits.getSize();
+        Frame frame = m_freeFrames.poll();
+        if (frame == null) {
+            frame = new Frame();
+        }
+        if (frame.data == null || frame.data.capacity() < size) {
+            frame.data = ByteBuffer.allocateDirect(Math.max(size, INITIAL_BUFFER_CAPACITY));
+        }
+        frame.data.clear();
+        frame.data.put(frameBits.getData(), frameBits.getPos(), size);
+        frame.data.flip();
+        frame.presentationTimeUs = presentationTimeUs;
+        frame.flags = flags;
+        frame.refCount = 1;
+        return frame;
+    }
+
+    /**
+     * Adds an owner to the frame. Every owner has to {@link #release(Frame)} it. The owners
+     * share the data, so they should read it through {@link ByteBuffer#duplicate()}.
+     *
+     * @param frame Frame previously obtained from {@link #acquire(DataBuffer, long, int)}
+     */
+    void retain(Frame frame) {
+        ++frame.refCount;
+    }
+
+    /**
+     * Returns the frame to the pool once the last owner released it.
+     *
+     * @param frame Frame previously obtained from {@link #acquire(DataBuffer, long, int)}
+     */
+    void release(Frame frame) {
+        if (--frame.refCount > 0) {
+            return;
+        }
+        if (m_freeFrames.size() < m_maxPooledFrames) {
+            m_freeFrames.add(frame);
+        }
+    }
+
+    /**
+     * Drops all pooled frames.
+     */
+    void clear() {
+        m_freeFrames.clear();
+    }
+}
@@ -29,30 +29,49 @@
 package com.tngdev.weblinkclient.framedecoding;
 
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Build.VERSION;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
 
 import com.abaltatech.mcs.logger.MCSLogger;
 import com.abaltatech.weblink.core.DataBuffer;
 import com.abaltatech.weblink.core.WLTypes;
 import com.abaltatech.weblinkclient.compatibility.CodecInfo;
-import com.abaltatech.weblinkclient.framedecoding.H264Utils;
 import com.abaltatech.weblinkclient.framedecoding.IFrameDecoder;
 import com.abaltatech.weblinkclient.framedecoding.IFrameDecoderNotification;
 import com.abaltatech.weblinkclient.framedecoding.VideoSurface;
+import com.tngdev.weblinkclient.compatibility.CodecSelectionCache;
 import com.tngdev.weblinkclient.compatibility.WLCompatibilityUtils_Custom;
+import com.tngdev.weblinkclient.framedecoding.h264.H264FrameClassifier;
+import com.tngdev.weblinkclient.framedecoding.h264.ParameterSetStore;
+import com.tngdev.weblinkclient.framedecoding.h264.SpsVuiRewriter;
+import com.tngdev.weblinkclient.util.ThreadScheduler;
+import com.tngdev.weblinkclient.util.ThreadScheduler.ScheduledThread;
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * An example implementation of a Frame Decoder that uses the Android {@link MediaCodec} to decode
@@ -74,26 +93,336 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
     private static final String VIDEO_FORMAT = "video/avc";
 
     /**
-     * Sometimes it takes a bit of time for the decoded video to be rendered on the output
-     * surface. To compensate for this, delay returning {@code true} from the
-     * {@link #isVideoOutGenerated()} method to avoid seeing a black screen. The decoder will wait
-     * to have received, decoded and submitted the specified in this constant number of key-frames
-     * before setting the {@link #isVideoOutGenerated()}} flag to {@code true}.
+     * {@link #isVideoOutGenerated()} turns {@code true} when the first frame has been rendered to
+     * the output surface, as reported by the render callbacks (Android 6.0+). Some codecs do not
+     * deliver them: after this number of output buffers released for rendering without a
+     * callback, the release is taken as the render. Below Android 6.0 the first release is.
      */
-    private static final int KEY_FRAME_DELAY = 2;
+    private static final int RENDER_CALLBACK_FALLBACK_FRAMES = 5;
 
-    private MediaCodec m_decoder;
+    /**
+     * Receives the video-ready signal of the decoder.
+     */
+    public interface VideoReadyListener {
+        /**
+         * Called on a decoder thread when the first frame of a decoding session is on screen.
+         *
+         * @param decoder The decoder
+         * @param timeToFirstFrameMs Time from {@link #startDecoding} to the first rendered frame
+         */
+        void onVideoReady(FrameDecoder_H264_Custom decoder, long timeToFirstFrameMs);
+    }
+
+    private static volatile VideoReadyListener VIDEO_READY_LISTENER = null;
+
+    /**
+     * Decides whether a received frame is decoded. The SDK does not consult
+     * {@code IClientNotification.canProcessFrame()} before it hands a frame over, so the decoder
+     * asks the client itself.
+     */
+    public interface FrameAdmissionCheck {
+        /**
+         * Called on the SDK receive thread for every frame of a running session.
+         *
+         * @return true to decode the frame, false to skip it and resume at the next IDR
+         */
+        boolean canProcessFrame();
+    }
+
+    private static volatile FrameAdmissionCheck FRAME_ADMISSION_CHECK = null;
+
+    /**
+     * Decoder instance that receives a copy of every frame given to the other instances, e.g. to
+     * show the projection on a secondary display (see {@link #setMirrorDecoder}). It runs its own
+     * codec, threads and statistics.
+     */
+    private static volatile FrameDecoder_H264_Custom MIRROR_DECODER = null;
+
+    /**
+     * Enables the asynchronous (callback based) decoding mode on platforms that support it.
+     * In this mode the SDK receive thread never waits for an input buffer and there is no
+     * output polling thread - the codec reports free input and ready output buffers through
+     * {@link MediaCodec.Callback}. Codecs that misbehave in this mode fall back to the
+     * synchronous loop on the next start.
+     */
+    private static final boolean USE_ASYNC_MODE = true;
+
+    /**
+     * Time allowed for a freshly started codec to produce its first output frame. If no output
+     * is generated in that time the codec is considered to have failed silently.
+     */
+    private static final long GENERATE_FIRST_OUTPUT_TIMEOUT_MS = 2500;
+
+    /**
+     * Default extra time a decoded frame may wait for its vsync before it is dropped in favour
+     * of a newer one. See {@link FramePacer}.
+     */
+    private static final long DEFAULT_FRAME_PACING_JITTER_BUDGET_US = 4000;
+
+    /**
+     * Present the decoded frames aligned to the display vsync (see {@link FramePacer}) instead of
+     * releasing them as soon as the codec returns them.
+     */
+    private static volatile boolean FRAME_PACING_ENABLED = true;
+
+    /**
+     * Jitter budget used by the frame pacing, in microseconds.
+     */
+    private static volatile long FRAME_PACING_JITTER_BUDGET_US = DEFAULT_FRAME_PACING_JITTER_BUDGET_US;
+
+    /**
+     * Low latency output policy: when several decoded frames are ready at once only the newest
+     * one is rendered and the stale ones are released without rendering. Showing the current
+     * frame matters more than showing every frame for interactive projection.
+     */
+    private static volatile boolean LOW_LATENCY_OUTPUT_ENABLED = true;
+
+    /**
+     * Allows the decoder to skip non-reference frames while the codec is backed up, and lets the
+     * SDK skip frames (see {@link #canSkipFrames()}). Once a reference frame has been skipped,
+     * all frames up to the next IDR are skipped too.
+     */
+    private static volatile boolean FRAME_SKIPPING_ENABLED = true;
+
+    /**
+     * Configure the codec with the low latency keys it supports (see
+     * {@link LowLatencyFormatConfigurator}).
+     */
+    private static volatile boolean LOW_LATENCY_FORMAT_ENABLED = true;
+
+    /**
+     * Start several untested codec candidates at once and keep the first one that produces
+     * output (see {@link CodecRace}), instead of trying them one after the other. Only used in
+     * asynchronous mode.
+     */
+    private static volatile boolean CODEC_RACING_ENABLED = true;
+
+    /**
+     * Maximum number of codecs started at once for a race. Hardware decoders share a limited
+     * number of instances, so the race is kept small.
+     */
+    private static final int MAX_RACING_CODECS = 3;
+
+    /**
+     * Keep the codec of a finished session configured for the next one, and pre-warm one
+     * before the first session (see {@link DecoderPool}). Only used in asynchronous mode.
+     */
+    private static volatile boolean DECODER_POOLING_ENABLED = true;
+
+    /**
+     * Configure the codecs that support adaptive playback for up to
+     * {@link #ADAPTIVE_MAX_WIDTH}x{@link #ADAPTIVE_MAX_HEIGHT}, so that a resolution change of
+     * the host (a new SPS) is decoded by the same codec instance without reconfiguring it.
+     * Other codecs are reset and configured for the new size.
+     */
+    private static volatile boolean ADAPTIVE_PLAYBACK_ENABLED = true;
+
+    /**
+     * Largest video size an adaptive codec is prepared for, unless the session starts larger.
+     */
+    private static final int ADAPTIVE_MAX_WIDTH = 1920;
+    private static final int ADAPTIVE_MAX_HEIGHT = 1080;
+
+    /**
+     * Recover a working codec in place after an error or a stall (see {@link #recoverDecoder()})
+     * before falling back to a full restart by the SDK.
+     */
+    private static volatile boolean FAST_RECOVERY_ENABLED = true;
+
+    /**
+     * Recovery tiers, tried one after the other until the codec produces output again:
+     * flush the codec, re-send the SPS/PPS and wait for the next IDR; reset and configure the
+     * codec again; let the SDK stop and start the decoder.
+     */
+    private static final int RECOVERY_TIER_FLUSH = 1;
+    private static final int RECOVERY_TIER_RESET = 2;
+    private static final int RECOVERY_TIER_REBUILD = 3;
+
+    /**
+     * A working codec is considered stalled when it took at least STALL_MIN_QUEUED_FRAMES frames
+     * without producing any output for STALL_TIMEOUT_MS. Checked every STALL_CHECK_INTERVAL_MS.
+     */
+    private static final long STALL_TIMEOUT_MS = 1000;
+    private static final int STALL_MIN_QUEUED_FRAMES = 10;
+    private static final long STALL_CHECK_INTERVAL_MS = 250;
+
+    /**
+     * Admission limits: the number of frames waiting for the codec (see
+     * {@link #canAcceptFrame()}), and the number of frames the codec took since its last output
+     * (see {@link #isOutputLagging()}).
+     */
+    private static final int ADMISSION_MAX_INPUT_BACKLOG = 6;
+    private static final int ADMISSION_MAX_OUTPUT_LAG_FRAMES = 12;
+    // Frames are refused for output lag at most this long after the last output, a codec that
+    // needs more input before it shows a frame is fed again afterwards
+    private static final long ADMISSION_MAX_OUTPUT_LAG_MS = 500;
+
+    /**
+     * Time a stop waits for an overlapping start or stop to release the session.
+     */
+    private static final long STOP_SETTLE_TIMEOUT_MS = 5000;
+
+    /**
+     * Maximum number of direct buffers kept for frames that wait for a free input slot.
+     */
+    private static final int MAX_POOLED_FRAME_BUFFERS = 4;
+
+    /**
+     * Number of received frames that may wait for the codec: the slots of the input ring in
+     * synchronous mode (see {@link FrameInputRing}), the parked frames in asynchronous mode.
+     * A power of two.
+     */
+    private static final int INPUT_QUEUE_CAPACITY = 8;
+
+    /**
+     * Overflow policies of the input queue. With {@link #INPUT_OVERFLOW_DROP_UNTIL_IDR} a frame
+     * that does not fit is skipped right away; if other frames depend on it, all frames up to
+     * the next IDR are skipped too. With {@link #INPUT_OVERFLOW_BLOCK} the receive thread waits
+     * up to {@link #INPUT_QUEUE_BLOCK_DEADLINE_MS} for the codec to take a frame, then skips as
+     * with the first policy.
+     */
+    public static final int INPUT_OVERFLOW_DROP_UNTIL_IDR = 0;
+    public static final int INPUT_OVERFLOW_BLOCK = 1;
+
+    /**
+     * Default time the receive thread may wait for room in the input queue with
+     * {@link #INPUT_OVERFLOW_BLOCK}.
+     */
+    private static final long DEFAULT_INPUT_QUEUE_BLOCK_DEADLINE_MS = 50;
+
+    private static volatile int INPUT_OVERFLOW_POLICY = INPUT_OVERFLOW_DROP_UNTIL_IDR;
+    private static volatile long INPUT_QUEUE_BLOCK_DEADLINE_MS = DEFAULT_INPUT_QUEUE_BLOCK_DEADLINE_MS;
+
+    private volatile MediaCodec m_decoder;
     private ByteBuffer[] m_inputBuffers;
     private final int m_dequeInputBufferTimeoutUs = 100000; // [100 milliseconds] In micro seconds.
     private final DataBuffer m_configFrameBits = new DataBuffer();
+    // Latest SPS/PPS by ID, the source of m_configFrameBits and of the codec csd buffers
+    private final ParameterSetStore m_parameterSets = new ParameterSetStore();
     private FrameDecodeThread m_frameDecodeThread;
+    // Synchronous mode input: the receive thread fills the ring, the feed thread empties it into
+    // the codec. The ring is allocated on the first synchronous start.
+    private FrameFeedThread m_frameFeedThread;
+    private FrameInputRing m_inputRing;
     private IFrameDecoderNotification m_notification;
-    private boolean m_decoderStarted = false;
-    private boolean m_isVideoOutGenerated = false;
+    // Session state, see DecoderLifecycle. Read on the frame path without locking.
+    private final DecoderLifecycle m_lifecycle = new DecoderLifecycle();
+    private volatile boolean m_isVideoOutGenerated = false;
+    // Video-ready detection (see markVideoOutGenerated())
+    private long m_decodingStartTimestamp; // in milliseconds
+    private volatile long m_timeToFirstFrameMs = -1;
+    private int m_renderedWithoutCallback = 0;
 
     private long m_numKeyFrameInput = 0;
     private long m_numFrameInput = 0;
 
+    // Per-frame timestamps and the latency statistics derived from them
+    private final FrameTimestampTracker m_timestampTracker = new FrameTimestampTracker();
+
+    // Number of decoded frames released without being rendered
+    private final AtomicLong m_numFramesDropped = new AtomicLong();
+
+    // Frame skipping state. m_inputBackpressure is set by the feed thread when the codec had no
+    // free input buffer for the last frame in synchronous mode.
+    private long m_numFramesSkipped = 0;
+    // m_skipUntilIdr is also set by the recovery.
+    private volatile boolean m_skipUntilIdr = false;
+    private volatile boolean m_inputBackpressure = false;
+
+    // Input queue statistics. The receive thread is the only writer.
+    private volatile int m_maxInputQueueDepth = 0;
+    private volatile long m_numInputOverflows = 0;
+    private boolean m_inputOverflowing = false;
+
+    // Admission control state (see canAcceptFrame()). Used on the SDK receive thread only,
+    // except for the count.
+    private volatile long m_numFramesRefused = 0;
+    private boolean m_refusingFrames = false;
+
+    // Set while this instance is the mirror decoder and has not received the parameter sets of
+    // the stream yet (see setMirrorDecoder())
+    private final AtomicBoolean m_mirrorJoinPending = new AtomicBoolean();
+
+    // Classifies the incoming frames. Used on the SDK receive thread only.
+    private final H264FrameClassifier m_frameClassifier = new H264FrameClassifier();
+
+    // SPS rewriting for the decoders that hold back frames (see SpsVuiRewriter). Enabled per
+    // device and used on the SDK receive thread only.
+    private boolean m_spsVuiRewriteEnabled = false;
+    private final SpsVuiRewriter m_spsVuiRewriter = new SpsVuiRewriter();
+    private final DataBuffer m_rewrittenFrameBits = new DataBuffer();
+
+    // Asynchronous mode state. The free input slots and the frames waiting for a slot are
+    // guarded by m_asyncLock, which is only held for non-blocking codec calls.
+    private boolean m_asyncMode = false;
+    private volatile boolean m_asyncRunning = false;
+    private HandlerThread m_callbackThread;
+    private Handler m_callbackHandler;
+    private long m_asyncStartTimestamp; // in milliseconds
+    private FramePacer m_framePacer;
+    private boolean m_lowLatencyOutput = false;
+    private final Object m_asyncLock = new Object();
+    private final ArrayDeque<Integer> m_freeInputSlots = new ArrayDeque<Integer>();
+    private final ArrayDeque<FrameBufferPool.Frame> m_pendingFrames = new ArrayDeque<FrameBufferPool.Frame>();
+    // Size of m_pendingFrames, for the readers on the frame path that must not take m_asyncLock
+    private volatile int m_pendingFrameCount = 0;
+    // Set while a flush or reset calls the codec without m_asyncLock. The received frames are
+    // parked meanwhile, so the SDK receive thread never waits for the codec. Guarded by
+    // m_asyncLock.
+    private boolean m_codecPaused = false;
+    private final FrameBufferPool m_pendingFramePool = new FrameBufferPool(MAX_POOLED_FRAME_BUFFERS);
+    private CodecRace m_codecRace;
+    private volatile Surface m_outputSurface;
+    private AsyncDecodeCallback m_asyncCallback;
+    // Set when the codec comes from, and goes back to, the DecoderPool
+    private DecoderPool.Entry m_pooledCodec;
+    // Set when the codec was reset and configured again during the session. Its format and
+    // output no longer match its DecoderPool.Entry, so it is not parked.
+    private volatile boolean m_codecReconfigured = false;
+    // Set for the mirror decoder. It keeps out of the DecoderPool, the pooled codec and the pool
+    // thread belong to the decoder of the client display. It runs on the receive thread of the
+    // client display too, so it never waits for room in its input queue.
+    private boolean m_isMirror = false;
+
+    // Screenshots are copied from the surface of the view, also while the output is suspended
+    private final ScreenshotCapturer m_screenshotCapturer = new ScreenshotCapturer();
+    private volatile Surface m_screenshotSurface;
+
+    // Output suspension state (see suspendOutput()). While suspended, the codec renders to the
+    // placeholder reader and the latest decoded buffer is held back, to be shown on resume.
+    private volatile boolean m_outputSuspended = false;
+    private ImageReader m_placeholderReader;
+    private final Object m_suspendedOutputLock = new Object();
+    private MediaCodec m_suspendedOutputCodec;
+    private int m_suspendedOutputIndex = -1;
+
+    // In place recovery state (see recoverDecoder()). The recovery runs on the callback thread,
+    // or on the decode thread in synchronous mode, serialized by m_recoveryLock. It takes the
+    // input lock of the mode before the output lock, so it never runs concurrently with a
+    // codec call of the other threads.
+    private final Object m_recoveryLock = new Object();
+    private final Object m_syncInputLock = new Object();
+    private final Object m_syncOutputLock = new Object();
+    private volatile boolean m_recoveryAllowed = false;
+    private final AtomicBoolean m_recoveryPosted = new AtomicBoolean();
+    private volatile int m_recoveryTier = 0;
+    private volatile long m_recoveryStartTimestamp = 0; // in milliseconds, 0 when not recovering
+    private volatile boolean m_resendConfig = false;
+    private volatile long m_lastOutputTimestamp; // in milliseconds
+    private final AtomicInteger m_framesQueuedSinceOutput = new AtomicInteger();
+    private volatile int m_videoWidth;
+    private volatile int m_videoHeight;
+
+    // Size limits of the running codec: the adaptive playback maximum, or the configured size
+    private volatile boolean m_adaptivePlayback = false;
+    private volatile int m_maxVideoWidth;
+    private volatile int m_maxVideoHeight;
+
+    // Recovery statistics, the counts are indexed by the recovery tier
+    private final AtomicLongArray m_recoveryCounts = new AtomicLongArray(RECOVERY_TIER_REBUILD + 1);
+    private final AtomicLong m_lastRecoveryDurationMs = new AtomicLong();
+    private final AtomicLong m_totalRecoveryDurationMs = new AtomicLong();
+
     /**
      * Utility class to keep available Madia Codec candidates for H264 decoding
      */
@@ -114,24 +443,58 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
         // of that
         private boolean isWorking;
 
+        // Has the codec failed while running in asynchronous mode. Such codecs are only used
+        // with the synchronous decoding loop afterwards.
+        private boolean isAsyncBroken;
+
+        // Has the codec failed to start with the low latency format keys. Such codecs are
+        // configured with the plain format afterwards.
+        private boolean isLowLatencyFormatBroken;
+
+        // Does the codec support adaptive playback, null until checked
+        private Boolean isAdaptivePlaybackSupported;
+
         public MediaCodecCandidate(String codecName) {
             MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "Created a Media Codec Candidate: " + name);
             name = codecName;
             isTested = false;
             isWorking = false;
+            isAsyncBroken = false;
+            isLowLatencyFormatBroken = false;
+        }
+
+        // Copies the candidate, including what is known about the codec
+        public MediaCodecCandidate(MediaCodecCandidate other) {
+            name = other.name;
+            isTested = other.isTested;
+            isWorking = other.isWorking;
+            isAsyncBroken = other.isAsyncBroken;
+            isLowLatencyFormatBroken = other.isLowLatencyFormatBroken;
+            isAdaptivePlaybackSupported = other.isAdaptivePlaybackSupported;
         }
     }
 
     /**
      * Holds a list of media codec candidates.
      * The preferred codec chosen should always be at index 0.
+     * <p></p>
+     * This is the codec catalog of the device. Every decoder instance selects its codec from its
+     * own copy (see {@link #m_codecCandidates}), so that several decoders can run at once.
      */
     private static List<MediaCodecCandidate> H264_CODEC_CANDIDATES = new ArrayList<MediaCodecCandidate>();
 
     /**
-     * The MediaCodecCandidate we're currently using
+     * Incremented when H264_CODEC_CANDIDATES was reordered at runtime (see
+     * {@link CodecSelfTest}). The next start of every decoder instance switches to the new first
+     * candidate.
      */
-    private static MediaCodecCandidate H264_CODEC_CANDIDATE;
+    private static final AtomicInteger H264_CODEC_CANDIDATES_VERSION = new AtomicInteger();
+
+    // Codec selection state of this instance: the copy of H264_CODEC_CANDIDATES it tries, the
+    // catalog version the copy was taken from, and the MediaCodecCandidate we're currently using
+    private final List<MediaCodecCandidate> m_codecCandidates = new ArrayList<MediaCodecCandidate>();
+    private int m_codecCandidatesVersion = -1;
+    private volatile MediaCodecCandidate m_codecCandidate;
 
     /*
      * This code collects Media Codecs to be used as a decoder.
@@ -139,8 +502,8 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
      * Integrators may use this code to select the Media Codecs to try and use for decoding on the
      * try-fail basis or remove it completely, providing the right decoder for their Platform.
      * <p></p>
-     * H264_CODEC_CANDIDATE and H264_CODEC_CANDIDATES are used in the {@link #startDeocidng(IFrameDecoderNotification, int, int, VideoSurface)}.
-     * Media Codecs from H264_CODEC_CANDIDATES are tested until a working one is found and stored in H264_CODEC_CANDIDATE.
+     * H264_CODEC_CANDIDATES are copied by every instance and used in the {@link #startDeocidng(IFrameDecoderNotification, int, int, VideoSurface)}.
+     * Media Codecs from the copy are tested until a working one is found and stored in m_codecCandidate.
      */
     static {
         Set<String> codecNames = new HashSet<String>();
@@ -169,6 +532,8 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
             H264_CODEC_CANDIDATES.add(new MediaCodecCandidate(preferredCodec));
         }
         Collections.reverse(H264_CODEC_CANDIDATES);
+        // What we learned on previous runs on this device beats the guess above
+        applyCachedSelection();
     }
 
     @Override
@@ -176,60 +541,163 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
         MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding enter");
 
         boolean result = false;
+        List<String> lowLatencyKeys = null;
 
-        if (m_decoder != null) {
-            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG,"startDecoding: Decoder is already running!");
+        if (CodecSelfTest.isRunning()) {
+            // The session needs the decoder hardware, the self-test runs again on the next launch
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Cancelling the codec self-test");
+            CodecSelfTest.cancel();
+        }
+
+        boolean configuring = m_lifecycle.beginConfigure();
+        boolean cancelled = false;
+        if (!configuring) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG,"startDecoding: Decoder is already running! State is %s", m_lifecycle.get());
         } else {
             if (surface != null) {
                 if(!surface.getSurface().isValid()) {
                     MCSLogger.log(MCSLogger.ELogType.eError, TAG,"startDecoding: The surface is invalid!");
                 } else {
                     try {
-                        if(H264_CODEC_CANDIDATE == null || (H264_CODEC_CANDIDATE.isTested || !H264_CODEC_CANDIDATE.isWorking)) {
-                            H264_CODEC_CANDIDATE = getNextMediaCodecCandidate();
+                        if (m_codecCandidatesVersion != H264_CODEC_CANDIDATES_VERSION.get()) {
+                            updateCodecCandidates();
+                            m_codecCandidate = getFirstMediaCodecCandidate();
+                        } else if(m_codecCandidate == null || (m_codecCandidate.isTested || !m_codecCandidate.isWorking)) {
+                            m_codecCandidate = getNextMediaCodecCandidate();
                         }
-                        if(H264_CODEC_CANDIDATE == null) {
+                        if(m_codecCandidate == null) {
                             MCSLogger.log(MCSLogger.ELogType.eError, TAG, "startDecoding:Fatal error: could not find " +
                                     "a suitable Media Codec to decode the H264 stream!");
                         } else {
-                            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Selected Codec is %s", H264_CODEC_CANDIDATE.name);
+                            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Selected Codec is %s", m_codecCandidate.name);
 
-                            H264_CODEC_CANDIDATE.isTested = true;
+                            m_codecCandidate.isTested = true;
 
                             String board        = Build.BOARD.toLowerCase(Locale.US);
                             String manufacturer = Build.MANUFACTURER.toLowerCase(Locale.US);
                             String hardware     = Build.HARDWARE.toLowerCase(Locale.US);
                             MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Hardware ID is %s", board + "@" + manufacturer + "@" + hardware);
 
-                            MediaFormat fmt;
-                            if (VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                fmt = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
-                            } else {
-                                fmt = MediaFormat.createVideoFormat(VIDEO_FORMAT, width, height);
+                            MediaFormat fmt = createVideoFormat(width, height, true, m_codecCandidate);
+
+                            m_asyncMode = USE_ASYNC_MODE
+                                    && VERSION.SDK_INT >= Build.VERSION_CODES.M
+                                    && !m_codecCandidate.isAsyncBroken;
+                            m_notification = notification;
+                            m_numKeyFrameInput = 0;
+                            m_numFrameInput = 0;
+                            m_decodingStartTimestamp = System.currentTimeMillis();
+                            m_timeToFirstFrameMs = -1;
+                            m_renderedWithoutCallback = 0;
+                            m_timestampTracker.reset();
+                            m_numFramesDropped.set(0);
+                            m_numFramesSkipped = 0;
+                            m_skipUntilIdr = false;
+                            m_resendConfig = false;
+                            m_videoWidth = width;
+                            m_videoHeight = height;
+                            m_spsVuiRewriteEnabled = WLCompatibilityUtils_Custom.hasQuirk(WLCompatibilityUtils_Custom.QUIRK_REWRITE_SPS_VUI);
+                            if (m_spsVuiRewriteEnabled) {
+                                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: SPS rewriting enabled for this device");
                             }
+                            m_inputBackpressure = false;
+                            m_maxInputQueueDepth = 0;
+                            m_numInputOverflows = 0;
+                            m_inputOverflowing = false;
+                            m_numFramesRefused = 0;
+                            m_refusingFrames = false;
+                            m_lowLatencyOutput = LOW_LATENCY_OUTPUT_ENABLED;
+                            m_codecReconfigured = false;
 
-                            CodecInfo codecInfo = WLCompatibilityUtils_Custom.getCodecInfo();
-                            if (codecInfo.getInputBufferSize() != null) {
-                                fmt.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, codecInfo.getInputBufferSize().intValue());
+                            m_outputSurface = surface.getSurface();
+                            m_screenshotSurface = m_outputSurface;
+                            List<MediaCodecCandidate> racingCandidates = m_asyncMode
+                                    ? getRacingCandidates()
+                                    : Collections.<MediaCodecCandidate>emptyList();
+                            boolean usePool = m_asyncMode && DECODER_POOLING_ENABLED && !m_isMirror
+                                    && racingCandidates.size() <= 1;
+                            if (usePool) {
+                                // The pooled codecs deliver their callbacks on the pool thread
+                                m_callbackHandler = DecoderPool.getHandler();
+                            } else {
+                                startCallbackThread();
+                            }
+                            if (FRAME_PACING_ENABLED) {
+                                m_framePacer = new FramePacer(m_callbackHandler, FRAME_PACING_JITTER_BUDGET_US,
+                                        m_lowLatencyOutput, m_framePacerListener);
+                            }
+                            if (racingCandidates.size() > 1) {
+                                startCodecRace(racingCandidates, width, height);
+                            } else if (usePool) {
+                                startPooledCodec(fmt, width, height);
+                                lowLatencyKeys = m_pooledCodec.lowLatencyKeys;
+                            } else {
+                                m_decoder = MediaCodec.createByCodecName(m_codecCandidate.name);
+                                if (LOW_LATENCY_FORMAT_ENABLED && !m_codecCandidate.isLowLatencyFormatBroken) {
+                                    lowLatencyKeys = LowLatencyFormatConfigurator.apply(m_decoder, VIDEO_FORMAT, fmt, width, height);
+                                }
+                                if (VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                                    m_decoder.setOnFrameRenderedListener(m_frameRenderedListener, m_callbackHandler);
+                                }
+                                if (m_asyncMode) {
+                                    MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Using asynchronous decoding mode");
+                                    m_asyncCallback = new AsyncDecodeCallback(m_codecCandidate);
+                                    m_decoder.setCallback(m_asyncCallback, m_callbackHandler);
+                                }
+                                m_decoder.configure(fmt, m_outputSurface, null, 0);
+                                setConfiguredVideoSize(m_codecCandidate, width, height);
+                                if (lowLatencyKeys != null) {
+                                    LowLatencyFormatConfigurator.logAcceptedKeys(m_decoder, lowLatencyKeys);
+                                }
+                                if (m_asyncMode) {
+                                    synchronized (m_asyncLock) {
+                                        m_asyncRunning = true;
+                                    }
+                                }
+                                m_decoder.start();
                             }
 
-                            m_decoder = MediaCodec.createByCodecName(H264_CODEC_CANDIDATE.name);
-                            m_decoder.configure(fmt, surface.getSurface(), null, 0);
-                            m_decoder.start();
-                            m_decoderStarted = true;
-                            m_notification = notification;
+                            m_lastOutputTimestamp = System.currentTimeMillis();
+                            m_framesQueuedSinceOutput.set(0);
+                            m_recoveryTier = 0;
+                            m_recoveryAllowed = true;
+                            m_callbackHandler.postDelayed(m_stallWatchdog, STALL_CHECK_INTERVAL_MS);
 
-                            m_inputBuffers = m_decoder.getInputBuffers();
-                            m_numKeyFrameInput = 0;
-                            m_numFrameInput = 0;
-                            m_frameDecodeThread = new FrameDecodeThread();
-                            m_frameDecodeThread.start();
+                            if (m_asyncMode) {
+                                m_asyncStartTimestamp = System.currentTimeMillis();
+                                m_callbackHandler.post(m_notifyDecodingStarted);
+                                m_callbackHandler.postDelayed(m_firstOutputWatchdog, GENERATE_FIRST_OUTPUT_TIMEOUT_MS);
+                            } else {
+                                // The codec input buffers are written directly, the deprecated
+                                // buffer array is only needed before Lollipop.
+                                if (VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                                    m_inputBuffers = m_decoder.getInputBuffers();
+                                }
+                                if (m_inputRing == null) {
+                                    m_inputRing = new FrameInputRing(INPUT_QUEUE_CAPACITY);
+                                }
+                                m_inputRing.clear();
+                                m_inputRing.resetMaxSize();
+                                m_frameFeedThread = new FrameFeedThread(m_inputRing);
+                                m_frameFeedThread.start();
+                                m_frameDecodeThread = new FrameDecodeThread();
+                                m_frameDecodeThread.start();
+                            }
 
                             result = true;
                         }
                     } catch(Exception e) {
                         MCSLogger.log(MCSLogger.eError, TAG, "startDecoding: Exception was raised!");
                         MCSLogger.printStackTrace(TAG, e);
+                        if (m_asyncMode && m_codecCandidate != null) {
+                            m_codecCandidate.isAsyncBroken = true;
+                        } else if (m_codecCandidate != null) {
+                            CodecSelectionCache.recordFailedCodec(m_codecCandidate.name);
+                        }
+                        if (lowLatencyKeys != null && !lowLatencyKeys.isEmpty() && m_codecCandidate != null) {
+                            m_codecCandidate.isLowLatencyFormatBroken = true;
+                        }
+                        releaseFailedDecoder();
                     }
                 }
             } else {
@@ -237,7 +705,21 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
             }
         }
 
-        if (notification != null && !result) {
+        if (configuring) {
+            if (!result) {
+                m_lifecycle.onReleased();
+            } else if (!m_lifecycle.onConfigured()) {
+                // A stop came in while configuring and waits for this thread to release the codec
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Stopped while starting");
+                releaseDecoder(true);
+                m_lifecycle.onReleased();
+                result = false;
+                cancelled = true;
+            }
+        }
+
+        // The stop reports a cancelled start
+        if (notification != null && !result && !cancelled) {
             notification.onDecodingStartFailed();
         }
 
@@ -252,17 +734,68 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
     public void stopDecoding() {
         MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "stopDecoding: enter");
         boolean result = true;
+        IFrameDecoderNotification notification = m_notification;
+
+        DecoderLifecycle.State previousState = m_lifecycle.beginDrain();
+        if (previousState == DecoderLifecycle.State.RUNNING) {
+            result = releaseDecoder(true);
+            m_lifecycle.onReleased();
+        } else if (previousState == DecoderLifecycle.State.CONFIGURING
+                || previousState == DecoderLifecycle.State.DRAINING) {
+            // The start that is still configuring, or the stop already in progress, releases
+            // the session
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "stopDecoding: Waiting for the %s session", previousState);
+            if (!m_lifecycle.awaitSettled(STOP_SETTLE_TIMEOUT_MS)) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "stopDecoding: The session was not released in time");
+                result = false;
+            }
+        }
+
+        if (notification != null) {
+            if (!result) {
+                notification.onDecodingStopFailed();
+            } else {
+                notification.onDecodingStopped();
+            }
+        }
+
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "stopDecoding: exit");
+    }
+
+    /**
+     * Tears the session down: stops the decoder threads and the callbacks, and parks or releases
+     * the codec. Called by the thread that owns the release, see {@link DecoderLifecycle}.
+     *
+     * @param wasDecoderStarted true if the codec was started
+     * @return false if a decoder thread could not be joined or the codec could not be released
+     */
+    private boolean releaseDecoder(boolean wasDecoderStarted) {
+        boolean result = true;
+        MediaCodec decoder = m_decoder;
+        FrameDecodeThread frameDecodeThread = m_frameDecodeThread;
+        FrameFeedThread frameFeedThread = m_frameFeedThread;
 
-        boolean wasDecoderStarted;
-        MediaCodec decoder;
-        FrameDecodeThread frameDecodeThread;
-        IFrameDecoderNotification notification;
+        // Wait for a running recovery and keep new ones from starting
+        synchronized (m_recoveryLock) {
+            m_recoveryAllowed = false;
+        }
+        if (m_recoveryTier != RECOVERY_TIER_REBUILD) {
+            m_recoveryStartTimestamp = 0;
+        }
+        // else the restart is part of the recovery, the next start completes it
 
-        synchronized (this) {
-            decoder = m_decoder;
-            wasDecoderStarted = m_decoderStarted;
-            notification = m_notification;
-            frameDecodeThread = m_frameDecodeThread;
+        if (frameFeedThread != null && frameFeedThread.isAlive()) {
+            frameFeedThread.interrupt();
+            try {
+                frameFeedThread.join();
+            } catch (InterruptedException ex) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "stopDecoding: Exception raised while trying to join the feed thread: ", ex);
+                result = false;
+            }
+        }
+        m_frameFeedThread = null;
+        if (m_inputRing != null) {
+            m_inputRing.clear();
         }
 
         if (frameDecodeThread != null && frameDecodeThread.isAlive()) {
@@ -276,9 +809,47 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
         }
         m_frameDecodeThread = null;
 
-        reset();
+        // Stop accepting callbacks before the codec is torn down
+        CodecRace codecRace;
+        synchronized (m_asyncLock) {
+            m_asyncRunning = false;
+            m_freeInputSlots.clear();
+            m_pendingFrames.clear();
+            m_pendingFrameCount = 0;
+            m_codecPaused = false;
+            m_pendingFramePool.clear();
+            // Release a receive thread waiting for room in the input queue
+            m_asyncLock.notifyAll();
+            // A codec race may have handed over its winner in the meantime
+            decoder = m_decoder;
+            codecRace = m_codecRace;
+            m_codecRace = null;
+        }
+        if (codecRace != null) {
+            codecRace.release();
+        }
+        if (m_callbackHandler != null) {
+            m_callbackHandler.removeCallbacks(m_firstOutputWatchdog);
+            m_callbackHandler.removeCallbacks(m_notifyDecodingStarted);
+            m_callbackHandler.removeCallbacks(m_stallWatchdog);
+            m_callbackHandler.removeCallbacks(m_handleCodecError);
+        }
+        m_recoveryPosted.set(false);
+        m_asyncCallback = null;
+        if (m_framePacer != null) {
+            m_framePacer.stop();
+            m_framePacer = null;
+        }
+
+        // The parameter sets are kept, so the next start can configure the codec with them
+        resetInputState();
 
-        if (decoder != null) {
+        DecoderPool.Entry pooledCodec = m_pooledCodec;
+        m_pooledCodec = null;
+        if (decoder != null && pooledCodec != null && pooledCodec.codec == decoder && wasDecoderStarted && canParkDecoder()) {
+            // Keep the codec configured for the next session
+            DecoderPool.park(pooledCodec);
+        } else if (decoder != null) {
             try {
                 if (wasDecoderStarted) {
                     decoder.flush();
@@ -302,41 +873,80 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
             }
         }
         m_decoder = null;
-
-        m_decoderStarted = false;
-
-        if (notification != null) {
-            if (!result) {
-                notification.onDecodingStopFailed();
-            } else {
-                notification.onDecodingStopped();
-            }
+        m_outputSurface = null;
+        m_screenshotSurface = null;
+        m_screenshotCapturer.clear();
+        // The next session starts on the surface it is given
+        synchronized (m_suspendedOutputLock) {
+            m_outputSuspended = false;
+            m_suspendedOutputCodec = null;
+            m_suspendedOutputIndex = -1;
+        }
+        if (m_placeholderReader != null) {
+            m_placeholderReader.close();
+            m_placeholderReader = null;
         }
 
-        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "stopDecoding: exit");
+        stopCallbackThread();
+        m_asyncMode = false;
+        return result;
     }
 
     @Override
     public void reset() {
+        resetInputState();
+        m_parameterSets.clear();
+        m_configFrameBits.resize(0);
+        m_configFrameBits.reset();
+    }
+
+    private void resetInputState() {
         m_isVideoOutGenerated = false;
         m_inputBuffers = null;
         m_numKeyFrameInput = 0;
         m_numFrameInput = 0;
-        m_configFrameBits.resize(0);
-        m_configFrameBits.reset();
     }
 
     @Override
     public boolean decodeImage(DataBuffer frameBits) {
-        int h264FrameType = H264Utils.getFrameType(frameBits);
+        // Hand the untouched frame to the mirror decoder first
+        FrameDecoder_H264_Custom mirror = MIRROR_DECODER;
+        if (mirror != null && mirror != this) {
+            mirror.mirrorFrame(frameBits, m_configFrameBits);
+        }
 
-        // Store the configuration SPS and PPS data
-        if (H264Utils.isConfigFrame(h264FrameType)) {
-            m_configFrameBits.addBytes(frameBits.getData(), frameBits.getPos(), frameBits.getSize());
+        int frameClass = m_frameClassifier.classify(frameBits);
+
+        // Signal zero reorder frames to decoders that would otherwise hold back frames
+        if (m_spsVuiRewriteEnabled) {
+            if (H264FrameClassifier.getSliceType(frameClass) == H264FrameClassifier.SLICE_TYPE_B) {
+                // B-frames need reordering, leave the stream untouched from now on
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "decodeImage: B-frame received, SPS rewriting disabled");
+                m_spsVuiRewriteEnabled = false;
+            } else if (H264FrameClassifier.isConfigFrame(frameClass)) {
+                frameBits = rewriteSps(frameBits);
+            }
+        }
+
+        // Store the configuration SPS and PPS data. Repeated parameter sets replace the stored
+        // ones, so the config data does not grow with the session.
+        int flags = 0;
+        if (H264FrameClassifier.isConfigFrame(frameClass)) {
+            if (m_parameterSets.update(frameBits.getData(), frameBits.getPos(), frameBits.getSize())) {
+                m_parameterSets.writeTo(m_configFrameBits);
+                // The host changed the resolution in-band
+                if (m_parameterSets.isComplete() && m_videoWidth > 0
+                        && (m_parameterSets.getWidth() != m_videoWidth || m_parameterSets.getHeight() != m_videoHeight)) {
+                    onVideoSizeChanged(m_parameterSets.getWidth(), m_parameterSets.getHeight());
+                }
+            }
+            if ((frameClass & H264FrameClassifier.FLAG_SLICE) == 0) {
+                flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            }
         }
 
         // Count the number of frames and key-frames (for debugging)
-        boolean isKeyFrame = H264Utils.isKeyFrame(h264FrameType);
+        boolean isKeyFrame = H264FrameClassifier.isKeyFrame(frameClass);
         if (isKeyFrame) {
             if(m_numKeyFrameInput == 0) {
                 MCSLogger.log("Received first key frame.");
@@ -345,8 +955,68 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
         }
         ++m_numFrameInput;
 
+        // Frames the client cannot use are not decoded, the decoding resumes at the next IDR
+        if (m_lifecycle.isRunning() && (!isFrameAdmitted() || (!isKeyFrame
+                && !H264FrameClassifier.isConfigFrame(frameClass) && isOutputLagging()))) {
+            if (!m_refusingFrames) {
+                m_refusingFrames = true;
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "decodeImage: Refusing frames");
+            }
+            ++m_numFramesRefused;
+            skipUnqueuedFrame(frameBits, flags);
+            return true;
+        }
+        if (m_refusingFrames) {
+            m_refusingFrames = false;
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "decodeImage: Accepting frames again after %d refused", m_numFramesRefused);
+        }
+
+        // Skip the frames the codec cannot take right now, as long as the picture stays intact.
+        // After a recovery the frames are skipped up to the next IDR too.
+        if (m_skipUntilIdr) {
+            if (!isKeyFrame) {
+                // Parameter sets sent ahead of the IDR are stored, and sent along with it
+                skipUnqueuedFrame(frameBits, flags);
+                return true;
+            }
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "decodeImage: IDR received, resuming after %d skipped frames", m_numFramesSkipped);
+            m_skipUntilIdr = false;
+        } else if (FRAME_SKIPPING_ENABLED && H264FrameClassifier.isDisposable(frameClass) && isInputBackedUp()) {
+            onFrameSkipped(frameBits);
+            return true;
+        }
+
+        // A recovered codec has lost the parameter sets, unless the IDR brings them along
+        if (m_resendConfig && isKeyFrame) {
+            m_resendConfig = false;
+            if (!H264FrameClassifier.isConfigFrame(frameClass) && m_configFrameBits.getSize() > 0) {
+                decodeFrame(m_configFrameBits, m_timestampTracker.nextPresentationTimeUs(),
+                        MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            }
+        }
+
+        // Stamp the frame with its arrival time, so that it can be followed through the codec
+        long presentationTimeUs = m_timestampTracker.nextPresentationTimeUs();
+
         // Decode the raw video data
-        return decodeFrame(frameBits);
+        return decodeFrame(frameBits, presentationTimeUs, flags);
+    }
+
+    /**
+     * Rewrites the SPS NAL units of the frame to signal zero reorder frames.
+     *
+     * @param frameBits The encoded frame
+     * @return The rewritten frame, or the original one if no rewriting was needed. The
+     * rewritten frame is only valid until the next call.
+     */
+    private DataBuffer rewriteSps(DataBuffer frameBits) {
+        if (!m_spsVuiRewriter.rewrite(frameBits.getData(), frameBits.getPos(), frameBits.getSize())) {
+            return frameBits;
+        }
+        m_rewrittenFrameBits.resize(0);
+        m_rewrittenFrameBits.reset();
+        m_rewrittenFrameBits.addBytes(m_spsVuiRewriter.getOutput(), 0, m_spsVuiRewriter.getOutputSize());
+        return m_rewrittenFrameBits;
     }
 
     @Override
@@ -354,6 +1024,21 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
         return m_configFrameBits;
     }
 
+    /**
+     * Returns the width of the video the codec decodes, which follows the size changes signalled
+     * in-band. 0 before the first start.
+     */
+    public int getVideoWidth() {
+        return m_videoWidth;
+    }
+
+    /**
+     * Returns the height of the video the codec decodes, 0 before the first start.
+     */
+    public int getVideoHeight() {
+        return m_videoHeight;
+    }
+
     /**
      * Return the number of frames that were fed into this decoder.
      * <p></p>
@@ -376,72 +1061,1855 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
         return m_numKeyFrameInput;
     }
 
-
-    private boolean decodeFrame(DataBuffer frameBits) {
-        boolean result = false;
-        try {
-            while (!result && m_decoder != null) {
-                int inputBufferIndex = m_decoder.dequeueInputBuffer(m_dequeInputBufferTimeoutUs);
-                if (inputBufferIndex >= 0) {
-                    ByteBuffer buffer = m_inputBuffers[inputBufferIndex];
-                    int        size   = frameBits.getSize();
-                    buffer.clear();
-                    buffer.put(frameBits.getData(), frameBits.getPos(), size);
-                    m_decoder.queueInputBuffer(inputBufferIndex, 0, size, 0, 0);
-                    result = true;
-                }
-            }
-        } catch(Exception e) {
-            MCSLogger.log(MCSLogger.eDebug, TAG, "decodeFrame: Failed with exception!");
-            MCSLogger.printStackTrace(TAG, e);
-
-            // Do not notify of error if we already killed the decoder
-            if(m_decoder != null) {
-                m_notification.onDecodingError();
-            }
-        }
-        return result;
+    /**
+     * Return the distribution of the time frames spend between being received and being queued
+     * into the codec.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Receive to queue latency histogram
+     */
+    public LatencyHistogram getReceiveToQueueLatency() {
+        return m_timestampTracker.getReceiveToQueueLatency();
     }
 
-    @Override
-    public int getType() {
-        return WLTypes.FRAME_ENCODING_H264;
+    /**
+     * Return the distribution of the time the codec needs to decode a queued frame.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Queue to output latency histogram
+     */
+    public LatencyHistogram getQueueToOutputLatency() {
+        return m_timestampTracker.getQueueToOutputLatency();
     }
 
-    @Override
-    public Bitmap getScreenshot() {
-        return null;
+    /**
+     * Return the distribution of the time between a frame leaving the codec and being rendered
+     * on the output surface. Render times are only reported on Android 6.0 and newer, before that
+     * the release of the output buffer is taken as the render time.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Output to render latency histogram
+     */
+    public LatencyHistogram getOutputToRenderLatency() {
+        return m_timestampTracker.getOutputToRenderLatency();
     }
 
-    @Override
-    public boolean canSkipFrames() {
-        // Frame skipping not supported for H264 encoding
-        return false;
+    /**
+     * Return the number of queued frames whose latencies are missing from the histograms,
+     * because they were not returned by the codec before the timestamp tracker forgot them.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Number of lost latency samples
+     */
+    public long getLostLatencySampleCount() {
+        return m_timestampTracker.getEvictedFrameCount();
     }
 
-    @Override
-    public boolean isVideoOutGenerated() {
-        return m_isVideoOutGenerated;
+    /**
+     * Return the number of decoded frames that were released without being rendered, because a
+     * newer frame was already available.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Total number of dropped output frames
+     */
+    public long getDroppedFrameCount() {
+        return m_numFramesDropped.get();
     }
 
-    @Override
+    /**
+     * Return the number of received frames that were skipped without being decoded.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Total number of skipped input frames
+     */
+    public long getSkippedFrameCount() {
+        return m_numFramesSkipped;
+    }
+
+    /**
+     * Return the number of received frames waiting for the codec.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Current depth of the input queue
+     */
+    public int getInputQueueDepth() {
+        if (m_asyncMode) {
+            return m_pendingFrameCount;
+        }
+        FrameInputRing inputRing = m_inputRing;
+        return inputRing != null ? inputRing.size() : 0;
+    }
+
+    /**
+     * Return the highest number of received frames that waited for the codec at once during the
+     * current session.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Maximum depth of the input queue
+     */
+    public int getMaxInputQueueDepth() {
+        return m_maxInputQueueDepth;
+    }
+
+    /**
+     * Return the number of received frames skipped because the input queue was full. They are
+     * included in {@link #getSkippedFrameCount()}.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Total number of input queue overflows
+     */
+    public long getInputOverflowCount() {
+        return m_numInputOverflows;
+    }
+
+    /**
+     * Return the number of received frames refused by the admission control, see
+     * {@link #canAcceptFrame()}. They are included in {@link #getSkippedFrameCount()}.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Total number of refused frames
+     */
+    public long getRefusedFrameCount() {
+        return m_numFramesRefused;
+    }
+
+    /**
+     * Return the number of in place recovery attempts (flush or reset of the codec) after codec
+     * errors and stalls.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Total number of in place recovery attempts
+     */
+    public long getRecoveryCount() {
+        return m_recoveryCounts.get(RECOVERY_TIER_FLUSH) + m_recoveryCounts.get(RECOVERY_TIER_RESET);
+    }
+
+    /**
+     * Return the number of times the in place recovery failed and the decoder had to be
+     * restarted.
+     * <p></p>
+     * Used for debugging purposes.
+     * <p></p>
+     * @return Total number of restarts requested by the recovery
+     */
+    public long getRecoveryRestartCount() {
+        return m_recoveryCounts.get(RECOVERY_TIER_REBUILD);
+    }
+
+    /**
+     * Return the time from the codec failure to its first output of the last completed recovery.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Duration of the last recovery in milliseconds, 0 if there was none
+     */
+    public long getLastRecoveryDurationMs() {
+        return m_lastRecoveryDurationMs.get();
+    }
+
+    /**
+     * Return the total time spent recovering the codec.
+     * <p></p>
+     * Used for debugging and tuning purposes.
+     * <p></p>
+     * @return Sum of the durations of all completed recoveries in milliseconds
+     */
+    public long getTotalRecoveryDurationMs() {
+        return m_totalRecoveryDurationMs.get();
+    }
+
+    /**
+     * Returns true if at least one H.264 codec candidate may still work: the
+     * {@link CodecSelectionCache} has not deprioritized it after repeated recent failures. When
+     * none is left, the raw frame decoder ({@link FrameDecoder_I420_GL}) is registered next to
+     * the H.264 one as a fallback.
+     *
+     * @return false if the raw frame decoder should be offered too
+     */
+    public static boolean hasUsableCodec() {
+        Set<String> failedCodecs = CodecSelectionCache.getDeprioritizedCodecs();
+        synchronized (H264_CODEC_CANDIDATES) {
+            for (MediaCodecCandidate candidate : H264_CODEC_CANDIDATES) {
+                if (!failedCodecs.contains(candidate.name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Enables or disables adaptive playback. When disabled, a resolution change of the host
+     * resets the codec and configures it for the new size. Takes effect on the next
+     * {@link #startDecoding}.
+     *
+     * @param enabled true to configure the codecs that support it for adaptive playback
+     */
+    public static void setAdaptivePlaybackEnabled(boolean enabled) {
+        ADAPTIVE_PLAYBACK_ENABLED = enabled;
+    }
+
+    /**
+     * Enables or disables the in place recovery of a working codec after errors and stalls.
+     * When disabled, every codec error makes the SDK restart the decoder.
+     *
+     * @param enabled true to flush or reset the codec before falling back to a restart
+     */
+    public static void setFastRecoveryEnabled(boolean enabled) {
+        FAST_RECOVERY_ENABLED = enabled;
+    }
+
+    /**
+     * Selects what happens to a received frame when the input queue is full.
+     *
+     * @param policy {@link #INPUT_OVERFLOW_DROP_UNTIL_IDR} or {@link #INPUT_OVERFLOW_BLOCK}
+     */
+    public static void setInputOverflowPolicy(int policy) {
+        if (policy != INPUT_OVERFLOW_DROP_UNTIL_IDR && policy != INPUT_OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("Unknown input overflow policy: " + policy);
+        }
+        INPUT_OVERFLOW_POLICY = policy;
+    }
+
+    /**
+     * Sets the time the receive thread may wait for room in the input queue with
+     * {@link #INPUT_OVERFLOW_BLOCK}.
+     *
+     * @param deadlineMs Maximum wait in milliseconds
+     */
+    public static void setInputQueueBlockDeadlineMs(long deadlineMs) {
+        INPUT_QUEUE_BLOCK_DEADLINE_MS = deadlineMs;
+    }
+
+    /**
+     * Enables or disables the skipping of frames under backpressure.
+     *
+     * @param enabled true to allow skipping of frames that are not needed by other frames
+     */
+    public static void setFrameSkippingEnabled(boolean enabled) {
+        FRAME_SKIPPING_ENABLED = enabled;
+    }
+
+    /**
+     * Enables or disables configuring the codec with the low latency format keys it supports
+     * (low latency mode, realtime priority, operating rate and vendor extensions). Takes effect
+     * on the next {@link #startDecoding}.
+     *
+     * @param enabled true to apply the supported low latency keys
+     */
+    public static void setLowLatencyFormatEnabled(boolean enabled) {
+        LOW_LATENCY_FORMAT_ENABLED = enabled;
+    }
+
+    /**
+     * Returns the time from {@link #startDecoding} to the first frame rendered to the output
+     * surface, in milliseconds.
+     *
+     * @return Time to the first frame of the current session, -1 if it is not on screen yet
+     */
+    public long getTimeToFirstFrameMs() {
+        return m_timeToFirstFrameMs;
+    }
+
+    /**
+     * Sets the check consulted for every received frame. The check is shared by all decoder
+     * instances.
+     *
+     * @param admissionCheck The check, null to use {@link #canAcceptFrame()} alone
+     */
+    public static void setFrameAdmissionCheck(FrameAdmissionCheck admissionCheck) {
+        FRAME_ADMISSION_CHECK = admissionCheck;
+    }
+
+    /**
+     * Sets the decoder instance that receives a copy of every frame decoded by the other
+     * instances. The SDK renders the projection to a single client display, a secondary display
+     * shows it through a mirror decoder of its own.
+     * <p></p>
+     * The mirror is created with {@link #createMirrorDecoder()}, and started and stopped by its
+     * owner. Frames reach it only while it runs. It joins the stream at the next IDR.
+     *
+     * @param mirror The mirror decoder, null to remove it
+     */
+    public static void setMirrorDecoder(FrameDecoder_H264_Custom mirror) {
+        if (mirror != null) {
+            mirror.m_mirrorJoinPending.set(true);
+        }
+        MIRROR_DECODER = mirror;
+    }
+
+    /**
+     * Creates a decoder instance to be used as the mirror decoder (see
+     * {@link #setMirrorDecoder}). It never takes nor parks a {@link DecoderPool} codec, so it
+     * always creates a codec of its own and delivers the codec callbacks on a thread of its own.
+     * It skips the frames up to the next IDR when its input queue is full, whatever the
+     * {@link #setInputOverflowPolicy input overflow policy}, so a slow mirror never delays the
+     * frames of the client display.
+     *
+     * @return The decoder, not started
+     */
+    public static FrameDecoder_H264_Custom createMirrorDecoder() {
+        FrameDecoder_H264_Custom decoder = new FrameDecoder_H264_Custom();
+        decoder.m_isMirror = true;
+        return decoder;
+    }
+
+    /**
+     * Returns the decoder set by {@link #setMirrorDecoder}, or null.
+     */
+    public static FrameDecoder_H264_Custom getMirrorDecoder() {
+        return MIRROR_DECODER;
+    }
+
+    /**
+     * Sets the listener notified when the first frame of a decoding session is on screen. The
+     * listener is shared by all decoder instances.
+     *
+     * @param listener The listener, null to remove it
+     */
+    public static void setVideoReadyListener(VideoReadyListener listener) {
+        VIDEO_READY_LISTENER = listener;
+    }
+
+    /**
+     * Moves the decoder output to an offscreen placeholder surface, for when the view showing
+     * the video goes away. The codec keeps decoding, so {@link #resumeOutput} shows the video
+     * again right away instead of restarting the decoder and waiting for a key-frame.
+     * <p></p>
+     * Requires Android 6.0+ ({@link MediaCodec#setOutputSurface}). Fails while the decoder is
+     * not running, races codecs or recovers from an error - pause the video instead then.
+     *
+     * @return true if the output has been suspended
+     */
+    public boolean suspendOutput() {
+        if (VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        synchronized (m_recoveryLock) {
+            if (m_outputSuspended) {
+                return true;
+            }
+            MediaCodec decoder = m_decoder;
+            boolean racing;
+            synchronized (m_asyncLock) {
+                racing = m_codecRace != null;
+            }
+            if (decoder == null || !m_lifecycle.isRunning() || !m_recoveryAllowed || racing
+                    || m_recoveryStartTimestamp != 0) {
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "suspendOutput: The decoder is not running");
+                return false;
+            }
+            try {
+                if (m_placeholderReader == null) {
+                    m_placeholderReader = ImageReader.newInstance(m_videoWidth, m_videoHeight, ImageFormat.PRIVATE, 2);
+                    m_placeholderReader.setOnImageAvailableListener(m_discardPlaceholderImage, m_callbackHandler);
+                }
+                // Hold the output from now on, the view surface is about to go away
+                m_outputSuspended = true;
+                decoder.setOutputSurface(m_placeholderReader.getSurface());
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "suspendOutput: Failed to move the output to the placeholder surface: ", e);
+                endOutputSuspension(true);
+                return false;
+            }
+            // A codec reset during the suspension configures the codec with the placeholder
+            m_outputSurface = m_placeholderReader.getSurface();
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "suspendOutput: Output suspended");
+        return true;
+    }
+
+    /**
+     * Moves the decoder output back to a view surface after {@link #suspendOutput} and renders
+     * the latest decoded frame to it. Does nothing if the output is not suspended.
+     *
+     * @param surface The surface of the view showing the video
+     * @return false if the codec could not be moved, the decoder needs to be restarted then
+     */
+    public boolean resumeOutput(Surface surface) {
+        boolean result = true;
+        synchronized (m_recoveryLock) {
+            if (!m_outputSuspended) {
+                return true;
+            }
+            MediaCodec decoder = m_decoder;
+            try {
+                if (decoder != null) {
+                    decoder.setOutputSurface(surface);
+                }
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "resumeOutput: Failed to move the output to the view surface: ", e);
+                result = false;
+            }
+            m_outputSurface = surface;
+            m_screenshotSurface = surface;
+            endOutputSuspension(result);
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "resumeOutput: Output resumed, result=%b", result);
+        return result;
+    }
+
+    /**
+     * @return true while the output is on the placeholder surface (see {@link #suspendOutput})
+     */
+    public boolean isOutputSuspended() {
+        return m_outputSuspended;
+    }
+
+    /**
+     * Creates and configures the codec the next session is going to use, in the background,
+     * so that {@link #startDecoding} can skip that step. Only a codec known to work on this
+     * device is pre-warmed. Call it while looking for a host.
+     *
+     * @param width Expected video width
+     * @param height Expected video height
+     */
+    public static void prewarmDecoder(int width, int height) {
+        if (!DECODER_POOLING_ENABLED || !USE_ASYNC_MODE || VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        // Take the best codec known to work, from this run or the previous ones
+        MediaCodecCandidate candidate;
+        synchronized (H264_CODEC_CANDIDATES) {
+            candidate = H264_CODEC_CANDIDATES.isEmpty() ? null : H264_CODEC_CANDIDATES.get(0);
+        }
+        if (candidate == null || (!candidate.name.equals(CodecSelectionCache.getWorkingCodec())
+                && !CodecSelectionCache.getRankedCodecs().contains(candidate.name))) {
+            return;
+        }
+        DecoderPool.prewarm(candidate.name, createVideoFormat(width, height, candidate), width, height,
+                LOW_LATENCY_FORMAT_ENABLED && !candidate.isLowLatencyFormatBroken);
+    }
+
+    /**
+     * Enables or disables keeping the codec configured between sessions (see
+     * {@link #prewarmDecoder}). Disabling it releases the pooled codec. Takes effect on the next
+     * {@link #startDecoding}.
+     *
+     * @param enabled true to reuse the codec across sessions
+     */
+    public static void setDecoderPoolingEnabled(boolean enabled) {
+        DECODER_POOLING_ENABLED = enabled;
+        if (!enabled) {
+            DecoderPool.clear();
+        }
+    }
+
+    /**
+     * Enables or disables racing the untested codec candidates against each other on start.
+     * Takes effect on the next {@link #startDecoding}.
+     *
+     * @param enabled true to start several untested candidates at once and keep the fastest,
+     *                false to try them one after the other
+     */
+    public static void setCodecRacingEnabled(boolean enabled) {
+        CODEC_RACING_ENABLED = enabled;
+    }
+
+    /**
+     * Enables or disables the low latency output policy. When enabled and the decoder falls
+     * behind, only the newest decoded frame is rendered and the stale ones are dropped. Takes
+     * effect on the next {@link #startDecoding}.
+     *
+     * @param enabled true to render only the newest of the ready frames, false to render every
+     *                decoded frame in order
+     */
+    public static void setLowLatencyOutputEnabled(boolean enabled) {
+        LOW_LATENCY_OUTPUT_ENABLED = enabled;
+    }
+
+    /**
+     * Enables or disables the vsync aligned presentation of the decoded frames. Takes effect on
+     * the next {@link #startDecoding}.
+     *
+     * @param enabled true to pace the frames to the display vsync, false to render them as soon
+     *                as they are decoded
+     */
+    public static void setFramePacingEnabled(boolean enabled) {
+        FRAME_PACING_ENABLED = enabled;
+    }
+
+    /**
+     * Sets how long a decoded frame may wait past its vsync before it is dropped in favour of a
+     * newer frame. Takes effect on the next {@link #startDecoding}.
+     *
+     * @param jitterBudgetUs The jitter budget in microseconds
+     */
+    public static void setFramePacingJitterBudgetUs(long jitterBudgetUs) {
+        FRAME_PACING_JITTER_BUDGET_US = jitterBudgetUs;
+    }
+
+
+    private boolean decodeFrame(DataBuffer frameBits, long presentationTimeUs, int flags) {
+        if (m_asyncMode) {
+            return decodeFrameAsync(frameBits, presentationTimeUs, flags);
+        }
+
+        // The feed thread hands the frame to the codec, the receive thread never waits for it
+        FrameInputRing inputRing = m_inputRing;
+        if (m_decoder == null || inputRing == null) {
+            return false;
+        }
+        if (inputRing.offer(frameBits, presentationTimeUs, flags)
+                || (getInputOverflowPolicy() == INPUT_OVERFLOW_BLOCK
+                    && inputRing.offer(frameBits, presentationTimeUs, flags, INPUT_QUEUE_BLOCK_DEADLINE_MS))) {
+            m_inputOverflowing = false;
+            m_maxInputQueueDepth = inputRing.getMaxSize();
+            return true;
+        }
+        onInputOverflow(frameBits, flags);
+        return true;
+    }
+
+    /**
+     * Skips a frame that did not fit into the input queue. Called on the SDK receive thread.
+     */
+    private void onInputOverflow(DataBuffer frameBits, int flags) {
+        ++m_numInputOverflows;
+        if (!m_inputOverflowing) {
+            m_inputOverflowing = true;
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "onInputOverflow: Input queue full, skipping frames");
+        }
+        skipUnqueuedFrame(frameBits, flags);
+    }
+
+    /**
+     * Skips a received frame the codec will not see. If other frames depend on it, the frames
+     * up to the next IDR are skipped too, and the parameter sets it carried are sent with that
+     * IDR. Called on the SDK receive thread.
+     */
+    private void skipUnqueuedFrame(DataBuffer frameBits, int flags) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0
+                || H264FrameClassifier.isConfigFrame(m_frameClassifier.classify(frameBits))) {
+            // The codec may not have seen these parameter sets
+            m_resendConfig = true;
+        }
+        onFrameSkipped(frameBits);
+    }
+
+    /**
+     * Returns the answer of the {@link FrameAdmissionCheck}, or of {@link #canAcceptFrame()} if
+     * none is set.
+     */
+    private boolean isFrameAdmitted() {
+        FrameAdmissionCheck admissionCheck = FRAME_ADMISSION_CHECK;
+        // The check answers for the client display, the mirror decides for itself
+        if (admissionCheck == null || this == MIRROR_DECODER) {
+            return canAcceptFrame();
+        }
+        return admissionCheck.canProcessFrame();
+    }
+
+    /**
+     * Decodes a frame received by another decoder instance. Called on the SDK receive thread.
+     * <p></p>
+     * A mirror that joins a running stream starts from the parameter sets the other decoder has
+     * stored and skips the frames up to the next IDR.
+     *
+     * @param frameBits The encoded frame
+     * @param configFrameBits The parameter sets stored by the decoder that received the frame
+     */
+    private void mirrorFrame(DataBuffer frameBits, DataBuffer configFrameBits) {
+        if (!m_lifecycle.isRunning()) {
+            return;
+        }
+        if (m_mirrorJoinPending.compareAndSet(true, false)) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "mirrorFrame: Joining the stream, waiting for the next IDR");
+            m_skipUntilIdr = true;
+            m_resendConfig = true;
+            if (configFrameBits.getSize() > 0) {
+                decodeImage(configFrameBits);
+            }
+        }
+        try {
+            decodeImage(frameBits);
+        } catch (Exception e) {
+            // The mirror must never break the decoding of the client display
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "mirrorFrame: Decoding failed: " + e);
+        }
+    }
+
+    /**
+     * Returns true if a frame received now would be decoded and shown in time: the decoder is
+     * running, its output goes to a valid surface (or is held back for the next one, see
+     * {@link #suspendOutput()}) and no more than {@link #ADMISSION_MAX_INPUT_BACKLOG} frames
+     * wait for the codec. Does not lock, it is asked for every frame.
+     * <p></p>
+     * The client answers {@code canProcessFrame()} with this, together with its own state.
+     *
+     * @return true if the decoder can use a new frame
+     */
+    public boolean canAcceptFrame() {
+        if (!m_lifecycle.isRunning()) {
+            return false;
+        }
+        if (!m_outputSuspended) {
+            Surface outputSurface = m_outputSurface;
+            if (outputSurface == null || !outputSurface.isValid()) {
+                return false;
+            }
+        }
+        return getInputQueueDepth() < ADMISSION_MAX_INPUT_BACKLOG;
+    }
+
+    /**
+     * Returns true if the codec has taken {@link #ADMISSION_MAX_OUTPUT_LAG_FRAMES} frames without
+     * showing one, within {@link #ADMISSION_MAX_OUTPUT_LAG_MS} of its last output. The
+     * predicted frames are refused then, the IDR and config frames are always fed. After the
+     * time limit the codec is fed again, in case it needs more input before its next output.
+     */
+    private boolean isOutputLagging() {
+        // A codec that has not shown a frame yet is still waiting for its first IDR
+        return m_isVideoOutGenerated
+                && m_framesQueuedSinceOutput.get() >= ADMISSION_MAX_OUTPUT_LAG_FRAMES
+                && System.currentTimeMillis() - m_lastOutputTimestamp < ADMISSION_MAX_OUTPUT_LAG_MS;
+    }
+
+    /**
+     * Returns true if the codec is not keeping up with the input: frames are waiting for a free
+     * input slot (asynchronous mode) or the last frame had to wait for one (synchronous mode).
+     */
+    private boolean isInputBackedUp() {
+        if (m_asyncMode) {
+            return m_pendingFrameCount > 0;
+        }
+        return m_inputBackpressure;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #decodeFrame(DataBuffer, long, int)}. Never waits for the codec: the
+     * frame is either copied straight into a free codec input buffer or parked in a pooled direct
+     * buffer until the codec reports the next free slot through
+     * {@link AsyncDecodeCallback#onInputBufferAvailable}.
+     */
+    private boolean decodeFrameAsync(DataBuffer frameBits, long presentationTimeUs, int flags) {
+        boolean result = false;
+        boolean overflow = false;
+        try {
+            synchronized (m_asyncLock) {
+                if (m_asyncRunning && m_codecRace != null) {
+                    m_codecRace.feed(frameBits, presentationTimeUs, flags,
+                            H264FrameClassifier.isKeyFrame(m_frameClassifier.classify(frameBits)));
+                    m_timestampTracker.onFrameQueued(presentationTimeUs);
+                    result = true;
+                } else if (m_asyncRunning && m_decoder != null) {
+                    if (!m_codecPaused && getInputOverflowPolicy() == INPUT_OVERFLOW_BLOCK && isPendingFrameQueueFull()) {
+                        awaitPendingFrameSpace();
+                    }
+                    // A paused codec is being flushed or reset, the frame is parked
+                    Integer inputBufferIndex = m_codecPaused ? null : m_freeInputSlots.poll();
+                    if (!m_asyncRunning || m_decoder == null) {
+                        // Stopped while waiting
+                    } else if (inputBufferIndex != null && m_pendingFrames.isEmpty()) {
+                        queueInputFrame(m_decoder, inputBufferIndex, frameBits, presentationTimeUs, flags);
+                        result = true;
+                    } else {
+                        if (inputBufferIndex != null) {
+                            m_freeInputSlots.addFirst(inputBufferIndex);
+                        }
+                        if (m_pendingFrames.size() >= INPUT_QUEUE_CAPACITY) {
+                            overflow = true;
+                        } else {
+                            m_pendingFrames.add(m_pendingFramePool.acquire(frameBits, presentationTimeUs, flags));
+                            m_pendingFrameCount = m_pendingFrames.size();
+                            m_inputOverflowing = false;
+                            if (m_pendingFrames.size() > m_maxInputQueueDepth) {
+                                m_maxInputQueueDepth = m_pendingFrames.size();
+                            }
+                        }
+                        result = true;
+                    }
+                }
+            }
+            if (overflow) {
+                onInputOverflow(frameBits, flags);
+            }
+        } catch(Exception e) {
+            MCSLogger.log(MCSLogger.eDebug, TAG, "decodeFrameAsync: Failed with exception!");
+            MCSLogger.printStackTrace(TAG, e);
+
+            // Do not notify of error if we already killed the decoder
+            if(m_decoder != null) {
+                onCodecError();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if no free input slot is left and the parked frames fill the input queue.
+     * Called with m_asyncLock held.
+     */
+    private boolean isPendingFrameQueueFull() {
+        return m_freeInputSlots.isEmpty() && m_pendingFrames.size() >= INPUT_QUEUE_CAPACITY;
+    }
+
+    /**
+     * Returns the input overflow policy of this instance. The mirror decoder always skips.
+     */
+    private int getInputOverflowPolicy() {
+        return m_isMirror ? INPUT_OVERFLOW_DROP_UNTIL_IDR : INPUT_OVERFLOW_POLICY;
+    }
+
+    /**
+     * Waits up to {@link #INPUT_QUEUE_BLOCK_DEADLINE_MS} for the codec to take a parked frame.
+     * Called with m_asyncLock held, which is released while waiting.
+     */
+    private void awaitPendingFrameSpace() {
+        long deadline = System.currentTimeMillis() + INPUT_QUEUE_BLOCK_DEADLINE_MS;
+        long remaining;
+        while (m_asyncRunning && !m_codecPaused && isPendingFrameQueueFull()
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                m_asyncLock.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the frame into the codec input buffer with the given index and submits it.
+     */
+    private void queueInputFrame(MediaCodec decoder, int inputBufferIndex, DataBuffer frameBits, long presentationTimeUs, int flags) {
+        ByteBuffer buffer = decoder.getInputBuffer(inputBufferIndex);
+        int        size   = frameBits.getSize();
+        buffer.clear();
+        buffer.put(frameBits.getData(), frameBits.getPos(), size);
+        decoder.queueInputBuffer(inputBufferIndex, 0, size, presentationTimeUs, flags);
+        onFrameQueued(presentationTimeUs);
+    }
+
+    /**
+     * Copies a parked frame into the codec input buffer with the given index and submits it.
+     */
+    private void queueInputFrame(MediaCodec decoder, int inputBufferIndex, FrameBufferPool.Frame frame) {
+        ByteBuffer buffer = decoder.getInputBuffer(inputBufferIndex);
+        int        size   = frame.data.remaining();
+        buffer.clear();
+        buffer.put(frame.data);
+        decoder.queueInputBuffer(inputBufferIndex, 0, size, frame.presentationTimeUs, frame.flags);
+        onFrameQueued(frame.presentationTimeUs);
+    }
+
+    /**
+     * Hands a decoded output buffer over for rendering, either to the frame pacer or directly
+     * to the output surface.
+     */
+    private void renderOutputBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        m_timestampTracker.onFrameOutput(info.presentationTimeUs);
+        onCodecOutput();
+        if (m_outputSuspended && info.size > 0 && holdSuspendedOutput(codec, index)) {
+            return;
+        }
+        FramePacer framePacer = m_framePacer;
+        if (framePacer != null && info.size > 0) {
+            framePacer.submit(codec, index, info.presentationTimeUs);
+        } else {
+            codec.releaseOutputBuffer(index, info.size > 0);
+            if (VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                // No render callbacks, take the release as the render time
+                m_timestampTracker.onFrameRendered(info.presentationTimeUs, System.nanoTime());
+                markVideoOutGenerated();
+            }
+        }
+        if (info.size > 0 && !m_isVideoOutGenerated && ++m_renderedWithoutCallback >= RENDER_CALLBACK_FALLBACK_FRAMES) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "renderOutputBuffer: No render callbacks, taking the output as rendered");
+            markVideoOutGenerated();
+        }
+    }
+
+    /**
+     * Releases a decoded output buffer without rendering it and counts it as dropped.
+     */
+    private void dropOutputBuffer(MediaCodec codec, int index) {
+        codec.releaseOutputBuffer(index, false);
+        m_numFramesDropped.incrementAndGet();
+        onCodecOutput();
+    }
+
+    /**
+     * Counts a frame submitted to the codec, for the latency statistics and the stall watchdog.
+     */
+    private void onFrameQueued(long presentationTimeUs) {
+        m_timestampTracker.onFrameQueued(presentationTimeUs);
+        m_framesQueuedSinceOutput.incrementAndGet();
+    }
+
+    /**
+     * Notes that the codec produced output. Completes a pending recovery.
+     */
+    private void onCodecOutput() {
+        m_lastOutputTimestamp = System.currentTimeMillis();
+        m_framesQueuedSinceOutput.set(0);
+        long recoveryStartTimestamp = m_recoveryStartTimestamp;
+        if (recoveryStartTimestamp != 0) {
+            m_recoveryStartTimestamp = 0;
+            long duration = m_lastOutputTimestamp - recoveryStartTimestamp;
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "Decoder recovered with tier %d in %d milliseconds",
+                    m_recoveryTier, duration);
+            m_recoveryTier = 0;
+            m_lastRecoveryDurationMs.set(duration);
+            m_totalRecoveryDurationMs.addAndGet(duration);
+        }
+    }
+
+    /**
+     * Handles an error of the codec reported on the SDK thread or the callback thread. The error
+     * is handled on the callback thread by {@link #handleCodecError()}.
+     */
+    private void onCodecError() {
+        Handler callbackHandler = m_callbackHandler;
+        if (callbackHandler == null) {
+            m_notification.onDecodingError();
+        } else if (m_recoveryPosted.compareAndSet(false, true)) {
+            callbackHandler.post(m_handleCodecError);
+        }
+    }
+
+    /**
+     * Recovers a working codec in place. A codec that has not produced output yet is reported
+     * to the SDK right away, the codec selection takes care of it.
+     *
+     * @return true if the codec was recovered in place and can be used further
+     */
+    private boolean handleCodecError() {
+        MediaCodecCandidate candidate = m_codecCandidate;
+        if (FAST_RECOVERY_ENABLED && candidate != null && candidate.isWorking) {
+            return recoverDecoder();
+        }
+        if (m_recoveryAllowed) {
+            m_notification.onDecodingError();
+        }
+        return false;
+    }
+
+    /**
+     * Brings a failed or stalled codec back with the cheapest step that has not been tried
+     * since the codec last produced output: {@link #RECOVERY_TIER_FLUSH}, then
+     * {@link #RECOVERY_TIER_RESET}. When both have been tried, the error is reported to the SDK,
+     * which restarts the decoder ({@link #RECOVERY_TIER_REBUILD}).
+     * <p></p>
+     * The recovery is complete when the codec produces output again, see
+     * {@link #onCodecOutput()}.
+     *
+     * @return true if the codec was recovered in place and can be used further
+     */
+    private boolean recoverDecoder() {
+        synchronized (m_recoveryLock) {
+            MediaCodec decoder = m_decoder;
+            if (!m_recoveryAllowed || decoder == null) {
+                return false;
+            }
+            if (m_recoveryStartTimestamp == 0) {
+                m_recoveryStartTimestamp = System.currentTimeMillis();
+            }
+            int tier = m_recoveryTier + 1;
+            while (tier < RECOVERY_TIER_REBUILD) {
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "recoverDecoder: Trying recovery tier %d", tier);
+                m_recoveryTier = tier;
+                m_recoveryCounts.incrementAndGet(tier);
+                boolean recovered = tier == RECOVERY_TIER_FLUSH ? flushDecoder(decoder) : resetDecoder(decoder, false);
+                if (recovered) {
+                    // Give the codec the stall timeout to come back
+                    m_lastOutputTimestamp = System.currentTimeMillis();
+                    m_framesQueuedSinceOutput.set(0);
+                    return true;
+                }
+                ++tier;
+            }
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "recoverDecoder: In place recovery failed, restarting the decoder");
+            m_recoveryTier = RECOVERY_TIER_REBUILD;
+            m_recoveryCounts.incrementAndGet(RECOVERY_TIER_REBUILD);
+            m_notification.onDecodingError();
+            return false;
+        }
+    }
+
+    /**
+     * Flushes the codec and waits for the next IDR, which is preceded by the stored SPS/PPS.
+     *
+     * @return true on success
+     */
+    private boolean flushDecoder(MediaCodec decoder) {
+        try {
+            if (m_asyncMode) {
+                // The codec is called without m_asyncLock, see m_codecPaused
+                setCodecPaused(true);
+                try {
+                    decoder.flush();
+                    synchronized (m_asyncLock) {
+                        discardCodecBuffers(false);
+                    }
+                    // A flushed codec in asynchronous mode only resumes after start()
+                    decoder.start();
+                    m_resendConfig = true;
+                    m_skipUntilIdr = true;
+                } finally {
+                    setCodecPaused(false);
+                }
+            } else {
+                synchronized (m_syncInputLock) {
+                    synchronized (m_syncOutputLock) {
+                        decoder.flush();
+                        discardCodecBuffers(false);
+                        m_resendConfig = true;
+                        m_skipUntilIdr = true;
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "flushDecoder: Exception raised while flushing the decoder: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Resets the codec, configures it again and waits for the next IDR, which is preceded by the
+     * stored SPS/PPS.
+     *
+     * @param keepQueuedFrames true to feed the frames received meanwhile to the reconfigured
+     * codec instead of waiting for the next IDR (see {@link #m_reconfigureDecoder})
+     * @return true on success
+     */
+    private boolean resetDecoder(MediaCodec decoder, boolean keepQueuedFrames) {
+        if (VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            if (m_asyncMode) {
+                // The codec is called without m_asyncLock, see m_codecPaused
+                setCodecPaused(true);
+                try {
+                    decoder.reset();
+                    synchronized (m_asyncLock) {
+                        discardCodecBuffers(keepQueuedFrames);
+                    }
+                    configureResetDecoder(decoder);
+                    m_resendConfig = true;
+                    m_skipUntilIdr = !keepQueuedFrames;
+                } finally {
+                    setCodecPaused(false);
+                }
+            } else {
+                synchronized (m_syncInputLock) {
+                    synchronized (m_syncOutputLock) {
+                        decoder.reset();
+                        discardCodecBuffers(keepQueuedFrames);
+                        configureResetDecoder(decoder);
+                        m_resendConfig = true;
+                        m_skipUntilIdr = !keepQueuedFrames;
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "resetDecoder: Exception raised while resetting the decoder: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Configures and starts a codec after {@link MediaCodec#reset()}, for the current video size.
+     */
+    private void configureResetDecoder(MediaCodec decoder) {
+        MediaCodecCandidate candidate = m_codecCandidate;
+        MediaFormat fmt = createVideoFormat(m_videoWidth, m_videoHeight, false, candidate);
+        setConfiguredVideoSize(candidate, m_videoWidth, m_videoHeight);
+        if (LOW_LATENCY_FORMAT_ENABLED && !candidate.isLowLatencyFormatBroken) {
+            LowLatencyFormatConfigurator.apply(decoder, VIDEO_FORMAT, fmt, m_videoWidth, m_videoHeight);
+        }
+        if (m_asyncMode) {
+            m_asyncCallback = new AsyncDecodeCallback(candidate);
+            DecoderPool.Entry pooledCodec = m_pooledCodec;
+            if (pooledCodec != null) {
+                pooledCodec.callback.setTarget(m_asyncCallback);
+                decoder.setCallback(pooledCodec.callback, m_callbackHandler);
+            } else {
+                decoder.setCallback(m_asyncCallback, m_callbackHandler);
+            }
+        }
+        if (VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            decoder.setOnFrameRenderedListener(m_frameRenderedListener, m_callbackHandler);
+        }
+        decoder.configure(fmt, m_outputSurface, null, 0);
+        m_codecReconfigured = true;
+        decoder.start();
+    }
+
+    /**
+     * Pauses or resumes the codec input in asynchronous mode, see {@link #m_codecPaused}.
+     */
+    private void setCodecPaused(boolean paused) {
+        synchronized (m_asyncLock) {
+            m_codecPaused = paused;
+            if (!paused) {
+                // Release a receive thread waiting for room in the input queue
+                m_asyncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forgets the codec buffers that are invalid after a flush or reset. Called with the input
+     * lock held, and in synchronous mode the output lock too.
+     *
+     * @param keepQueuedFrames true to keep the received frames that wait for the codec
+     */
+    private void discardCodecBuffers(boolean keepQueuedFrames) {
+        m_freeInputSlots.clear();
+        if (!keepQueuedFrames) {
+            for (FrameBufferPool.Frame frame : m_pendingFrames) {
+                m_pendingFramePool.release(frame);
+            }
+            m_pendingFrames.clear();
+            m_pendingFrameCount = 0;
+            if (m_asyncMode) {
+                m_asyncLock.notifyAll();
+            } else if (m_inputRing != null) {
+                // The input lock makes this thread the consumer of the ring
+                m_inputRing.clear();
+            }
+        }
+        FramePacer framePacer = m_framePacer;
+        if (framePacer != null) {
+            framePacer.clear();
+        }
+        AsyncDecodeCallback asyncCallback = m_asyncCallback;
+        if (asyncCallback != null) {
+            asyncCallback.discardHeldOutput();
+        }
+        synchronized (m_suspendedOutputLock) {
+            m_suspendedOutputCodec = null;
+            m_suspendedOutputIndex = -1;
+        }
+    }
+
+    /**
+     * Called when a frame is known to be on the output surface. Sets the
+     * {@link #isVideoOutGenerated()} flag and reports the time to the first frame of the session.
+     */
+    private void markVideoOutGenerated() {
+        if (m_isVideoOutGenerated) {
+            return;
+        }
+        m_isVideoOutGenerated = true;
+        if (m_timeToFirstFrameMs < 0) {
+            long timeToFirstFrame = System.currentTimeMillis() - m_decodingStartTimestamp;
+            m_timeToFirstFrameMs = timeToFirstFrame;
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "First frame rendered %d milliseconds after the start", timeToFirstFrame);
+            VideoReadyListener listener = VIDEO_READY_LISTENER;
+            if (listener != null) {
+                listener.onVideoReady(this, timeToFirstFrame);
+            }
+        }
+    }
+
+    /**
+     * Keeps the given output buffer back while the output is suspended, releasing the one held
+     * before it. Returns false if the output has been resumed in the meantime.
+     */
+    private boolean holdSuspendedOutput(MediaCodec codec, int index) {
+        synchronized (m_suspendedOutputLock) {
+            if (!m_outputSuspended) {
+                return false;
+            }
+            if (m_suspendedOutputIndex >= 0) {
+                try {
+                    m_suspendedOutputCodec.releaseOutputBuffer(m_suspendedOutputIndex, false);
+                } catch (IllegalStateException e) {
+                    MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "holdSuspendedOutput: Failed to release the held output: ", e);
+                }
+            }
+            m_suspendedOutputCodec = codec;
+            m_suspendedOutputIndex = index;
+            return true;
+        }
+    }
+
+    /**
+     * Ends the output suspension. The held output buffer is rendered if requested, released
+     * otherwise.
+     */
+    private void endOutputSuspension(boolean renderHeldOutput) {
+        synchronized (m_suspendedOutputLock) {
+            m_outputSuspended = false;
+            if (m_suspendedOutputIndex >= 0) {
+                try {
+                    m_suspendedOutputCodec.releaseOutputBuffer(m_suspendedOutputIndex, renderHeldOutput);
+                } catch (IllegalStateException e) {
+                    MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "endOutputSuspension: Failed to release the held output: ", e);
+                }
+            }
+            m_suspendedOutputCodec = null;
+            m_suspendedOutputIndex = -1;
+        }
+    }
+
+    /**
+     * Drops the frames the codec renders to the placeholder surface.
+     */
+    private final ImageReader.OnImageAvailableListener m_discardPlaceholderImage = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            try {
+                Image image = reader.acquireLatestImage();
+                if (image != null) {
+                    image.close();
+                }
+            } catch (IllegalStateException e) {
+                // The reader has been closed
+            }
+        }
+    };
+
+    private void startCallbackThread() {
+        m_callbackThread = ThreadScheduler.newHandlerThread(ThreadClass.VIDEO, "FrameDecodeCallbackThread");
+        m_callbackThread.start();
+        m_callbackHandler = new Handler(m_callbackThread.getLooper());
+    }
+
+    private void stopCallbackThread() {
+        HandlerThread callbackThread = m_callbackThread;
+        m_callbackThread = null;
+        m_callbackHandler = null;
+        if (callbackThread != null) {
+            callbackThread.quitSafely();
+            try {
+                callbackThread.join();
+            } catch (InterruptedException ex) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "stopCallbackThread: Interrupted while joining the callback thread: ", ex);
+            }
+        }
+    }
+
+    /**
+     * Releases a codec that failed during {@link #startDecoding}, so that the next start
+     * begins from a clean state.
+     */
+    private void releaseFailedDecoder() {
+        CodecRace codecRace;
+        synchronized (m_asyncLock) {
+            m_asyncRunning = false;
+            m_freeInputSlots.clear();
+            m_pendingFrames.clear();
+            m_pendingFrameCount = 0;
+            m_codecPaused = false;
+            m_pendingFramePool.clear();
+            // Release a receive thread waiting for room in the input queue
+            m_asyncLock.notifyAll();
+            codecRace = m_codecRace;
+            m_codecRace = null;
+        }
+        if (codecRace != null) {
+            codecRace.release();
+        }
+        if (m_decoder != null) {
+            try {
+                m_decoder.release();
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "releaseFailedDecoder: Exception raised while releasing the decoder: ", e);
+            }
+            m_decoder = null;
+        }
+        m_pooledCodec = null;
+        m_outputSurface = null;
+        if (m_framePacer != null) {
+            m_framePacer.stop();
+            m_framePacer = null;
+        }
+        stopCallbackThread();
+        m_asyncMode = false;
+    }
+
+    /**
+     * Creates the codec format for the given video size.
+     *
+     * @param withParameterSets Add the stored parameter sets as codec specific data when they
+     *                          match the size. Only on the SDK thread, which updates them.
+     * @param candidate The codec the format is for
+     */
+    private MediaFormat createVideoFormat(int width, int height, boolean withParameterSets,
+                                          MediaCodecCandidate candidate) {
+        MediaFormat fmt = createVideoFormat(width, height, candidate);
+
+        // Hand the known parameter sets over up front, so the codec does not depend on the
+        // in-band ones. Only if they describe the requested size, they may be from an older stream.
+        if (withParameterSets && m_parameterSets.isComplete()
+                && m_parameterSets.getWidth() == width && m_parameterSets.getHeight() == height) {
+            fmt.setByteBuffer("csd-0", m_parameterSets.getSpsBuffer());
+            fmt.setByteBuffer("csd-1", m_parameterSets.getPpsBuffer());
+        }
+        return fmt;
+    }
+
+    /**
+     * Creates the codec format for the given video size, without codec specific data. Sets the
+     * adaptive playback maximum size if the candidate supports it.
+     */
+    private static MediaFormat createVideoFormat(int width, int height, MediaCodecCandidate candidate) {
+        MediaFormat fmt;
+        if (VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            fmt = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        } else {
+            fmt = MediaFormat.createVideoFormat(VIDEO_FORMAT, width, height);
+        }
+
+        CodecInfo codecInfo = WLCompatibilityUtils_Custom.getCodecInfo();
+        if (codecInfo.getInputBufferSize() != null) {
+            fmt.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, codecInfo.getInputBufferSize().intValue());
+        }
+        if (useAdaptivePlayback(candidate)) {
+            fmt.setInteger(MediaFormat.KEY_MAX_WIDTH, Math.max(width, ADAPTIVE_MAX_WIDTH));
+            fmt.setInteger(MediaFormat.KEY_MAX_HEIGHT, Math.max(height, ADAPTIVE_MAX_HEIGHT));
+        }
+        return fmt;
+    }
+
+    /**
+     * Returns true if the candidate is to be configured for adaptive playback: it is enabled
+     * and the codec advertises {@link MediaCodecInfo.CodecCapabilities#FEATURE_AdaptivePlayback}
+     * (Android 4.4+).
+     */
+    private static boolean useAdaptivePlayback(MediaCodecCandidate candidate) {
+        if (!ADAPTIVE_PLAYBACK_ENABLED || candidate == null || VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        if (candidate.isAdaptivePlaybackSupported == null) {
+            boolean supported = false;
+            try {
+                for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+                    MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+                    if (codecInfo.getName().equals(candidate.name)) {
+                        supported = codecInfo.getCapabilitiesForType(VIDEO_FORMAT)
+                                .isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "useAdaptivePlayback: Cannot read the capabilities of %s: %s", candidate.name, e);
+            }
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "useAdaptivePlayback: %s supports adaptive playback: %b", candidate.name, supported);
+            candidate.isAdaptivePlaybackSupported = supported;
+        }
+        return candidate.isAdaptivePlaybackSupported;
+    }
+
+    /**
+     * Records the size limits of the codec just configured for the given video size.
+     */
+    private void setConfiguredVideoSize(MediaCodecCandidate candidate, int width, int height) {
+        m_adaptivePlayback = useAdaptivePlayback(candidate);
+        m_maxVideoWidth = m_adaptivePlayback ? Math.max(width, ADAPTIVE_MAX_WIDTH) : width;
+        m_maxVideoHeight = m_adaptivePlayback ? Math.max(height, ADAPTIVE_MAX_HEIGHT) : height;
+    }
+
+    /**
+     * Called when the stored SPS describes a new video size. An adaptive codec that can hold
+     * the new size keeps decoding as is, others are reset and configured for the new size by
+     * {@link #m_reconfigureDecoder} on the callback thread.
+     * <p></p>
+     * Runs on the SDK thread, which does not call nor wait for the codec here. In asynchronous
+     * mode the frames of the new size are parked until the codec has been reconfigured.
+     */
+    private void onVideoSizeChanged(int width, int height) {
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "onVideoSizeChanged: %dx%d -> %dx%d",
+                m_videoWidth, m_videoHeight, width, height);
+        m_videoWidth = width;
+        m_videoHeight = height;
+        Handler callbackHandler = m_callbackHandler;
+        if (m_decoder == null || callbackHandler == null || !m_recoveryAllowed) {
+            // Not running, or racing: the codec is configured for the new size on start,
+            // or recovers through the codec errors
+            return;
+        }
+        if (m_adaptivePlayback && width <= m_maxVideoWidth && height <= m_maxVideoHeight) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "onVideoSizeChanged: Continuing with adaptive playback");
+            return;
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "onVideoSizeChanged: Reconfiguring the codec");
+        if (m_asyncMode) {
+            synchronized (m_asyncLock) {
+                m_codecPaused = true;
+                // The parked frames are of the old size
+                for (FrameBufferPool.Frame frame : m_pendingFrames) {
+                    m_pendingFramePool.release(frame);
+                }
+                m_pendingFrames.clear();
+                m_pendingFrameCount = 0;
+            }
+        }
+        callbackHandler.post(m_reconfigureDecoder);
+    }
+
+    /**
+     * Configures the codec for the new video size, see {@link #onVideoSizeChanged}. The frames
+     * received since the size change are fed to the reconfigured codec.
+     */
+    private final Runnable m_reconfigureDecoder = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (m_recoveryLock) {
+                MediaCodec decoder = m_decoder;
+                if (decoder == null || !m_recoveryAllowed) {
+                    if (m_asyncMode) {
+                        setCodecPaused(false);
+                    }
+                    return;
+                }
+                if (resetDecoder(decoder, true)) {
+                    // Do not take the reconfiguration for a stall
+                    m_lastOutputTimestamp = System.currentTimeMillis();
+                    m_framesQueuedSinceOutput.set(0);
+                } else {
+                    m_notification.onDecodingError();
+                }
+            }
+        }
+    };
+
+    /**
+     * Starts the selected candidate through the {@link DecoderPool}: takes the pooled codec if
+     * it matches, otherwise creates one. Asynchronous mode only.
+     */
+    private void startPooledCodec(MediaFormat fmt, int width, int height) throws IOException {
+        m_pooledCodec = DecoderPool.take(m_codecCandidate.name, width, height);
+        if (m_pooledCodec != null) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Using the pooled codec");
+            m_decoder = m_pooledCodec.codec;
+            m_decoder.setOutputSurface(m_outputSurface);
+            // An adaptive codec may have been configured for another size
+            m_adaptivePlayback = m_pooledCodec.adaptive;
+            m_maxVideoWidth = m_pooledCodec.maxWidth;
+            m_maxVideoHeight = m_pooledCodec.maxHeight;
+        } else {
+            boolean lowLatency = LOW_LATENCY_FORMAT_ENABLED && !m_codecCandidate.isLowLatencyFormatBroken;
+            m_pooledCodec = DecoderPool.create(m_codecCandidate.name, fmt, width, height, lowLatency, m_outputSurface);
+            m_decoder = m_pooledCodec.codec;
+            setConfiguredVideoSize(m_codecCandidate, width, height);
+            LowLatencyFormatConfigurator.logAcceptedKeys(m_decoder, m_pooledCodec.lowLatencyKeys);
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Using asynchronous decoding mode");
+        m_decoder.setOnFrameRenderedListener(m_frameRenderedListener, m_callbackHandler);
+        m_asyncCallback = new AsyncDecodeCallback(m_codecCandidate);
+        m_pooledCodec.callback.setTarget(m_asyncCallback);
+        synchronized (m_asyncLock) {
+            m_asyncRunning = true;
+        }
+        // Starts a configured codec as well as a flushed one
+        m_decoder.start();
+    }
+
+    /**
+     * Returns true if the codec of the session can be kept for the next one: it works, is not
+     * in the middle of a recovery and is still configured as its pool entry says. A codec reset
+     * for a new video size or by a recovery is released instead.
+     */
+    private boolean canParkDecoder() {
+        MediaCodecCandidate candidate = m_codecCandidate;
+        return candidate != null && candidate.isWorking && m_recoveryStartTimestamp == 0
+                && !m_codecReconfigured;
+    }
+
+    /**
+     * Starts the given candidates as a {@link CodecRace}. The frames are fed to all of them until
+     * the first one produces output and becomes {@link #m_decoder}.
+     */
+    private void startCodecRace(List<MediaCodecCandidate> candidates, int width, int height) {
+        List<String> codecNames = new ArrayList<String>();
+        for (MediaCodecCandidate candidate : candidates) {
+            candidate.isTested = true;
+            codecNames.add(candidate.name);
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startCodecRace: Racing codecs %s", codecNames);
+
+        CodecRace codecRace = new CodecRace(codecNames, width, height, m_callbackHandler, m_asyncLock,
+                m_pendingFramePool, INPUT_QUEUE_CAPACITY, m_codecRaceListener);
+        synchronized (m_asyncLock) {
+            m_codecRace = codecRace;
+            m_asyncRunning = true;
+        }
+        if (codecRace.start() == 0) {
+            throw new IllegalStateException("None of the racing codecs could be started");
+        }
+    }
+
+    /**
+     * Reports the actual render time of the decoded frames (Android 6.0+).
+     */
+    private final MediaCodec.OnFrameRenderedListener m_frameRenderedListener = new MediaCodec.OnFrameRenderedListener() {
+        @Override
+        public void onFrameRendered(MediaCodec codec, long presentationTimeUs, long nanoTime) {
+            m_timestampTracker.onFrameRendered(presentationTimeUs, nanoTime);
+            markVideoOutGenerated();
+        }
+    };
+
+    private final FramePacer.Listener m_framePacerListener = new FramePacer.Listener() {
+        @Override
+        public void onFrameScheduled(long presentationTimeUs, long renderTimeNs) {
+            if (VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                // No render callbacks, take the scheduled vsync as the render time
+                m_timestampTracker.onFrameRendered(presentationTimeUs, renderTimeNs);
+                markVideoOutGenerated();
+            }
+        }
+
+        @Override
+        public void onFrameDropped(long presentationTimeUs) {
+            m_numFramesDropped.incrementAndGet();
+        }
+    };
+
+    private final Runnable m_notifyDecodingStarted = new Runnable() {
+        @Override
+        public void run() {
+            MCSLogger.log(MCSLogger.eInfo, TAG, "Asynchronous decoding started!");
+            if (m_notification != null) {
+                m_notification.onDecodingStarted();
+            }
+        }
+    };
+
+    private final Runnable m_handleCodecError = new Runnable() {
+        @Override
+        public void run() {
+            m_recoveryPosted.set(false);
+            handleCodecError();
+        }
+    };
+
+    /**
+     * Detects a working codec that keeps taking input without producing output, which some
+     * codecs do instead of reporting an error. Runs periodically on the callback thread.
+     */
+    private final Runnable m_stallWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            Handler callbackHandler = m_callbackHandler;
+            if (callbackHandler == null || !m_recoveryAllowed) {
+                return;
+            }
+            MediaCodecCandidate candidate = m_codecCandidate;
+            long sinceOutput = System.currentTimeMillis() - m_lastOutputTimestamp;
+            int framesQueued = m_framesQueuedSinceOutput.get();
+            if (FAST_RECOVERY_ENABLED && candidate != null && candidate.isWorking
+                    && framesQueued >= STALL_MIN_QUEUED_FRAMES && sinceOutput >= STALL_TIMEOUT_MS) {
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "Decoder stalled: %d frames queued without output in %d milliseconds",
+                        framesQueued, sinceOutput);
+                recoverDecoder();
+            }
+            callbackHandler.postDelayed(this, STALL_CHECK_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable m_firstOutputWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            MediaCodecCandidate candidate = m_codecCandidate;
+            List<String> racingCodecs = null;
+            synchronized (m_asyncLock) {
+                if (m_codecRace != null) {
+                    racingCodecs = m_codecRace.getRunningCodecNames();
+                }
+            }
+            if (m_asyncRunning && racingCodecs != null) {
+                // None of the racing codecs produced output, all of them failed silently
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG,
+                        String.format("Racing codecs %s failed to produce output in {%s} milliseconds. Resetting.",
+                                racingCodecs, GENERATE_FIRST_OUTPUT_TIMEOUT_MS));
+                for (String codecName : racingCodecs) {
+                    CodecSelectionCache.recordFailedCodec(codecName);
+                }
+                m_notification.onDecodingError();
+            } else if (m_asyncRunning && candidate != null && !candidate.isWorking) {
+                // The codec failed to produce any output in the provided amount of time
+                // so we deduce that it has failed silently -> notify of error and restart
+                // with another codec candidate
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG,
+                        String.format("Codec failed to produce output in {%s} milliseconds. Resetting.",
+                                GENERATE_FIRST_OUTPUT_TIMEOUT_MS));
+                CodecSelectionCache.recordFailedCodec(candidate.name);
+                m_notification.onDecodingError();
+            }
+        }
+    };
+
+    /**
+     * Takes over the winner of the codec race. Runs on the callback thread.
+     */
+    private final CodecRace.Listener m_codecRaceListener = new CodecRace.Listener() {
+        @Override
+        public MediaFormat createFormat(MediaCodec codec, int width, int height) {
+            MediaCodecCandidate candidate = findMediaCodecCandidate(codec.getName());
+            MediaFormat fmt = createVideoFormat(width, height, true, candidate);
+            if (LOW_LATENCY_FORMAT_ENABLED && candidate != null && !candidate.isLowLatencyFormatBroken) {
+                LowLatencyFormatConfigurator.apply(codec, VIDEO_FORMAT, fmt, width, height);
+            }
+            return fmt;
+        }
+
+        @Override
+        public MediaCodec.Callback onRaceWon(MediaCodec codec, String codecName,
+                                             ArrayDeque<Integer> freeInputSlots,
+                                             ArrayDeque<FrameBufferPool.Frame> pendingFrames,
+                                             boolean waitingForKeyFrame) {
+            MediaCodecCandidate candidate = findMediaCodecCandidate(codecName);
+            if (!m_asyncRunning || candidate == null) {
+                return null;
+            }
+            try {
+                codec.setOutputSurface(m_outputSurface);
+                codec.setOnFrameRenderedListener(m_frameRenderedListener, m_callbackHandler);
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onRaceWon: Failed to move " + codecName + " to the output surface: ", e);
+                return null;
+            }
+            m_codecRace = null;
+            m_decoder = codec;
+            setConfiguredVideoSize(candidate, m_videoWidth, m_videoHeight);
+            m_freeInputSlots.addAll(freeInputSlots);
+            m_pendingFrames.addAll(pendingFrames);
+            m_pendingFrameCount = m_pendingFrames.size();
+            if (waitingForKeyFrame) {
+                // The codec fell behind during the race and dropped frames
+                m_skipUntilIdr = true;
+                m_resendConfig = true;
+            }
+
+            m_codecCandidate = candidate;
+            candidate.isWorking = true;
+            long firstOutputLatency = System.currentTimeMillis() - m_asyncStartTimestamp;
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG,
+                    String.format("Codec %s won the race in {%s} milliseconds. Chosen as current codec.",
+                            codecName, firstOutputLatency));
+            CodecSelectionCache.recordWorkingCodec(codecName, firstOutputLatency);
+            m_asyncCallback = new AsyncDecodeCallback(candidate);
+            return m_asyncCallback;
+        }
+
+        @Override
+        public DataBuffer getConfigFrameBits() {
+            return m_configFrameBits;
+        }
+
+        @Override
+        public void onRacerFailed(String codecName) {
+            CodecSelectionCache.recordFailedCodec(codecName);
+        }
+
+        @Override
+        public void onRaceFailed() {
+            if (m_asyncRunning && m_notification != null) {
+                m_notification.onDecodingError();
+            }
+        }
+    };
+
+    /**
+     * Receives the codec events in asynchronous mode. Runs on the callback thread.
+     */
+    private class AsyncDecodeCallback extends MediaCodec.Callback {
+
+        private final MediaCodecCandidate m_candidate;
+
+        // Newest output buffer not yet rendered, used by the low latency output policy
+        private MediaCodec m_heldCodec;
+        private int m_heldIndex = -1;
+        private final MediaCodec.BufferInfo m_heldInfo = new MediaCodec.BufferInfo();
+
+        AsyncDecodeCallback(MediaCodecCandidate candidate) {
+            m_candidate = candidate;
+        }
+
+        /**
+         * Forgets the held output buffer after the codec was flushed or reset.
+         */
+        void discardHeldOutput() {
+            m_heldIndex = -1;
+            m_heldCodec = null;
+        }
+
+        /**
+         * Renders the held output buffer. Posted behind the output callbacks that are already
+         * queued on the callback thread, so every buffer that became ready in the meantime has
+         * replaced the held one by the time this runs.
+         */
+        private final Runnable m_renderHeldOutput = new Runnable() {
+            @Override
+            public void run() {
+                if (m_heldIndex < 0) {
+                    return;
+                }
+                int index = m_heldIndex;
+                m_heldIndex = -1;
+                // The pool thread outlives the session, skip the output of a finished one
+                if (m_asyncRunning && m_asyncCallback == AsyncDecodeCallback.this) {
+                    onOutput(m_heldCodec, index, m_heldInfo);
+                }
+                m_heldCodec = null;
+            }
+        };
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (m_asyncLock) {
+                // The slots of a codec being flushed or reset are invalid
+                if (!m_asyncRunning || m_codecPaused) {
+                    return;
+                }
+                FrameBufferPool.Frame frame = m_pendingFrames.poll();
+                m_pendingFrameCount = m_pendingFrames.size();
+                if (frame == null) {
+                    m_freeInputSlots.add(index);
+                    return;
+                }
+                try {
+                    queueInputFrame(codec, index, frame);
+                } catch (Exception e) {
+                    MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onInputBufferAvailable: Failed to queue a pending frame: ", e);
+                }
+                m_pendingFramePool.release(frame);
+                if (getInputOverflowPolicy() == INPUT_OVERFLOW_BLOCK) {
+                    m_asyncLock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (!m_asyncRunning) {
+                return;
+            }
+            if (m_lowLatencyOutput) {
+                if (m_heldIndex >= 0) {
+                    // A newer frame is ready, the held one is stale
+                    try {
+                        dropOutputBuffer(codec, m_heldIndex);
+                    } catch (Exception e) {
+                        MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onOutputBufferAvailable: Failed to drop the output buffer: ", e);
+                    }
+                } else {
+                    Handler callbackHandler = m_callbackHandler;
+                    if (callbackHandler != null) {
+                        callbackHandler.post(m_renderHeldOutput);
+                    }
+                }
+                m_heldCodec = codec;
+                m_heldIndex = index;
+                m_heldInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                return;
+            }
+            onOutput(codec, index, info);
+        }
+
+        private void onOutput(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            try {
+                renderOutputBuffer(codec, index, info);
+            } catch (Exception e) {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onOutputBufferAvailable: Failed to release the output buffer: ", e);
+                return;
+            }
+            if (!m_candidate.isWorking) {
+                m_candidate.isWorking = true;
+                long firstOutputLatency = System.currentTimeMillis() - m_asyncStartTimestamp;
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG,
+                        String.format("Codec produced output in {%s} milliseconds. Chosen as current codec.",
+                                firstOutputLatency));
+                CodecSelectionCache.recordWorkingCodec(m_candidate.name, firstOutputLatency);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "onError: Codec reported an error: ", e);
+            if (!m_asyncRunning) {
+                return;
+            }
+            if (!m_candidate.isWorking) {
+                // The codec could not produce a single frame in asynchronous mode - use the
+                // synchronous loop for it from now on and give it another try in that mode.
+                m_candidate.isAsyncBroken = true;
+                m_candidate.isTested = false;
+                m_notification.onDecodingError();
+            } else {
+                handleCodecError();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "onOutputFormatChanged: " + format);
+        }
+    }
+
+    @Override
+    public int getType() {
+        return WLTypes.FRAME_ENCODING_H264;
+    }
+
+    @Override
+    public Bitmap getScreenshot() {
+        return getScreenshot(m_videoWidth, m_videoHeight);
+    }
+
+    /**
+     * Captures the frame currently shown, scaled down by the GPU to fit the given size with
+     * the video aspect ratio kept (Android 7.0+). Blocks the calling thread for a short while
+     * at most, never the decoding. Meant for thumbnails and diagnostics; call it off the main
+     * thread.
+     *
+     * @param maxWidth Maximum width of the screenshot
+     * @param maxHeight Maximum height of the screenshot
+     * @return The screenshot, or null if none could be taken. Hand it back with
+     * {@link #releaseScreenshot} when done, so its memory is reused.
+     */
+    public Bitmap getScreenshot(int maxWidth, int maxHeight) {
+        int videoWidth = m_videoWidth;
+        int videoHeight = m_videoHeight;
+        if (!m_isVideoOutGenerated || videoWidth <= 0 || videoHeight <= 0 || maxWidth <= 0 || maxHeight <= 0) {
+            return null;
+        }
+        float scale = Math.min(1.0f, Math.min(maxWidth / (float) videoWidth, maxHeight / (float) videoHeight));
+        int width = Math.max(1, Math.round(videoWidth * scale));
+        int height = Math.max(1, Math.round(videoHeight * scale));
+        return m_screenshotCapturer.capture(m_screenshotSurface, width, height);
+    }
+
+    /**
+     * Hands a screenshot back for reuse by the next {@link #getScreenshot(int, int)}. The
+     * bitmap must not be used afterwards.
+     *
+     * @param screenshot A screenshot taken by this decoder
+     */
+    public void releaseScreenshot(Bitmap screenshot) {
+        m_screenshotCapturer.release(screenshot);
+    }
+
+    @Override
+    public boolean canSkipFrames() {
+        return FRAME_SKIPPING_ENABLED;
+    }
+
+    @Override
+    public boolean isVideoOutGenerated() {
+        return m_isVideoOutGenerated;
+    }
+
+    @Override
     public void onFrameSkipped(DataBuffer frameBits) {
+        ++m_numFramesSkipped;
+        if (!m_skipUntilIdr) {
+            int frameClass = m_frameClassifier.classify(frameBits);
+            if (!H264FrameClassifier.isDisposable(frameClass) && (frameClass & H264FrameClassifier.FLAG_SLICE) != 0) {
+                // Other frames depend on the skipped one, decoding them would corrupt the picture
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "onFrameSkipped: Reference frame skipped, waiting for the next IDR");
+                m_skipUntilIdr = true;
+            }
+        }
+    }
+
+    /**
+     * Helper thread that feeds the frames of the input ring to the codec in synchronous mode.
+     * It waits for the free codec input buffers, so that the SDK receive thread does not.
+     */
+    private class FrameFeedThread extends ScheduledThread {
+
+        private final FrameInputRing m_ring;
+
+        FrameFeedThread(FrameInputRing ring) {
+            super(ThreadClass.VIDEO, "FrameFeedThread");
+            m_ring = ring;
+        }
+
+        @Override
+        protected void runScheduled() {
+            MCSLogger.log(MCSLogger.eInfo, TAG, "FrameFeedThread: START!");
+            // The first attempt for a frame does not wait, so that a busy codec can be told apart
+            long timeoutUs = 0;
+            while (!isInterrupted()) {
+                if (!m_ring.awaitFrame(m_dequeInputBufferTimeoutUs / 1000)) {
+                    continue;
+                }
+                MediaCodec decoder = m_decoder;
+                if (decoder == null) {
+                    break;
+                }
+                boolean failed = false;
+                // The lock is taken per attempt, so a recovery can get in between
+                synchronized (m_syncInputLock) {
+                    // The frame is gone if a recovery discarded the queued input
+                    FrameInputRing.Slot slot = m_ring.peek();
+                    if (slot == null) {
+                        timeoutUs = 0;
+                        continue;
+                    }
+                    try {
+                        int inputBufferIndex = decoder.dequeueInputBuffer(timeoutUs);
+                        if (timeoutUs == 0) {
+                            m_inputBackpressure = inputBufferIndex < 0;
+                            timeoutUs = m_dequeInputBufferTimeoutUs;
+                        }
+                        if (inputBufferIndex >= 0) {
+                            ByteBuffer buffer;
+                            if (m_inputBuffers != null) {
+                                buffer = m_inputBuffers[inputBufferIndex];
+                            } else {
+                                buffer = decoder.getInputBuffer(inputBufferIndex);
+                            }
+                            int        size   = slot.data.remaining();
+                            buffer.clear();
+                            buffer.put(slot.data);
+                            decoder.queueInputBuffer(inputBufferIndex, 0, size, slot.presentationTimeUs, slot.flags);
+                            onFrameQueued(slot.presentationTimeUs);
+                            m_ring.remove();
+                            timeoutUs = 0;
+                        }
+                    } catch (Exception e) {
+                        MCSLogger.log(MCSLogger.eDebug, TAG, "FrameFeedThread: Failed with exception!");
+                        MCSLogger.printStackTrace(TAG, e);
+                        // The frame is lost, as the recovery waits for the next IDR
+                        m_ring.remove();
+                        timeoutUs = 0;
+                        failed = true;
+                    }
+                }
+                // Do not notify of error if we already killed the decoder
+                if (failed && m_decoder != null) {
+                    onCodecError();
+                }
+            }
+            MCSLogger.log(MCSLogger.eInfo, TAG, "FrameFeedThread: FINISH!");
+        }
     }
 
     /**
      * Helper thread that consumes the output of the Frame Decoder.
      */
-    private class FrameDecodeThread extends Thread {
+    private class FrameDecodeThread extends ScheduledThread {
 
         private long m_startTimestamp; // in milliseconds
-        private long m_generateFirstOutputTimeout = 2500; // in milliseconds
+        private long m_generateFirstOutputTimeout = GENERATE_FIRST_OUTPUT_TIMEOUT_MS; // in milliseconds
 
         public FrameDecodeThread() {
-            setName("FrameDecodeThread");
+            super(ThreadClass.VIDEO, "FrameDecodeThread");
         }
 
         @Override
-        public void run() {
+        protected void runScheduled() {
             MCSLogger.log(MCSLogger.eInfo, TAG, "FrameDecodeThread: START!");
             if(m_notification != null) {
                 m_notification.onDecodingStarted();
@@ -449,44 +2917,66 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
             m_startTimestamp = System.currentTimeMillis();
             MediaCodec decoder;
             MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            MediaCodec.BufferInfo newerBufferInfo = new MediaCodec.BufferInfo();
             while (!isInterrupted()) {
-                synchronized (FrameDecoder_H264_Custom.this) {
-                    decoder = m_decoder;
-                }
+                decoder = m_decoder;
                 if (decoder != null) {
-                    int outputBufferIndex;
-                    try {
-                        outputBufferIndex = decoder.dequeueOutputBuffer(bufferInfo, m_dequeInputBufferTimeoutUs);
-                    } catch (Exception e) {
-                        MCSLogger.log(MCSLogger.eError, TAG, "Failed to decode frame!");
-                        MCSLogger.printStackTrace(e);
-                        if(!interrupted()) {
+                    boolean failed = false;
+                    // A recovery waits for the current dequeue to return
+                    synchronized (m_syncOutputLock) {
+                        int outputBufferIndex;
+                        try {
+                            outputBufferIndex = decoder.dequeueOutputBuffer(bufferInfo, m_dequeInputBufferTimeoutUs);
+                        } catch (Exception e) {
+                            MCSLogger.log(MCSLogger.eError, TAG, "Failed to decode frame!");
+                            MCSLogger.printStackTrace(e);
+                            failed = true;
+                            outputBufferIndex = -1;
+                        }
+                        if(!failed && !m_codecCandidate.isWorking && System.currentTimeMillis() - m_startTimestamp >= m_generateFirstOutputTimeout) {
+                            // The codec failed to produce any output in the provided amount of time
+                            // so we deduce that it has failed silently -> notify of error and restart
+                            // with another codec candidate
+                            MCSLogger.log(MCSLogger.ELogType.eError, TAG,
+                                    String.format("Codec failed to produce output in {%s} milliseconds. Resetting.",
+                                            m_generateFirstOutputTimeout));
+                            CodecSelectionCache.recordFailedCodec(m_codecCandidate.name);
                             m_notification.onDecodingError();
+                            break;
+                        }
+                        if (outputBufferIndex >= 0 && !isInterrupted()) {
+                            try {
+                                if (m_lowLatencyOutput) {
+                                    // Skip over the frames that are already stale, render only the newest
+                                    int newerOutputBufferIndex;
+                                    while ((newerOutputBufferIndex = decoder.dequeueOutputBuffer(newerBufferInfo, 0)) >= 0) {
+                                        dropOutputBuffer(decoder, outputBufferIndex);
+                                        outputBufferIndex = newerOutputBufferIndex;
+                                        MediaCodec.BufferInfo swap = bufferInfo;
+                                        bufferInfo = newerBufferInfo;
+                                        newerBufferInfo = swap;
+                                    }
+                                }
+                                renderOutputBuffer(decoder, outputBufferIndex, bufferInfo);
+                            } catch (Exception e) {
+                                MCSLogger.log(MCSLogger.eError, TAG, "Failed to render frame!");
+                                MCSLogger.printStackTrace(e);
+                                failed = true;
+                            }
+                            if(!failed && !m_codecCandidate.isWorking) {
+                                m_codecCandidate.isWorking = true;
+                                long firstOutputLatency = System.currentTimeMillis() - m_startTimestamp;
+                                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG,
+                                        String.format("Codec produced output in {%s} milliseconds. Chosen as current codec.",
+                                                firstOutputLatency));
+                                CodecSelectionCache.recordWorkingCodec(m_codecCandidate.name, firstOutputLatency);
+                            }
                         }
-                        break;
                     }
-                    if(!H264_CODEC_CANDIDATE.isWorking && System.currentTimeMillis() - m_startTimestamp >= m_generateFirstOutputTimeout) {
-                        // The codec failed to produce any output in the provided amount of time
-                        // so we deduce that it has failed silently -> notify of error and restart
-                        // with another codec candidate
-                        MCSLogger.log(MCSLogger.ELogType.eError, TAG,
-                                String.format("Codec failed to produce output in {%s} milliseconds. Resetting.",
-                                        m_generateFirstOutputTimeout));
-                        m_notification.onDecodingError();
+                    // Recover outside of the output lock, the recovery takes the input lock first
+                    if (failed && (interrupted() || !handleCodecError())) {
                         break;
                     }
-                    if (outputBufferIndex > 0 && !isInterrupted()) {
-                        decoder.releaseOutputBuffer(outputBufferIndex, true);
-                        if(!H264_CODEC_CANDIDATE.isWorking) {
-                            H264_CODEC_CANDIDATE.isWorking = true;
-                            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG,
-                                    String.format("Codec produced output in {%s} milliseconds. Chosen as current codec.",
-                                            System.currentTimeMillis() - m_startTimestamp));
-                        }
-                        if (m_numKeyFrameInput >= KEY_FRAME_DELAY) {
-                            m_isVideoOutGenerated = true;
-                        }
-                    }
                 }
             }
             MCSLogger.log(MCSLogger.eInfo, TAG, "FrameDecodeThread: FINISH!");
@@ -495,19 +2985,167 @@ public class FrameDecoder_H264_Custom implements IFrameDecoder {
 
     private MediaCodecCandidate getNextMediaCodecCandidate() {
         MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "getNextMediaCodecCandidate");
-        for(MediaCodecCandidate candidate : H264_CODEC_CANDIDATES) {
-            if(!candidate.isTested) {
-                return candidate;
+        synchronized (m_codecCandidates) {
+            for(MediaCodecCandidate candidate : m_codecCandidates) {
+                if(!candidate.isTested) {
+                    return candidate;
+                }
+            }
+            // Fallback: If we have tested all available Media Codec options -
+            // reset and start over, what else can we do..
+            MCSLogger.log(MCSLogger.eWarning, TAG, "Tested all available Media Codecs and none fit up to now. Resetting them.");
+            for(MediaCodecCandidate candidate : m_codecCandidates) {
+                candidate.isTested = false;
+                candidate.isWorking = false;
+            }
+            return m_codecCandidates.isEmpty() ? null : m_codecCandidates.get(0);
+        }
+    }
+
+    /**
+     * Returns the candidate at the top of the list, or null if there are no candidates.
+     */
+    private MediaCodecCandidate getFirstMediaCodecCandidate() {
+        synchronized (m_codecCandidates) {
+            return m_codecCandidates.isEmpty() ? null : m_codecCandidates.get(0);
+        }
+    }
+
+    /**
+     * Copies H264_CODEC_CANDIDATES in their current order. What this instance learned about a
+     * codec is kept.
+     */
+    private void updateCodecCandidates() {
+        synchronized (H264_CODEC_CANDIDATES) {
+            synchronized (m_codecCandidates) {
+                List<MediaCodecCandidate> previous = new ArrayList<MediaCodecCandidate>(m_codecCandidates);
+                m_codecCandidates.clear();
+                for (MediaCodecCandidate catalogCandidate : H264_CODEC_CANDIDATES) {
+                    MediaCodecCandidate candidate = catalogCandidate;
+                    for (MediaCodecCandidate known : previous) {
+                        if (known.name.equals(catalogCandidate.name)) {
+                            candidate = known;
+                            break;
+                        }
+                    }
+                    m_codecCandidates.add(new MediaCodecCandidate(candidate));
+                }
+                m_codecCandidatesVersion = H264_CODEC_CANDIDATES_VERSION.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the candidates to race on start: the selected candidate and the next untested
+     * ones, up to {@link #MAX_RACING_CODECS}. Returns an empty list when the selected candidate
+     * is already known to work - from this session, a previous one or the self-test.
+     */
+    private List<MediaCodecCandidate> getRacingCandidates() {
+        List<MediaCodecCandidate> racingCandidates = new ArrayList<MediaCodecCandidate>();
+        MediaCodecCandidate selected = m_codecCandidate;
+        if (!CODEC_RACING_ENABLED || selected.isWorking
+                || selected.name.equals(CodecSelectionCache.getWorkingCodec())
+                || CodecSelectionCache.getRankedCodecs().contains(selected.name)) {
+            return racingCandidates;
+        }
+        racingCandidates.add(selected);
+        List<String> codecNames = new ArrayList<String>();
+        codecNames.add(selected.name);
+        synchronized (m_codecCandidates) {
+            for (MediaCodecCandidate candidate : m_codecCandidates) {
+                if (racingCandidates.size() >= MAX_RACING_CODECS) {
+                    break;
+                }
+                if (!candidate.isTested && !candidate.isAsyncBroken && !codecNames.contains(candidate.name)) {
+                    racingCandidates.add(candidate);
+                    codecNames.add(candidate.name);
+                }
+            }
+        }
+        return racingCandidates;
+    }
+
+    /**
+     * Returns the candidate with the given codec name, or null if there is none.
+     */
+    private MediaCodecCandidate findMediaCodecCandidate(String codecName) {
+        synchronized (m_codecCandidates) {
+            for (MediaCodecCandidate candidate : m_codecCandidates) {
+                if (candidate.name.equals(codecName)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the names of the codec candidates, in the order they are tried.
+     */
+    static List<String> getCodecCandidateNames() {
+        List<String> names = new ArrayList<String>();
+        synchronized (H264_CODEC_CANDIDATES) {
+            for (MediaCodecCandidate candidate : H264_CODEC_CANDIDATES) {
+                if (!names.contains(candidate.name)) {
+                    names.add(candidate.name);
+                }
             }
         }
-        // Fallback: If we have tested all available Media Codec options -
-        // reset and start over, what else can we do..
-        MCSLogger.log(MCSLogger.eWarning, TAG, "Tested all available Media Codecs and none fit up to now. Resetting them.");
-        for(MediaCodecCandidate candidate : H264_CODEC_CANDIDATES) {
-            candidate.isTested = false;
-            candidate.isWorking = false;
+        return names;
+    }
+
+    /**
+     * Reorders the codec candidates after the stored selection results changed. The next
+     * {@link #startDecoding} uses the new first candidate.
+     */
+    static void onCodecSelectionChanged() {
+        applyCachedSelection();
+        H264_CODEC_CANDIDATES_VERSION.incrementAndGet();
+    }
+
+    /**
+     * Reorders the codec candidates based on the results of the previous runs on this device:
+     * the codecs ranked by the self-test go first, fastest first, followed by the codec that
+     * worked in a session. The codecs that failed repeatedly in recent sessions go last.
+     */
+    static private void applyCachedSelection() {
+        List<String> rankedCodecs = CodecSelectionCache.getRankedCodecs();
+        String workingCodec = CodecSelectionCache.getWorkingCodec();
+        Set<String> failedCodecs = CodecSelectionCache.getDeprioritizedCodecs();
+        if (rankedCodecs.isEmpty() && workingCodec == null && failedCodecs.isEmpty()) {
+            return;
+        }
+        synchronized (H264_CODEC_CANDIDATES) {
+            List<MediaCodecCandidate> ranked = new ArrayList<MediaCodecCandidate>();
+            List<MediaCodecCandidate> working = new ArrayList<MediaCodecCandidate>();
+            List<MediaCodecCandidate> untested = new ArrayList<MediaCodecCandidate>();
+            List<MediaCodecCandidate> failed = new ArrayList<MediaCodecCandidate>();
+            for (MediaCodecCandidate candidate : H264_CODEC_CANDIDATES) {
+                if (failedCodecs.contains(candidate.name)) {
+                    failed.add(candidate);
+                } else if (rankedCodecs.contains(candidate.name)) {
+                    ranked.add(candidate);
+                } else if (candidate.name.equals(workingCodec)) {
+                    working.add(candidate);
+                } else {
+                    untested.add(candidate);
+                }
+            }
+            final List<String> ranking = rankedCodecs;
+            Collections.sort(ranked, new Comparator<MediaCodecCandidate>() {
+                @Override
+                public int compare(MediaCodecCandidate lhs, MediaCodecCandidate rhs) {
+                    return ranking.indexOf(lhs.name) - ranking.indexOf(rhs.name);
+                }
+            });
+            H264_CODEC_CANDIDATES.clear();
+            H264_CODEC_CANDIDATES.addAll(ranked);
+            H264_CODEC_CANDIDATES.addAll(working);
+            H264_CODEC_CANDIDATES.addAll(untested);
+            H264_CODEC_CANDIDATES.addAll(failed);
         }
-        return H264_CODEC_CANDIDATES.get(0);
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "applyCachedSelection: Ranking %s, known good codec %s, failed codecs %s",
+                rankedCodecs, workingCodec, failedCodecs);
     }
 
     /**
@@ -0,0 +1,344 @@
+/****************************************************************************
+ *
+ * @file FrameDecoder_I420_GL.java
+ * @brief
+ *
+ * Contains the FrameDecoder_I420_GL class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+import com.abaltatech.weblink.core.DataBuffer;
+import com.abaltatech.weblink.core.WLTypes;
+import com.abaltatech.weblinkclient.framedecoding.IFrameDecoder;
+import com.abaltatech.weblinkclient.framedecoding.IFrameDecoderNotification;
+import com.abaltatech.weblinkclient.framedecoding.VideoSurface;
+import com.tngdev.weblinkclient.util.ThreadScheduler;
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame decoder for raw I420 frames, the fallback for devices where no hardware H.264 codec
+ * works.
+ * <p></p>
+ * The frames are copied into a few pooled direct buffers and drawn by an {@link I420GlRenderer}
+ * on a dedicated render thread, which converts them to RGB on the GPU. When the render thread
+ * falls behind, the frame waiting for it is replaced by the newer one: every I420 frame is
+ * complete, so skipping frames never corrupts the picture.
+ */
+public class FrameDecoder_I420_GL implements IFrameDecoder {
+
+    private static final String TAG = "FrameDecoder_I420_GL";
+
+    /**
+     * Number of pooled frame buffers: one being drawn, one waiting to be drawn and one being
+     * filled.
+     */
+    private static final int FRAME_BUFFER_COUNT = 3;
+
+    /**
+     * How long {@link #startDecoding} waits for the render thread to set up OpenGL.
+     */
+    private static final long RENDERER_INIT_TIMEOUT_MS = 2000;
+
+    private final Object m_frameLock = new Object();
+    private final ArrayDeque<ByteBuffer> m_freeFrames = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer m_pendingFrame;
+    private boolean m_drawPosted = false;
+    private boolean m_running = false;
+
+    private HandlerThread m_renderThread;
+    private Handler m_renderHandler;
+    private I420GlRenderer m_renderer;
+    private IFrameDecoderNotification m_notification;
+    private int m_width;
+    private int m_height;
+    private int m_frameSize;
+
+    private volatile boolean m_isVideoOutGenerated = false;
+    private final DataBuffer m_configFrameBits = new DataBuffer();
+    private long m_numFrameInput = 0;
+    private final AtomicLong m_numFramesSkipped = new AtomicLong();
+
+    @Override
+    public boolean startDecoding(IFrameDecoderNotification notification, int width, int height, VideoSurface surface) {
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding enter");
+        boolean result = false;
+
+        if (m_renderThread != null) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "startDecoding: Decoder is already running!");
+        } else if (surface == null || !surface.getSurface().isValid()) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "startDecoding: The surface is invalid!");
+        } else {
+            m_notification = notification;
+            m_width = width;
+            m_height = height;
+            m_frameSize = I420GlRenderer.getFrameSize(width, height);
+            m_numFrameInput = 0;
+            m_numFramesSkipped.set(0);
+            m_isVideoOutGenerated = false;
+
+            m_renderThread = ThreadScheduler.newHandlerThread(ThreadClass.VIDEO, "I420RenderThread");
+            m_renderThread.start();
+            m_renderHandler = new Handler(m_renderThread.getLooper());
+            final I420GlRenderer renderer = new I420GlRenderer();
+            m_renderer = renderer;
+
+            final Surface outputSurface = surface.getSurface();
+            final boolean[] initialized = new boolean[1];
+            final CountDownLatch initDone = new CountDownLatch(1);
+            m_renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    initialized[0] = renderer.init(outputSurface);
+                    initDone.countDown();
+                }
+            });
+            try {
+                result = initDone.await(RENDERER_INIT_TIMEOUT_MS, TimeUnit.MILLISECONDS) && initialized[0];
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (result) {
+                synchronized (m_frameLock) {
+                    m_freeFrames.clear();
+                    for (int i = 0; i < FRAME_BUFFER_COUNT; ++i) {
+                        m_freeFrames.add(ByteBuffer.allocateDirect(m_frameSize));
+                    }
+                    m_pendingFrame = null;
+                    m_drawPosted = false;
+                    m_running = true;
+                }
+                m_renderHandler.post(m_notifyDecodingStarted);
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding: Rendering %dx%d I420 frames with OpenGL", width, height);
+            } else {
+                MCSLogger.log(MCSLogger.ELogType.eError, TAG, "startDecoding: Failed to set up OpenGL");
+                stopRenderThread();
+            }
+        }
+
+        if (notification != null && !result) {
+            notification.onDecodingStartFailed();
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "startDecoding exit");
+        return result;
+    }
+
+    @Override
+    public void stopDecoding() {
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "stopDecoding: enter");
+        IFrameDecoderNotification notification = m_notification;
+        synchronized (m_frameLock) {
+            m_running = false;
+            m_pendingFrame = null;
+            m_freeFrames.clear();
+        }
+        stopRenderThread();
+        m_isVideoOutGenerated = false;
+        if (notification != null) {
+            notification.onDecodingStopped();
+        }
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "stopDecoding: exit");
+    }
+
+    /**
+     * Releases the renderer on the render thread and stops the thread.
+     */
+    private void stopRenderThread() {
+        HandlerThread renderThread = m_renderThread;
+        Handler renderHandler = m_renderHandler;
+        final I420GlRenderer renderer = m_renderer;
+        m_renderThread = null;
+        m_renderHandler = null;
+        m_renderer = null;
+        if (renderThread == null) {
+            return;
+        }
+        renderHandler.removeCallbacksAndMessages(null);
+        renderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                renderer.release();
+            }
+        });
+        renderThread.quitSafely();
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "stopRenderThread: Interrupted while waiting for the render thread");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void reset() {
+        m_numFrameInput = 0;
+    }
+
+    @Override
+    public boolean decodeImage(DataBuffer frameBits) {
+        if (frameBits.getSize() < m_frameSize) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "decodeImage: Frame of %d bytes, %d expected", frameBits.getSize(), m_frameSize);
+            return false;
+        }
+        ++m_numFrameInput;
+
+        ByteBuffer frame;
+        synchronized (m_frameLock) {
+            if (!m_running) {
+                return false;
+            }
+            frame = m_freeFrames.poll();
+            if (frame == null && m_pendingFrame != null) {
+                // The render thread is behind, drop the frame waiting for it
+                frame = m_pendingFrame;
+                m_pendingFrame = null;
+                m_numFramesSkipped.incrementAndGet();
+            }
+        }
+        if (frame == null) {
+            m_numFramesSkipped.incrementAndGet();
+            return true;
+        }
+
+        frame.clear();
+        frame.put(frameBits.getData(), frameBits.getPos(), m_frameSize);
+        frame.flip();
+
+        synchronized (m_frameLock) {
+            if (!m_running) {
+                return false;
+            }
+            if (m_pendingFrame != null) {
+                m_freeFrames.add(m_pendingFrame);
+                m_numFramesSkipped.incrementAndGet();
+            }
+            m_pendingFrame = frame;
+            if (!m_drawPosted) {
+                m_drawPosted = true;
+                m_renderHandler.post(m_drawFrame);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draws the latest pending frame. Runs on the render thread.
+     */
+    private final Runnable m_drawFrame = new Runnable() {
+        @Override
+        public void run() {
+            ByteBuffer frame;
+            I420GlRenderer renderer;
+            synchronized (m_frameLock) {
+                frame = m_pendingFrame;
+                m_pendingFrame = null;
+                m_drawPosted = false;
+                renderer = m_renderer;
+            }
+            if (frame == null || renderer == null) {
+                return;
+            }
+            boolean drawn = renderer.draw(frame, m_width, m_height);
+            synchronized (m_frameLock) {
+                if (m_running) {
+                    m_freeFrames.add(frame);
+                }
+            }
+            if (!drawn) {
+                IFrameDecoderNotification notification = m_notification;
+                if (notification != null) {
+                    notification.onDecodingError();
+                }
+            } else if (!m_isVideoOutGenerated) {
+                MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "First frame drawn");
+                m_isVideoOutGenerated = true;
+            }
+        }
+    };
+
+    private final Runnable m_notifyDecodingStarted = new Runnable() {
+        @Override
+        public void run() {
+            MCSLogger.log(MCSLogger.eInfo, TAG, "Decoding started!");
+            IFrameDecoderNotification notification = m_notification;
+            if (notification != null) {
+                notification.onDecodingStarted();
+            }
+        }
+    };
+
+    /**
+     * @return Number of frames received since the start
+     */
+    public long getFrameInputCount() {
+        return m_numFrameInput;
+    }
+
+    /**
+     * @return Number of frames skipped since the start, by the SDK or because the render thread
+     * was behind
+     */
+    public long getSkippedFrameCount() {
+        return m_numFramesSkipped.get();
+    }
+
+    @Override
+    public DataBuffer getConfigFrameBits() {
+        // Raw frames have no configuration data
+        return m_configFrameBits;
+    }
+
+    @Override
+    public int getType() {
+        return WLTypes.FRAME_ENCODING_I420;
+    }
+
+    @Override
+    public Bitmap getScreenshot() {
+        return null;
+    }
+
+    @Override
+    public boolean canSkipFrames() {
+        // Every frame is complete, any of them can be skipped
+        return true;
+    }
+
+    @Override
+    public boolean isVideoOutGenerated() {
+        return m_isVideoOutGenerated;
+    }
+
+    @Override
+    public void onFrameSkipped(DataBuffer frameBits) {
+        m_numFramesSkipped.incrementAndGet();
+    }
+}
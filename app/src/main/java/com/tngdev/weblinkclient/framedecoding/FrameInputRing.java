@@ -0,0 +1,255 @@
+/****************************************************************************
+ *
+ * @file FrameInputRing.java
+ * @brief
+ *
+ * Contains the FrameInputRing class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import com.abaltatech.weblink.core.DataBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer ring of encoded frames, between the thread that
+ * receives the frames and the thread that feeds them to the codec.
+ * <p></p>
+ * The slots and their direct buffers are allocated up front and reused, a buffer only grows
+ * when a frame larger than its current capacity arrives. Neither side takes a lock: the
+ * producer publishes a slot by advancing the tail, the consumer frees it by advancing the
+ * head. A side that waits is parked and woken up by the other one.
+ * <p></p>
+ * The producer methods ({@link #offer}) must be called from one thread at a time, and so must
+ * the consumer methods ({@link #peek()}, {@link #remove()}, {@link #clear()}). The consumer
+ * role may move between threads that serialize on a lock of their own.
+ */
+final class FrameInputRing {
+
+    /**
+     * Initial capacity of the slot buffers. Large enough for the typical P-frame.
+     */
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+
+    /**
+     * An encoded frame in the ring.
+     */
+    static final class Slot {
+        // Frame data, ready to be read
+        ByteBuffer data;
+
+        // Presentation timestamp of the frame in microseconds
+        long presentationTimeUs;
+
+        // MediaCodec buffer flags to queue the frame with
+        int flags;
+    }
+
+    private final Slot[] m_slots;
+    private final int m_mask;
+
+    // Index of the next slot to read, advanced by the consumer only
+    private final AtomicLong m_head = new AtomicLong();
+    // Index of the next slot to write, advanced by the producer only
+    private final AtomicLong m_tail = new AtomicLong();
+
+    // The thread parked on the other side, if any
+    private volatile Thread m_waitingConsumer;
+    private volatile Thread m_waitingProducer;
+
+    // Highest number of frames in the ring, updated by the producer
+    private volatile int m_maxSize = 0;
+
+    /**
+     * @param capacity Number of slots, a power of two
+     */
+    FrameInputRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of two: " + capacity);
+        }
+        m_slots = new Slot[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            m_slots[i] = new Slot();
+            m_slots[i].data = ByteBuffer.allocateDirect(INITIAL_BUFFER_CAPACITY);
+        }
+        m_mask = capacity - 1;
+    }
+
+    /**
+     * Copies the frame into the next free slot. Never waits.
+     *
+     * @param frameBits The encoded frame
+     * @param presentationTimeUs Presentation timestamp of the frame in microseconds
+     * @param flags MediaCodec buffer flags to queue the frame with
+     * @return false if the ring is full
+     */
+    boolean offer(DataBuffer frameBits, long presentationTimeUs, int flags) {
+        long tail = m_tail.get();
+        int size = (int) (tail - m_head.get());
+        if (size >= m_slots.length) {
+            return false;
+        }
+        Slot slot = m_slots[(int) tail & m_mask];
+        int frameSize = frameBits.getSize();
+        if (slot.data.capacity() < frameSize) {
+            slot.data = ByteBuffer.allocateDirect(Math.max(frameSize, INITIAL_BUFFER_CAPACITY));
+        }
+        slot.data.clear();
+        slot.data.put(frameBits.getData(), frameBits.getPos(), frameSize);
+        slot.data.flip();
+        slot.presentationTimeUs = presentationTimeUs;
+        slot.flags = flags;
+        m_tail.set(tail + 1);
+        if (size + 1 > m_maxSize) {
+            m_maxSize = size + 1;
+        }
+        Thread consumer = m_waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the frame into the next free slot, waiting for the consumer to free one if the
+     * ring is full.
+     *
+     * @param frameBits The encoded frame
+     * @param presentationTimeUs Presentation timestamp of the frame in microseconds
+     * @param flags MediaCodec buffer flags to queue the frame with
+     * @param timeoutMs Maximum time to wait for a free slot
+     * @return false if no slot was freed in time, or the thread was interrupted
+     */
+    boolean offer(DataBuffer frameBits, long presentationTimeUs, int flags, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!offer(frameBits, presentationTimeUs, flags)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            m_waitingProducer = Thread.currentThread();
+            if (size() >= m_slots.length) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            m_waitingProducer = null;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the ring holds at least one frame. Called by the consumer outside of the lock
+     * that serializes its role; the frame may be gone by the time {@link #peek()} is called.
+     *
+     * @param timeoutMs Maximum time to wait
+     * @return true if a frame is available, false on timeout or if the thread was interrupted
+     */
+    boolean awaitFrame(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            m_waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            m_waitingConsumer = null;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the oldest frame without removing it. The slot stays valid until
+     * {@link #remove()} or {@link #clear()}.
+     *
+     * @return The oldest frame, or null if the ring is empty
+     */
+    Slot peek() {
+        long head = m_head.get();
+        if (head == m_tail.get()) {
+            return null;
+        }
+        return m_slots[(int) head & m_mask];
+    }
+
+    /**
+     * Frees the slot of the oldest frame.
+     */
+    void remove() {
+        long head = m_head.get();
+        if (head != m_tail.get()) {
+            m_head.set(head + 1);
+            wakeProducer();
+        }
+    }
+
+    /**
+     * Frees all slots. The frames published concurrently by the producer may be kept.
+     */
+    void clear() {
+        m_head.set(m_tail.get());
+        wakeProducer();
+    }
+
+    /**
+     * @return Number of frames in the ring
+     */
+    int size() {
+        return (int) (m_tail.get() - m_head.get());
+    }
+
+    /**
+     * @return true if the ring holds no frame
+     */
+    boolean isEmpty() {
+        return m_head.get() == m_tail.get();
+    }
+
+    /**
+     * @return Number of slots
+     */
+    int capacity() {
+        return m_slots.length;
+    }
+
+    /**
+     * @return Highest number of frames held at once since the last {@link #resetMaxSize()}
+     */
+    int getMaxSize() {
+        return m_maxSize;
+    }
+
+    /**
+     * Restarts the tracking of the highest number of frames held at once.
+     */
+    void resetMaxSize() {
+        m_maxSize = size();
+    }
+
+    private void wakeProducer() {
+        Thread producer = m_waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/****************************************************************************
+ *
+ * @file FramePacer.java
+ * @brief
+ *
+ * Contains the FramePacer class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+
+import java.util.ArrayDeque;
+
+/**
+ * Presents decoded frames in step with the display refresh.
+ * <p></p>
+ * Instead of releasing every output buffer to the surface as soon as the codec returns it, the
+ * buffers are queued here and released from {@link Choreographer} frame callbacks with
+ * {@link MediaCodec#releaseOutputBuffer(int, long)}, targeting the first vsync after the frame
+ * was ready, which is the vsync of the callback unless the frame came in late. At most one frame
+ * is presented per vsync, so frames that arrive in bursts are spread over consecutive refreshes.
+ * <p></p>
+ * A frame is never held longer than the jitter budget on top of the vsync it was ready for. When
+ * a newer frame is queued behind a frame that has exceeded the budget, the older one is dropped,
+ * which keeps the added latency within one frame. With the latest-frame-wins policy every frame
+ * that has a newer one queued behind it is dropped at the vsync.
+ * <p></p>
+ * The Choreographer callbacks run on the thread of the given handler, which must have a looper.
+ */
+class FramePacer implements Choreographer.FrameCallback {
+
+    private static final String TAG = "FramePacer";
+
+    /**
+     * Initial vsync period estimate (60Hz), refined from the frame callbacks.
+     */
+    private static final long DEFAULT_VSYNC_PERIOD_NS = 16666667;
+
+    /**
+     * Number of queued buffers at which the oldest ones are dropped regardless of the budget.
+     */
+    private static final int MAX_QUEUED_FRAMES = 3;
+
+    /**
+     * Listener notified about the buffers released by the pacer.
+     */
+    interface Listener {
+        /**
+         * Called when an output buffer was released to be rendered at the given time.
+         */
+        void onFrameScheduled(long presentationTimeUs, long renderTimeNs);
+
+        /**
+         * Called when an output buffer was released without being rendered.
+         */
+        void onFrameDropped(long presentationTimeUs);
+    }
+
+    /**
+     * A decoded frame waiting for its vsync.
+     */
+    private static class PendingFrame {
+        MediaCodec codec;
+        int index;
+        long presentationTimeUs;
+        long readyTimeNs;
+    }
+
+    private final Handler m_handler;
+    private final Listener m_listener;
+    private final long m_jitterBudgetNs;
+    private final boolean m_latestFrameWins;
+    private final Object m_lock = new Object();
+    private final ArrayDeque<PendingFrame> m_queue = new ArrayDeque<PendingFrame>();
+    private final ArrayDeque<PendingFrame> m_freeFrames = new ArrayDeque<PendingFrame>();
+
+    private Choreographer m_choreographer;
+    private volatile boolean m_running = true;
+    private boolean m_callbackPosted = false;
+    private long m_lastFrameTimeNs = 0;
+    private long m_vsyncPeriodNs = DEFAULT_VSYNC_PERIOD_NS;
+
+    /**
+     * @param handler Handler of a looper thread used for the Choreographer callbacks
+     * @param jitterBudgetUs How long a frame may wait past its vsync before it can be dropped
+     * @param latestFrameWins Present only the newest of the queued frames at each vsync
+     * @param listener Listener notified about the released buffers
+     */
+    FramePacer(Handler handler, long jitterBudgetUs, boolean latestFrameWins, Listener listener) {
+        m_handler = handler;
+        m_jitterBudgetNs = jitterBudgetUs * 1000;
+        m_latestFrameWins = latestFrameWins;
+        m_listener = listener;
+    }
+
+    /**
+     * Queues a decoded output buffer for presentation. Can be called from any thread.
+     */
+    void submit(MediaCodec codec, int index, long presentationTimeUs) {
+        boolean postCallback = false;
+        synchronized (m_lock) {
+            if (!m_running) {
+                return;
+            }
+            PendingFrame frame = m_freeFrames.poll();
+            if (frame == null) {
+                frame = new PendingFrame();
+            }
+            frame.codec = codec;
+            frame.index = index;
+            frame.presentationTimeUs = presentationTimeUs;
+            frame.readyTimeNs = System.nanoTime();
+            m_queue.add(frame);
+            if (!m_callbackPosted) {
+                m_callbackPosted = true;
+                postCallback = true;
+            }
+        }
+        if (postCallback) {
+            m_handler.post(m_postFrameCallback);
+        }
+    }
+
+    /**
+     * Forgets the queued buffers without releasing them. Used after the codec was flushed or
+     * reset, which invalidates them. Can be called from any thread.
+     */
+    void clear() {
+        synchronized (m_lock) {
+            m_freeFrames.addAll(m_queue);
+            m_queue.clear();
+        }
+    }
+
+    /**
+     * Stops the pacing. Queued buffers are forgotten, the codec they belong to is about to be
+     * stopped anyway.
+     */
+    void stop() {
+        synchronized (m_lock) {
+            m_running = false;
+            m_queue.clear();
+        }
+        m_handler.removeCallbacks(m_postFrameCallback);
+    }
+
+    /**
+     * Registers the frame callback. Runs on the handler thread.
+     */
+    private final Runnable m_postFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (!m_running) {
+                return;
+            }
+            if (m_choreographer == null) {
+                m_choreographer = Choreographer.getInstance();
+            }
+            m_choreographer.postFrameCallback(FramePacer.this);
+        }
+    };
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (m_lastFrameTimeNs != 0) {
+            long period = frameTimeNanos - m_lastFrameTimeNs;
+            // Ignore the gaps between bursts of frames, only follow consecutive vsyncs
+            if (period > 0 && period < 2 * m_vsyncPeriodNs) {
+                m_vsyncPeriodNs = (7 * m_vsyncPeriodNs + period) / 8;
+            }
+        }
+        m_lastFrameTimeNs = frameTimeNanos;
+
+        long dropBeforeNs = frameTimeNanos - m_vsyncPeriodNs - m_jitterBudgetNs;
+        PendingFrame frame;
+        boolean morePending;
+        synchronized (m_lock) {
+            if (!m_running) {
+                m_callbackPosted = false;
+                return;
+            }
+            // Drop the frames that have missed their vsync by more than the jitter budget, as
+            // long as there is a newer frame to show instead.
+            while (m_queue.size() > 1
+                    && (m_latestFrameWins
+                        || m_queue.size() > MAX_QUEUED_FRAMES
+                        || m_queue.peek().readyTimeNs < dropBeforeNs)) {
+                PendingFrame stale = m_queue.poll();
+                release(stale, false, 0);
+                m_freeFrames.add(stale);
+            }
+            frame = m_queue.poll();
+            if (frame != null) {
+                release(frame, true, getRenderTimeNs(frameTimeNanos, m_vsyncPeriodNs, frame.readyTimeNs));
+                m_freeFrames.add(frame);
+            }
+            morePending = !m_queue.isEmpty();
+            m_callbackPosted = morePending;
+        }
+        if (morePending) {
+            m_choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Returns the first vsync at or after the time the frame was ready, on the vsync grid of
+     * the frame callback. A frame that was ready before the vsync of the callback is due at
+     * that vsync, one that came in after it at the next one.
+     *
+     * @param frameTimeNanos Time of the vsync the callback runs for
+     * @param vsyncPeriodNs Vsync period
+     * @param readyTimeNs Time the codec returned the frame
+     */
+    static long getRenderTimeNs(long frameTimeNanos, long vsyncPeriodNs, long readyTimeNs) {
+        if (readyTimeNs <= frameTimeNanos) {
+            return frameTimeNanos;
+        }
+        long periods = (readyTimeNs - frameTimeNanos + vsyncPeriodNs - 1) / vsyncPeriodNs;
+        return frameTimeNanos + periods * vsyncPeriodNs;
+    }
+
+    private void release(PendingFrame frame, boolean render, long renderTimeNs) {
+        try {
+            if (render) {
+                frame.codec.releaseOutputBuffer(frame.index, renderTimeNs);
+                m_listener.onFrameScheduled(frame.presentationTimeUs, renderTimeNs);
+            } else {
+                frame.codec.releaseOutputBuffer(frame.index, false);
+                m_listener.onFrameDropped(frame.presentationTimeUs);
+            }
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "release: Failed to release the output buffer: ", e);
+        }
+        frame.codec = null;
+    }
+}
@@ -0,0 +1,178 @@
+/****************************************************************************
+ *
+ * @file FrameTimestampTracker.java
+ * @brief
+ *
+ * Contains the FrameTimestampTracker class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Follows each frame through the decoder using its presentation timestamp and feeds the
+ * receive&rarr;queue, queue&rarr;output and output&rarr;render latencies into
+ * {@link LatencyHistogram}s.
+ * <p></p>
+ * The presentation timestamp of a frame is its arrival time, taken from {@link System#nanoTime()}
+ * and expressed in microseconds. The same clock is used by
+ * {@link android.media.MediaCodec.OnFrameRenderedListener}, so all the stages can be compared
+ * directly.
+ * <p></p>
+ * The in-flight frames are kept in a small ring, in the order they were queued, so no
+ * allocation or locking takes place on the per-frame path. The codec returns the frames in
+ * that order too, so a frame is found a few slots back from the newest one. A frame that is
+ * pushed out of the ring before its output is counted, see {@link #getEvictedFrameCount()}.
+ */
+public class FrameTimestampTracker {
+
+    /**
+     * Number of frames that can be in flight at the same time. Must be a power of two.
+     */
+    private static final int RING_SIZE = 64;
+
+    private final AtomicLongArray m_presentationTimesUs = new AtomicLongArray(RING_SIZE);
+    private final AtomicLongArray m_queueTimesNs = new AtomicLongArray(RING_SIZE);
+    private final AtomicLongArray m_outputTimesNs = new AtomicLongArray(RING_SIZE);
+
+    // Sequence number of the next queued frame, its slot is the sequence number modulo RING_SIZE
+    private final AtomicLong m_nextQueueSeq = new AtomicLong();
+    private final AtomicLong m_numFramesEvicted = new AtomicLong();
+
+    private final LatencyHistogram m_receiveToQueue = new LatencyHistogram();
+    private final LatencyHistogram m_queueToOutput = new LatencyHistogram();
+    private final LatencyHistogram m_outputToRender = new LatencyHistogram();
+
+    private long m_lastPresentationTimeUs = 0;
+
+    /**
+     * Returns a strictly increasing arrival timestamp for a newly received frame. Only called
+     * from the thread that receives frames.
+     *
+     * @return Presentation timestamp in microseconds
+     */
+    public long nextPresentationTimeUs() {
+        long timeUs = System.nanoTime() / 1000;
+        if (timeUs <= m_lastPresentationTimeUs) {
+            timeUs = m_lastPresentationTimeUs + 1;
+        }
+        m_lastPresentationTimeUs = timeUs;
+        return timeUs;
+    }
+
+    /**
+     * Called right after the frame has been queued into the codec.
+     */
+    public void onFrameQueued(long presentationTimeUs) {
+        long nowNs = System.nanoTime();
+        int slot = (int) (m_nextQueueSeq.getAndIncrement() & (RING_SIZE - 1));
+        if (m_presentationTimesUs.get(slot) != 0 && m_outputTimesNs.get(slot) == 0) {
+            // The codec has not returned the frame of the previous round, e.g. a config frame
+            m_numFramesEvicted.incrementAndGet();
+        }
+        m_queueTimesNs.set(slot, nowNs);
+        m_outputTimesNs.set(slot, 0);
+        m_presentationTimesUs.set(slot, presentationTimeUs);
+        m_receiveToQueue.record(nowNs / 1000 - presentationTimeUs);
+    }
+
+    /**
+     * Called when the codec returned the decoded frame.
+     */
+    public void onFrameOutput(long presentationTimeUs) {
+        long nowNs = System.nanoTime();
+        int slot = findSlot(presentationTimeUs);
+        if (slot >= 0) {
+            m_outputTimesNs.set(slot, nowNs);
+            m_queueToOutput.record((nowNs - m_queueTimesNs.get(slot)) / 1000);
+        }
+    }
+
+    /**
+     * Called when the decoded frame was rendered on the output surface.
+     *
+     * @param renderTimeNs The render time in the {@link System#nanoTime()} time base
+     */
+    public void onFrameRendered(long presentationTimeUs, long renderTimeNs) {
+        int slot = findSlot(presentationTimeUs);
+        if (slot >= 0) {
+            long outputTimeNs = m_outputTimesNs.get(slot);
+            if (outputTimeNs != 0) {
+                m_outputToRender.record((renderTimeNs - outputTimeNs) / 1000);
+            }
+        }
+    }
+
+    public LatencyHistogram getReceiveToQueueLatency() {
+        return m_receiveToQueue;
+    }
+
+    public LatencyHistogram getQueueToOutputLatency() {
+        return m_queueToOutput;
+    }
+
+    public LatencyHistogram getOutputToRenderLatency() {
+        return m_outputToRender;
+    }
+
+    /**
+     * Returns the number of frames pushed out of the ring before the codec returned them. Their
+     * latencies are missing from the statistics. Includes the frames the codec never returns,
+     * such as the config frames.
+     */
+    public long getEvictedFrameCount() {
+        return m_numFramesEvicted.get();
+    }
+
+    /**
+     * Forgets the frames in flight and clears the collected statistics.
+     */
+    public void reset() {
+        for (int i = 0; i < RING_SIZE; ++i) {
+            m_presentationTimesUs.set(i, 0);
+            m_queueTimesNs.set(i, 0);
+            m_outputTimesNs.set(i, 0);
+        }
+        m_numFramesEvicted.set(0);
+        m_receiveToQueue.reset();
+        m_queueToOutput.reset();
+        m_outputToRender.reset();
+    }
+
+    /**
+     * Returns the slot of the frame in flight with the given timestamp, or -1 if it is not in
+     * the ring (anymore).
+     */
+    private int findSlot(long presentationTimeUs) {
+        long seq = m_nextQueueSeq.get() - 1;
+        for (int i = 0; i < RING_SIZE && seq >= 0; ++i, --seq) {
+            int slot = (int) (seq & (RING_SIZE - 1));
+            long slotTimeUs = m_presentationTimesUs.get(slot);
+            if (slotTimeUs == presentationTimeUs) {
+                return slot;
+            }
+            if (slotTimeUs != 0 && slotTimeUs < presentationTimeUs) {
+                // The frames were queued in timestamp order, the frame is not further back
+                return -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,318 @@
+/****************************************************************************
+ *
+ * @file I420GlRenderer.java
+ * @brief
+ *
+ * Contains the I420GlRenderer class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.view.Surface;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws I420 frames to a window surface with OpenGL ES 2.0.
+ * <p></p>
+ * The Y, U and V planes are uploaded as three luminance textures straight from the frame
+ * buffer, the conversion to RGB (BT.601, limited range) is done by the fragment shader. No
+ * pixel is touched on the CPU.
+ * <p></p>
+ * Not thread safe: all methods have to be called on the thread that called {@link #init}.
+ */
+class I420GlRenderer {
+
+    private static final String TAG = "I420GlRenderer";
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = aTexCoord;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform sampler2D uTextureY;\n" +
+            "uniform sampler2D uTextureU;\n" +
+            "uniform sampler2D uTextureV;\n" +
+            "void main() {\n" +
+            "    float y = 1.164 * (texture2D(uTextureY, vTexCoord).r - 0.0625);\n" +
+            "    float u = texture2D(uTextureU, vTexCoord).r - 0.5;\n" +
+            "    float v = texture2D(uTextureV, vTexCoord).r - 0.5;\n" +
+            "    gl_FragColor = vec4(y + 1.596 * v, y - 0.391 * u - 0.813 * v, y + 2.018 * u, 1.0);\n" +
+            "}\n";
+
+    // Full screen quad as a triangle strip: x, y, u, v. The first image row is at the top.
+    private static final float[] QUAD_VERTICES = {
+            -1.0f, -1.0f, 0.0f, 1.0f,
+             1.0f, -1.0f, 1.0f, 1.0f,
+            -1.0f,  1.0f, 0.0f, 0.0f,
+             1.0f,  1.0f, 1.0f, 0.0f,
+    };
+    private static final int VERTEX_STRIDE_BYTES = 4 * 4;
+
+    private EGLDisplay m_eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext m_eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface m_eglSurface = EGL14.EGL_NO_SURFACE;
+
+    private int m_program;
+    private final int[] m_textures = new int[3];
+    private FloatBuffer m_quadVertices;
+    private final int[] m_surfaceSize = new int[1];
+
+    // Size the textures are allocated for, 0 until the first frame
+    private int m_textureWidth;
+    private int m_textureHeight;
+
+    /**
+     * Returns the size in bytes of an I420 frame: the full resolution Y plane followed by the
+     * U and V planes at half the resolution in both directions.
+     */
+    static int getFrameSize(int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        return width * height + 2 * chromaWidth * chromaHeight;
+    }
+
+    /**
+     * Creates the EGL context and the shader program, and makes them current on the calling
+     * thread.
+     *
+     * @param surface The surface to draw to
+     * @return true on success, the renderer has to be released in any case
+     */
+    boolean init(Surface surface) {
+        m_eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (m_eglDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(m_eglDisplay, version, 0, version, 1)) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "init: Cannot initialize the EGL display, error 0x%x", EGL14.eglGetError());
+            return false;
+        }
+
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(m_eglDisplay, configAttributes, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "init: No suitable EGL config, error 0x%x", EGL14.eglGetError());
+            return false;
+        }
+
+        int[] contextAttributes = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
+        m_eglContext = EGL14.eglCreateContext(m_eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        if (m_eglContext == null || m_eglContext == EGL14.EGL_NO_CONTEXT) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "init: Cannot create the EGL context, error 0x%x", EGL14.eglGetError());
+            m_eglContext = EGL14.EGL_NO_CONTEXT;
+            return false;
+        }
+
+        int[] surfaceAttributes = { EGL14.EGL_NONE };
+        m_eglSurface = EGL14.eglCreateWindowSurface(m_eglDisplay, configs[0], surface, surfaceAttributes, 0);
+        if (m_eglSurface == null || m_eglSurface == EGL14.EGL_NO_SURFACE) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "init: Cannot create the window surface, error 0x%x", EGL14.eglGetError());
+            m_eglSurface = EGL14.EGL_NO_SURFACE;
+            return false;
+        }
+        if (!EGL14.eglMakeCurrent(m_eglDisplay, m_eglSurface, m_eglSurface, m_eglContext)) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "init: Cannot make the context current, error 0x%x", EGL14.eglGetError());
+            return false;
+        }
+
+        m_program = createProgram();
+        if (m_program == 0) {
+            return false;
+        }
+        GLES20.glUseProgram(m_program);
+
+        m_quadVertices = ByteBuffer.allocateDirect(QUAD_VERTICES.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        m_quadVertices.put(QUAD_VERTICES);
+        int positionLocation = GLES20.glGetAttribLocation(m_program, "aPosition");
+        int texCoordLocation = GLES20.glGetAttribLocation(m_program, "aTexCoord");
+        m_quadVertices.position(0);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE_BYTES, m_quadVertices);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        m_quadVertices.position(2);
+        GLES20.glVertexAttribPointer(texCoordLocation, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE_BYTES, m_quadVertices);
+        GLES20.glEnableVertexAttribArray(texCoordLocation);
+
+        GLES20.glGenTextures(m_textures.length, m_textures, 0);
+        String[] samplers = { "uTextureY", "uTextureU", "uTextureV" };
+        for (int i = 0; i < m_textures.length; ++i) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, m_textures[i]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(m_program, samplers[i]), i);
+        }
+        // The plane rows are tightly packed
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+
+        return checkGlError("init");
+    }
+
+    /**
+     * Uploads the planes of the frame and draws it stretched over the whole surface.
+     *
+     * @param frame The I420 frame, from position 0, at least {@link #getFrameSize} bytes
+     * @return true on success
+     */
+    boolean draw(ByteBuffer frame, int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        boolean allocate = width != m_textureWidth || height != m_textureHeight;
+        m_textureWidth = width;
+        m_textureHeight = height;
+
+        frame.position(0);
+        uploadPlane(0, frame, width, height, allocate);
+        frame.position(width * height);
+        uploadPlane(1, frame, chromaWidth, chromaHeight, allocate);
+        frame.position(width * height + chromaWidth * chromaHeight);
+        uploadPlane(2, frame, chromaWidth, chromaHeight, allocate);
+        frame.position(0);
+
+        // The view may have been resized
+        EGL14.eglQuerySurface(m_eglDisplay, m_eglSurface, EGL14.EGL_WIDTH, m_surfaceSize, 0);
+        int surfaceWidth = m_surfaceSize[0];
+        EGL14.eglQuerySurface(m_eglDisplay, m_eglSurface, EGL14.EGL_HEIGHT, m_surfaceSize, 0);
+        int surfaceHeight = m_surfaceSize[0];
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        if (!EGL14.eglSwapBuffers(m_eglDisplay, m_eglSurface)) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "draw: Swap failed, error 0x%x", EGL14.eglGetError());
+            return false;
+        }
+        return checkGlError("draw");
+    }
+
+    /**
+     * Releases the GL objects and the EGL context.
+     */
+    void release() {
+        if (m_eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        if (m_eglContext != EGL14.EGL_NO_CONTEXT && m_eglSurface != EGL14.EGL_NO_SURFACE) {
+            if (m_program != 0) {
+                GLES20.glDeleteProgram(m_program);
+                GLES20.glDeleteTextures(m_textures.length, m_textures, 0);
+            }
+            EGL14.eglMakeCurrent(m_eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        }
+        if (m_eglSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(m_eglDisplay, m_eglSurface);
+        }
+        if (m_eglContext != EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglDestroyContext(m_eglDisplay, m_eglContext);
+        }
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(m_eglDisplay);
+        m_eglDisplay = EGL14.EGL_NO_DISPLAY;
+        m_eglContext = EGL14.EGL_NO_CONTEXT;
+        m_eglSurface = EGL14.EGL_NO_SURFACE;
+        m_program = 0;
+        m_textureWidth = 0;
+        m_textureHeight = 0;
+    }
+
+    private void uploadPlane(int index, ByteBuffer plane, int width, int height, boolean allocate) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + index);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, m_textures[index]);
+        if (allocate) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, width, height, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+        }
+    }
+
+    private static int createProgram() {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        // The program keeps the shaders alive
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "createProgram: Link failed: %s", GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "loadShader: Compilation failed: %s", GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    private static boolean checkGlError(String operation) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "%s: GL error 0x%x", operation, error);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+/****************************************************************************
+ *
+ * @file LatencyHistogram.java
+ * @brief
+ *
+ * Contains the LatencyHistogram class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed-width buckets.
+ * <p></p>
+ * Samples are recorded with a single atomic increment, so it is safe to record from the decoder
+ * threads while the UI thread reads percentiles. Values above the covered range are counted in
+ * an overflow bucket and reported as the upper bound of the range.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Width of a single bucket in microseconds.
+     */
+    private static final long BUCKET_WIDTH_US = 250;
+
+    /**
+     * Number of regular buckets. Together with the bucket width this covers 0..200 ms.
+     */
+    private static final int BUCKET_COUNT = 800;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKET_COUNT + 1);
+
+    /**
+     * Records a single latency sample.
+     *
+     * @param latencyUs Latency in microseconds. Negative values are ignored.
+     */
+    public void record(long latencyUs) {
+        if (latencyUs < 0) {
+            return;
+        }
+        long bucket = latencyUs / BUCKET_WIDTH_US;
+        m_buckets.incrementAndGet(bucket < BUCKET_COUNT ? (int) bucket : BUCKET_COUNT);
+    }
+
+    /**
+     * Returns the number of recorded samples.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i <= BUCKET_COUNT; ++i) {
+            count += m_buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the latency under which the given fraction of the samples fall.
+     *
+     * @param percentile Percentile in the range [0, 100], e.g. 50 or 99
+     * @return The latency in microseconds (upper bound of the matching bucket), or -1 if no
+     * samples have been recorded yet
+     */
+    public long getPercentileUs(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return -1;
+        }
+        long threshold = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100.0);
+        if (threshold == 0) {
+            threshold = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i <= BUCKET_COUNT; ++i) {
+            seen += m_buckets.get(i);
+            if (seen >= threshold) {
+                return (i + 1) * BUCKET_WIDTH_US;
+            }
+        }
+        return (BUCKET_COUNT + 1) * BUCKET_WIDTH_US;
+    }
+
+    /**
+     * Clears all recorded samples.
+     */
+    public void reset() {
+        for (int i = 0; i <= BUCKET_COUNT; ++i) {
+            m_buckets.set(i, 0);
+        }
+    }
+}
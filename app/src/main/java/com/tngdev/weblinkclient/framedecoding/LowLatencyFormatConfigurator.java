@@ -0,0 +1,190 @@
+/****************************************************************************
+ *
+ * @file LowLatencyFormatConfigurator.java
+ * @brief
+ *
+ * Contains the LowLatencyFormatConfigurator class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Build.VERSION;
+import android.util.Range;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adds the low latency decoding keys a codec supports to its {@link MediaFormat}.
+ * <p></p>
+ * The codec is probed before it is configured:
+ * <ul>
+ *     <li>{@link MediaFormat#KEY_LOW_LATENCY} when the codec reports
+ *     {@link MediaCodecInfo.CodecCapabilities#FEATURE_LowLatency} (Android 11+)</li>
+ *     <li>{@link MediaFormat#KEY_PRIORITY} set to realtime (Android 6.0+)</li>
+ *     <li>{@link MediaFormat#KEY_OPERATING_RATE} set to the highest frame rate the codec
+ *     supports for the video size, so that it runs at full clock (Android 6.0+)</li>
+ *     <li>the vendor specific low latency extensions of the known codec families
+ *     (Android 8.0+). On Android 12+ only the extensions the codec lists in
+ *     {@link MediaCodec#getSupportedVendorParameters()} are used.</li>
+ * </ul>
+ * Keys a codec does not know are normally ignored by {@link MediaCodec#configure}. Codecs that
+ * fail to configure with them anyway are flagged by the decoder and configured without them
+ * on the next start.
+ */
+final class LowLatencyFormatConfigurator {
+
+    private static final String TAG = "LowLatencyFormatConfig";
+
+    /**
+     * Realtime priority for {@link MediaFormat#KEY_PRIORITY}.
+     */
+    private static final int PRIORITY_REALTIME = 0;
+
+    /**
+     * Vendor extensions: codec name prefix (lower case), key and value.
+     */
+    private static final Object[][] VENDOR_KEYS = {
+            // Qualcomm
+            { "omx.qcom.", "vendor.qti-ext-dec-low-latency.enable", 1 },
+            { "omx.qcom.", "vendor.qti-ext-dec-picture-order.enable", 1 },
+            { "c2.qti.", "vendor.qti-ext-dec-low-latency.enable", 1 },
+            { "c2.qti.", "vendor.qti-ext-dec-picture-order.enable", 1 },
+            // Samsung Exynos
+            { "omx.exynos.", "vendor.rtc-ext-dec-low-latency.enable", 1 },
+            { "c2.exynos.", "vendor.rtc-ext-dec-low-latency.enable", 1 },
+            // HiSilicon
+            { "omx.hisi.", "vendor.hisi-ext-low-latency-video-dec.video-scene-for-low-latency-req", 1 },
+            { "omx.hisi.", "vendor.hisi-ext-low-latency-video-dec.video-scene-for-low-latency-rdy", -1 },
+            // Amlogic
+            { "omx.amlogic.", "vendor.low-latency.enable", 1 },
+            { "c2.amlogic.", "vendor.low-latency.enable", 1 },
+    };
+
+    private LowLatencyFormatConfigurator() {
+    }
+
+    /**
+     * Adds the low latency keys supported by the codec to the format.
+     *
+     * @param codec The created, not yet configured codec
+     * @param mimeType The mime type the codec is used for
+     * @param format The format the codec will be configured with
+     * @param width The video width
+     * @param height The video height
+     * @return The keys that were added
+     */
+    static List<String> apply(MediaCodec codec, String mimeType, MediaFormat format, int width, int height) {
+        List<String> appliedKeys = new ArrayList<String>();
+
+        MediaCodecInfo.CodecCapabilities capabilities = null;
+        try {
+            capabilities = codec.getCodecInfo().getCapabilitiesForType(mimeType);
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "apply: Cannot read the capabilities of %s: %s", codec.getName(), e);
+        }
+
+        if (VERSION.SDK_INT >= Build.VERSION_CODES.R && capabilities != null
+                && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency)) {
+            format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+            appliedKeys.add(MediaFormat.KEY_LOW_LATENCY);
+        }
+
+        if (VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, PRIORITY_REALTIME);
+            appliedKeys.add(MediaFormat.KEY_PRIORITY);
+
+            int operatingRate = getMaxFrameRate(capabilities, width, height);
+            if (operatingRate > 0) {
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+                appliedKeys.add(MediaFormat.KEY_OPERATING_RATE);
+            }
+        }
+
+        if (VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            List<String> supportedVendorKeys = null;
+            if (VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                try {
+                    supportedVendorKeys = codec.getSupportedVendorParameters();
+                } catch (Exception e) {
+                    MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "apply: Cannot read the vendor parameters of %s: %s", codec.getName(), e);
+                }
+            }
+            String codecName = codec.getName().toLowerCase(Locale.US);
+            for (Object[] vendorKey : VENDOR_KEYS) {
+                String key = (String) vendorKey[1];
+                if (codecName.startsWith((String) vendorKey[0])
+                        && (supportedVendorKeys == null || supportedVendorKeys.contains(key))) {
+                    format.setInteger(key, (Integer) vendorKey[2]);
+                    appliedKeys.add(key);
+                }
+            }
+        }
+
+        MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "apply: Low latency keys for %s: %s", codec.getName(), appliedKeys);
+        return appliedKeys;
+    }
+
+    /**
+     * Logs which of the applied keys the configured codec reports back in its input format.
+     * Codecs are not required to report them, a missing key does not mean it was rejected.
+     *
+     * @param codec The configured codec
+     * @param appliedKeys The keys returned by {@link #apply}
+     */
+    static void logAcceptedKeys(MediaCodec codec, List<String> appliedKeys) {
+        if (appliedKeys.isEmpty()) {
+            return;
+        }
+        try {
+            MediaFormat inputFormat = codec.getInputFormat();
+            List<String> acceptedKeys = new ArrayList<String>();
+            for (String key : appliedKeys) {
+                if (inputFormat.containsKey(key)) {
+                    acceptedKeys.add(key);
+                }
+            }
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "logAcceptedKeys: %s reports %s", codec.getName(), acceptedKeys);
+        } catch (Exception e) {
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "logAcceptedKeys: Cannot read the input format of %s: %s", codec.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the highest frame rate the codec supports for the given size, or 0 if unknown.
+     */
+    private static int getMaxFrameRate(MediaCodecInfo.CodecCapabilities capabilities, int width, int height) {
+        if (capabilities == null || capabilities.getVideoCapabilities() == null) {
+            return 0;
+        }
+        try {
+            Range<Double> frameRates = capabilities.getVideoCapabilities().getSupportedFrameRatesFor(width, height);
+            return (int) Math.min(frameRates.getUpper(), Short.MAX_VALUE);
+        } catch (IllegalArgumentException e) {
+            // The size is not supported by the codec
+            return 0;
+        }
+    }
+}
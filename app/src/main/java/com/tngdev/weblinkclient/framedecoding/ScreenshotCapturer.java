@@ -0,0 +1,186 @@
+/****************************************************************************
+ *
+ * @file ScreenshotCapturer.java
+ * @brief
+ *
+ * Contains the ScreenshotCapturer class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Build.VERSION;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.PixelCopy;
+import android.view.Surface;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+import com.tngdev.weblinkclient.util.ThreadScheduler;
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Captures the current content of the decoder output surface into a {@link Bitmap} with
+ * {@link PixelCopy} (Android 7.0+).
+ * <p></p>
+ * The copy is done by the GPU, which also scales the frame to the size of the destination
+ * bitmap. The copy completes on a dedicated thread, so the decoder threads never wait for it.
+ * A capture requested while another one is running fails right away.
+ * <p></p>
+ * The bitmaps handed back with {@link #release} are kept in a small pool and reused for the
+ * next captures of the same or a smaller size, so that periodic thumbnails do not churn the heap.
+ */
+final class ScreenshotCapturer {
+
+    private static final String TAG = "ScreenshotCapturer";
+
+    // Maximum number of released bitmaps kept for reuse
+    private static final int MAX_POOLED_BITMAPS = 2;
+
+    // How long a capture waits for the copy to complete
+    private static final long CAPTURE_TIMEOUT_MS = 250;
+
+    private final ArrayDeque<Bitmap> m_freeBitmaps = new ArrayDeque<Bitmap>();
+    private final AtomicBoolean m_capturing = new AtomicBoolean();
+    private HandlerThread m_thread;
+    private Handler m_handler;
+
+    /**
+     * @return true if screenshots can be taken on this device
+     */
+    static boolean isSupported() {
+        return VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    /**
+     * Copies the latest frame of the surface into a bitmap of the given size. Blocks the
+     * calling thread for at most {@link #CAPTURE_TIMEOUT_MS}.
+     *
+     * @param source The surface the decoder renders to
+     * @return The bitmap, or null if the capture failed, timed out or another one is running
+     */
+    Bitmap capture(Surface source, int width, int height) {
+        if (!isSupported() || source == null || !source.isValid() || width <= 0 || height <= 0) {
+            return null;
+        }
+        if (!m_capturing.compareAndSet(false, true)) {
+            MCSLogger.log(MCSLogger.ELogType.eDebug, TAG, "capture: Another capture is running");
+            return null;
+        }
+        try {
+            Bitmap bitmap = acquireBitmap(width, height);
+            final int[] copyResult = { PixelCopy.ERROR_UNKNOWN };
+            final CountDownLatch copyDone = new CountDownLatch(1);
+            PixelCopy.request(source, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+                @Override
+                public void onPixelCopyFinished(int result) {
+                    copyResult[0] = result;
+                    copyDone.countDown();
+                }
+            }, getHandler());
+
+            boolean completed;
+            try {
+                completed = copyDone.await(CAPTURE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+            }
+            if (!completed) {
+                // The copy may still write to the bitmap, leave it to the garbage collector
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "capture: Timed out");
+                return null;
+            }
+            if (copyResult[0] != PixelCopy.SUCCESS) {
+                MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "capture: Copy failed with %d", copyResult[0]);
+                release(bitmap);
+                return null;
+            }
+            return bitmap;
+        } catch (RuntimeException e) {
+            MCSLogger.log(MCSLogger.ELogType.eError, TAG, "capture: Exception raised: ", e);
+            return null;
+        } finally {
+            m_capturing.set(false);
+        }
+    }
+
+    /**
+     * Hands a captured bitmap back for reuse. The caller must not use it afterwards.
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        synchronized (m_freeBitmaps) {
+            if (m_freeBitmaps.size() < MAX_POOLED_BITMAPS && !m_freeBitmaps.contains(bitmap)) {
+                m_freeBitmaps.add(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Drops the pooled bitmaps and stops the copy thread. The capturer can be used again.
+     */
+    void clear() {
+        synchronized (m_freeBitmaps) {
+            m_freeBitmaps.clear();
+        }
+        synchronized (this) {
+            if (m_thread != null) {
+                m_thread.quitSafely();
+                m_thread = null;
+                m_handler = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a pooled bitmap that can hold the size, reconfigured to it, or a new one.
+     */
+    private Bitmap acquireBitmap(int width, int height) {
+        int byteCount = width * height * 4;
+        synchronized (m_freeBitmaps) {
+            for (Bitmap bitmap : m_freeBitmaps) {
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    m_freeBitmaps.remove(bitmap);
+                    if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                    }
+                    return bitmap;
+                }
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private synchronized Handler getHandler() {
+        if (m_handler == null) {
+            m_thread = ThreadScheduler.newHandlerThread(ThreadClass.WORKER, "ScreenshotThread");
+            m_thread.start();
+            m_handler = new Handler(m_thread.getLooper());
+        }
+        return m_handler;
+    }
+}
@@ -0,0 +1,207 @@
+/****************************************************************************
+ *
+ * @file BitReader.java
+ * @brief
+ *
+ * Contains the BitReader class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the RBSP bits of a NAL unit: fixed length fields and exp-Golomb codes.
+ * <p></p>
+ * Emulation prevention bytes ({@code 0x03} after two zero bytes) are skipped on the fly, so the
+ * NAL unit can be read in place. Reading past the end does not throw: zeros are returned and
+ * {@link #isOverrun()} reports it, which keeps the parsers free of allocations and exceptions.
+ * <p></p>
+ * Instances are reusable and not thread safe.
+ */
+public final class BitReader {
+
+    private byte[] m_data;
+    private ByteBuffer m_buffer;
+    private int m_pos;
+    private int m_end;
+    private int m_current;
+    private int m_bitsLeft;
+    private int m_zeros;
+    private int m_bitsRead;
+    private boolean m_overrun;
+
+    /**
+     * Prepares the reader for the given NAL unit payload.
+     *
+     * @param data Buffer holding the NAL unit
+     * @param offset Offset of the first byte to read
+     * @param size Number of bytes available
+     */
+    public void reset(byte[] data, int offset, int size) {
+        m_data = data;
+        m_buffer = null;
+        init(offset, size);
+    }
+
+    /**
+     * Prepares the reader for the given NAL unit payload, read with absolute gets.
+     *
+     * @param buffer Buffer holding the NAL unit
+     * @param offset Offset of the first byte to read
+     * @param size Number of bytes available
+     */
+    public void reset(ByteBuffer buffer, int offset, int size) {
+        m_data = null;
+        m_buffer = buffer;
+        init(offset, size);
+    }
+
+    /**
+     * Prepares the reader for the payload of the current NAL unit of the scanner, right after
+     * the NAL unit header byte.
+     */
+    public void reset(NalUnitScanner scanner) {
+        if (scanner.getArray() != null) {
+            reset(scanner.getArray(), scanner.getNalOffset() + 1, scanner.getNalSize() - 1);
+        } else {
+            reset(scanner.getBuffer(), scanner.getNalOffset() + 1, scanner.getNalSize() - 1);
+        }
+    }
+
+    private void init(int offset, int size) {
+        m_pos = offset;
+        m_end = offset + size;
+        m_current = 0;
+        m_bitsLeft = 0;
+        m_zeros = 0;
+        m_bitsRead = 0;
+        m_overrun = false;
+    }
+
+    /**
+     * Reads a single bit.
+     */
+    public int readBit() {
+        if (m_bitsLeft == 0) {
+            loadByte();
+        }
+        --m_bitsLeft;
+        ++m_bitsRead;
+        return (m_current >> m_bitsLeft) & 1;
+    }
+
+    /**
+     * Reads a boolean flag, {@code u(1)}.
+     */
+    public boolean readFlag() {
+        return readBit() != 0;
+    }
+
+    /**
+     * Reads an unsigned fixed length value, {@code u(n)}.
+     *
+     * @param count Number of bits, up to 32
+     */
+    public int readBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; ++i) {
+            value = (value << 1) | readBit();
+        }
+        return value;
+    }
+
+    /**
+     * Skips the given number of bits.
+     */
+    public void skipBits(int count) {
+        for (int i = 0; i < count; ++i) {
+            readBit();
+        }
+    }
+
+    /**
+     * Reads an unsigned exp-Golomb value, {@code ue(v)}.
+     *
+     * @return The value, or -1 if the code is malformed
+     */
+    public int readUE() {
+        int leadingZeros = 0;
+        while (readBit() == 0) {
+            if (++leadingZeros > 31 || m_overrun) {
+                m_overrun = true;
+                return -1;
+            }
+        }
+        if (leadingZeros == 0) {
+            return 0;
+        }
+        return (int) ((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Reads a signed exp-Golomb value, {@code se(v)}.
+     */
+    public int readSE() {
+        int codeNum = readUE();
+        return (codeNum & 1) != 0 ? (codeNum + 1) / 2 : -(codeNum / 2);
+    }
+
+    /**
+     * Skips an exp-Golomb value.
+     */
+    public void skipUE() {
+        readUE();
+    }
+
+    /**
+     * Returns the number of RBSP bits read so far (emulation prevention bytes excluded).
+     */
+    public int getBitsRead() {
+        return m_bitsRead;
+    }
+
+    /**
+     * Returns true if more data was requested than the NAL unit contains.
+     */
+    public boolean isOverrun() {
+        return m_overrun;
+    }
+
+    private void loadByte() {
+        m_bitsLeft = 8;
+        if (m_pos >= m_end) {
+            m_overrun = true;
+            m_current = 0;
+            return;
+        }
+        int b = (m_data != null ? m_data[m_pos++] : m_buffer.get(m_pos++)) & 0xFF;
+        if (m_zeros >= 2 && b == 0x03) {
+            // Emulation prevention byte, not part of the RBSP
+            m_zeros = 0;
+            if (m_pos >= m_end) {
+                m_overrun = true;
+                m_current = 0;
+                return;
+            }
+            b = (m_data != null ? m_data[m_pos++] : m_buffer.get(m_pos++)) & 0xFF;
+        }
+        m_zeros = b == 0 ? m_zeros + 1 : 0;
+        m_current = b;
+    }
+}
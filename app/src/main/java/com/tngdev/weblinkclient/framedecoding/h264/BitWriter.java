@@ -0,0 +1,185 @@
+/****************************************************************************
+ *
+ * @file BitWriter.java
+ * @brief
+ *
+ * Contains the BitWriter class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * Writes RBSP bits: fixed length fields and exp-Golomb codes. The counterpart of
+ * {@link BitReader}, used to rebuild parameter sets.
+ * <p></p>
+ * The written data is plain RBSP, emulation prevention bytes are added by
+ * {@link #escape(byte[], int, byte[], int)} when the NAL unit is assembled.
+ * <p></p>
+ * Instances are reusable and not thread safe. The internal buffer only grows.
+ */
+public final class BitWriter {
+
+    private byte[] m_data = new byte[64];
+    private int m_bitPos;
+
+    /**
+     * Discards the written data.
+     */
+    public void reset() {
+        m_bitPos = 0;
+    }
+
+    /**
+     * Writes a single bit.
+     */
+    public void writeBit(int bit) {
+        int bytePos = m_bitPos >> 3;
+        if (bytePos >= m_data.length) {
+            byte[] data = new byte[m_data.length * 2];
+            System.arraycopy(m_data, 0, data, 0, m_data.length);
+            m_data = data;
+        }
+        int shift = 7 - (m_bitPos & 7);
+        if (shift == 7) {
+            m_data[bytePos] = 0;
+        }
+        m_data[bytePos] |= (bit & 1) << shift;
+        ++m_bitPos;
+    }
+
+    /**
+     * Writes an unsigned fixed length value, {@code u(n)}.
+     *
+     * @param value The value
+     * @param count Number of bits, up to 32
+     */
+    public void writeBits(int value, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            writeBit(value >>> i);
+        }
+    }
+
+    /**
+     * Writes an unsigned exp-Golomb value, {@code ue(v)}.
+     */
+    public void writeUE(int value) {
+        long codeNum = (value & 0xFFFFFFFFL) + 1;
+        int length = 64 - Long.numberOfLeadingZeros(codeNum);
+        for (int i = 1; i < length; ++i) {
+            writeBit(0);
+        }
+        for (int i = length - 1; i >= 0; --i) {
+            writeBit((int) (codeNum >>> i));
+        }
+    }
+
+    /**
+     * Writes a signed exp-Golomb value, {@code se(v)}.
+     */
+    public void writeSE(int value) {
+        writeUE(value > 0 ? 2 * value - 1 : -2 * value);
+    }
+
+    /**
+     * Copies bits from RBSP data (without emulation prevention bytes).
+     *
+     * @param rbsp The source data
+     * @param bitOffset Offset of the first bit to copy
+     * @param bitCount Number of bits to copy
+     */
+    public void copyBits(byte[] rbsp, int bitOffset, int bitCount) {
+        int end = bitOffset + bitCount;
+        for (int i = bitOffset; i < end; ++i) {
+            writeBit(rbsp[i >> 3] >> (7 - (i & 7)));
+        }
+    }
+
+    /**
+     * Writes the {@code rbsp_trailing_bits}: the stop bit and the zero bits up to the byte
+     * boundary.
+     */
+    public void writeTrailingBits() {
+        writeBit(1);
+        while ((m_bitPos & 7) != 0) {
+            writeBit(0);
+        }
+    }
+
+    /**
+     * Returns the buffer holding the written data. Valid until the next write.
+     */
+    public byte[] getData() {
+        return m_data;
+    }
+
+    /**
+     * Returns the number of bytes written, including the last partial byte.
+     */
+    public int getSize() {
+        return (m_bitPos + 7) >> 3;
+    }
+
+    /**
+     * Returns the number of bits written.
+     */
+    public int getBitsWritten() {
+        return m_bitPos;
+    }
+
+    /**
+     * Returns the size of the RBSP data once emulation prevention bytes are inserted.
+     */
+    public static int getEscapedSize(byte[] rbsp, int size) {
+        int escapedSize = size;
+        int zeros = 0;
+        for (int i = 0; i < size; ++i) {
+            int b = rbsp[i] & 0xFF;
+            if (zeros >= 2 && b <= 3) {
+                ++escapedSize;
+                zeros = 0;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return escapedSize;
+    }
+
+    /**
+     * Copies RBSP data and inserts the emulation prevention bytes, so that no start code
+     * ({@code 0x000000} - {@code 0x000003}) appears in the NAL unit.
+     *
+     * @param rbsp The RBSP data
+     * @param size Size of the RBSP data
+     * @param out Destination, at least {@link #getEscapedSize(byte[], int)} bytes long
+     * @param outOffset Offset in the destination
+     * @return Number of bytes written
+     */
+    public static int escape(byte[] rbsp, int size, byte[] out, int outOffset) {
+        int pos = outOffset;
+        int zeros = 0;
+        for (int i = 0; i < size; ++i) {
+            int b = rbsp[i] & 0xFF;
+            if (zeros >= 2 && b <= 3) {
+                out[pos++] = 0x03;
+                zeros = 0;
+            }
+            out[pos++] = (byte) b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return pos - outOffset;
+    }
+}
@@ -0,0 +1,165 @@
+/****************************************************************************
+ *
+ * @file H264FrameClassifier.java
+ * @brief
+ *
+ * Contains the H264FrameClassifier class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import com.abaltatech.weblink.core.DataBuffer;
+
+/**
+ * Classifies H264 Annex-B access units, so that the decoder can tell configuration frames and
+ * key-frames apart and knows which frames are safe to drop.
+ * <p></p>
+ * The access unit is scanned for NAL units up to the first slice, which gives the
+ * {@code nal_ref_idc} and the {@code slice_type} of the picture. The standard requires
+ * {@code nal_ref_idc} to be zero either for all or for none of the slices of a picture, so the
+ * rest of the (possibly large) access unit does not need to be scanned. A frame with
+ * {@code nal_ref_idc == 0} is not used as a reference by any other frame and can be skipped
+ * without corrupting the picture.
+ * <p></p>
+ * Instances do not allocate while classifying and are not thread safe.
+ */
+public final class H264FrameClassifier {
+
+    /** The access unit contains an IDR slice. */
+    public static final int FLAG_IDR = 0x01;
+    /** The access unit contains an SPS or PPS. */
+    public static final int FLAG_CONFIG = 0x02;
+    /** The access unit contains at least one slice. */
+    public static final int FLAG_SLICE = 0x04;
+    /** The picture is used for reference ({@code nal_ref_idc != 0}). */
+    public static final int FLAG_REFERENCE = 0x08;
+
+    /** Shift of the slice type (0..4, P/B/I/SP/SI) of the first slice within the result. */
+    private static final int SLICE_TYPE_SHIFT = 8;
+    /** Mask of the slice type within the result, after shifting. */
+    private static final int SLICE_TYPE_MASK = 0x0F;
+    /** Slice type value used when the slice header could not be parsed. */
+    public static final int SLICE_TYPE_UNKNOWN = 0x0F;
+    /** Slice type of B slices, see {@link #getSliceType(int)}. */
+    public static final int SLICE_TYPE_B = 1;
+
+    private final NalUnitScanner m_scanner = new NalUnitScanner();
+    private final BitReader m_reader = new BitReader();
+
+    /**
+     * Classifies the access unit.
+     *
+     * @param frameBits The access unit in Annex-B format
+     * @return Combination of the FLAG_* values and the slice type of the first slice
+     */
+    public int classify(DataBuffer frameBits) {
+        m_scanner.reset(frameBits);
+        return classify();
+    }
+
+    /**
+     * Classifies the access unit.
+     *
+     * @param data Buffer holding the access unit in Annex-B format
+     * @param offset Offset of the access unit in the buffer
+     * @param size Size of the access unit in bytes
+     * @return Combination of the FLAG_* values and the slice type of the first slice
+     */
+    public int classify(byte[] data, int offset, int size) {
+        m_scanner.reset(data, offset, size);
+        return classify();
+    }
+
+    private int classify() {
+        int result = SLICE_TYPE_UNKNOWN << SLICE_TYPE_SHIFT;
+        while (m_scanner.next()) {
+            int nalType = m_scanner.getNalType();
+            if (NalUnitType.isSlice(nalType)) {
+                result |= FLAG_SLICE;
+                if (nalType == NalUnitType.IDR) {
+                    result |= FLAG_IDR;
+                }
+                if (m_scanner.getNalRefIdc() != 0) {
+                    result |= FLAG_REFERENCE;
+                }
+                int sliceType = parseSliceType();
+                if (sliceType >= 0) {
+                    result = (result & ~(SLICE_TYPE_MASK << SLICE_TYPE_SHIFT))
+                            | (sliceType << SLICE_TYPE_SHIFT);
+                }
+                // The first slice tells everything about the picture
+                return result;
+            }
+            if (nalType == NalUnitType.SPS || nalType == NalUnitType.PPS) {
+                result |= FLAG_CONFIG;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the classified frame can be dropped without affecting other frames.
+     */
+    public static boolean isDisposable(int classification) {
+        return (classification & (FLAG_SLICE | FLAG_REFERENCE | FLAG_IDR | FLAG_CONFIG)) == FLAG_SLICE;
+    }
+
+    /**
+     * Returns true if the classified frame carries an SPS or PPS.
+     */
+    public static boolean isConfigFrame(int classification) {
+        return (classification & FLAG_CONFIG) != 0;
+    }
+
+    /**
+     * Returns true if the classified frame is an IDR frame.
+     */
+    public static boolean isKeyFrame(int classification) {
+        return (classification & FLAG_IDR) != 0;
+    }
+
+    /**
+     * Returns the slice type (0..4) of the first slice, or {@link #SLICE_TYPE_UNKNOWN}.
+     */
+    public static int getSliceType(int classification) {
+        return (classification >> SLICE_TYPE_SHIFT) & SLICE_TYPE_MASK;
+    }
+
+    /**
+     * Reads {@code first_mb_in_slice} and {@code slice_type} from the slice header. The reader
+     * stops at the slice header, the slice data is not touched.
+     *
+     * @return The slice type reduced to 0..4, or -1 if the header is truncated
+     */
+    private int parseSliceType() {
+        if (m_scanner.getArray() != null) {
+            // Bound the reader by the array end rather than the NAL end, which is not known yet
+            byte[] data = m_scanner.getArray();
+            m_reader.reset(data, m_scanner.getNalOffset() + 1, Math.min(16, data.length - m_scanner.getNalOffset() - 1));
+        } else {
+            m_reader.reset(m_scanner.getBuffer(), m_scanner.getNalOffset() + 1,
+                    Math.min(16, m_scanner.getBuffer().limit() - m_scanner.getNalOffset() - 1));
+        }
+        m_reader.skipUE(); // first_mb_in_slice
+        int sliceType = m_reader.readUE();
+        if (m_reader.isOverrun() || sliceType < 0) {
+            return -1;
+        }
+        return sliceType % 5;
+    }
+}
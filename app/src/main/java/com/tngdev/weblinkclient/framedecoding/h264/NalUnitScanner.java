@@ -0,0 +1,240 @@
+/****************************************************************************
+ *
+ * @file NalUnitScanner.java
+ * @brief
+ *
+ * Contains the NalUnitScanner class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import com.abaltatech.weblink.core.DataBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation free scanner for NAL units in an H264 Annex-B byte stream.
+ * <p></p>
+ * A scanner instance is meant to be reused: {@link #reset} it with the access unit and iterate
+ * with {@link #next()}. Both 3 and 4 byte start codes are recognized; the trailing zero bytes
+ * before a start code are not counted as part of the preceding NAL unit.
+ * <p></p>
+ * The end of a NAL unit is only searched for when {@link #getNalSize()} is called, so looking at
+ * the headers of the leading NAL units does not scan through the slice data that follows.
+ * <p></p>
+ * Example:
+ * <pre>
+ *     scanner.reset(frameBits);
+ *     while (scanner.next()) {
+ *         if (scanner.getNalType() == NalUnitType.SPS) {
+ *             SpsParser.parse(scanner, spsInfo);
+ *         }
+ *     }
+ * </pre>
+ * Instances are not thread safe.
+ */
+public final class NalUnitScanner {
+
+    private byte[] m_array;
+    private ByteBuffer m_buffer;
+    private int m_start;
+    private int m_end;
+
+    private int m_nalOffset = -1;
+    private int m_nalEnd = -1;
+    private int m_followingStartCode = -1;
+
+    /**
+     * Prepares the scanner for the given byte range.
+     */
+    public void reset(byte[] data, int offset, int size) {
+        m_array = data;
+        m_buffer = null;
+        init(offset, offset + size);
+    }
+
+    /**
+     * Prepares the scanner for the readable bytes of the given data buffer.
+     */
+    public void reset(DataBuffer frameBits) {
+        reset(frameBits.getData(), frameBits.getPos(), frameBits.getSize());
+    }
+
+    /**
+     * Prepares the scanner for the bytes between the position and the limit of the given buffer.
+     * The buffer position is not modified. Heap buffers are scanned through their backing array.
+     */
+    public void reset(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            reset(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            m_array = null;
+            m_buffer = buffer;
+            init(buffer.position(), buffer.limit());
+        }
+    }
+
+    private void init(int start, int end) {
+        m_start = start;
+        m_end = end;
+        m_nalOffset = -1;
+        m_nalEnd = -1;
+        m_followingStartCode = -1;
+    }
+
+    /**
+     * Advances to the next NAL unit.
+     *
+     * @return true if a NAL unit was found, false at the end of the data
+     */
+    public boolean next() {
+        int startCode;
+        if (m_nalOffset < 0) {
+            startCode = m_nalEnd < 0 ? find(m_start) : -1;
+        } else if (m_nalEnd >= 0) {
+            startCode = m_followingStartCode;
+        } else {
+            startCode = find(m_nalOffset);
+        }
+        // Skip empty NAL units (a start code directly followed by another one)
+        while (startCode >= 0 && startCode + 3 < m_end && byteAt(startCode + 3) == 0) {
+            startCode = find(startCode + 3);
+        }
+        if (startCode < 0 || startCode + 3 >= m_end) {
+            // Mark the scanner as finished
+            m_nalOffset = -1;
+            m_nalEnd = m_end;
+            return false;
+        }
+        m_nalOffset = startCode + 3;
+        m_nalEnd = -1;
+        return true;
+    }
+
+    private void findNalEnd() {
+        int following = find(m_nalOffset);
+        int nalEnd = following >= 0 ? following : m_end;
+        // Drop the trailing zero bytes (zero_byte of a 4 byte start code or trailing_zero_8bits)
+        while (nalEnd > m_nalOffset + 1 && byteAt(nalEnd - 1) == 0) {
+            --nalEnd;
+        }
+        m_followingStartCode = following;
+        m_nalEnd = nalEnd;
+    }
+
+    /**
+     * Returns the offset of the current NAL unit (its header byte) in the scanned array or buffer.
+     */
+    public int getNalOffset() {
+        return m_nalOffset;
+    }
+
+    /**
+     * Returns the size of the current NAL unit including its header byte.
+     */
+    public int getNalSize() {
+        if (m_nalEnd < 0) {
+            findNalEnd();
+        }
+        return m_nalEnd - m_nalOffset;
+    }
+
+    /**
+     * Returns the {@code nal_unit_type} of the current NAL unit.
+     */
+    public int getNalType() {
+        return byteAt(m_nalOffset) & 0x1F;
+    }
+
+    /**
+     * Returns the {@code nal_ref_idc} of the current NAL unit.
+     */
+    public int getNalRefIdc() {
+        return (byteAt(m_nalOffset) >> 5) & 0x03;
+    }
+
+    /**
+     * Returns the scanned array, or null if a direct buffer is being scanned.
+     */
+    public byte[] getArray() {
+        return m_array;
+    }
+
+    /**
+     * Returns the scanned direct buffer, or null if an array is being scanned.
+     */
+    public ByteBuffer getBuffer() {
+        return m_buffer;
+    }
+
+    /**
+     * Returns the byte at the given offset of the scanned array or buffer.
+     */
+    public int byteAt(int offset) {
+        return m_array != null ? m_array[offset] : m_buffer.get(offset);
+    }
+
+    private int find(int from) {
+        if (m_array != null) {
+            return findStartCode(m_array, from, m_end);
+        }
+        return findStartCode(m_buffer, from, m_end);
+    }
+
+    /**
+     * Finds the next {@code 00 00 01} start code.
+     *
+     * @param data The data to search
+     * @param from Offset to start the search at
+     * @param end End of the searched range (exclusive)
+     * @return Offset of the first byte of the start code, or -1 if there is none
+     */
+    public static int findStartCode(byte[] data, int from, int end) {
+        int i = from + 2;
+        while (i < end) {
+            int b = data[i];
+            if (b == 0) {
+                ++i;
+            } else if (b == 1 && data[i - 1] == 0 && data[i - 2] == 0) {
+                return i - 2;
+            } else {
+                // No start code can end at i, i + 1 or i + 2
+                i += 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@link ByteBuffer} variant of {@link #findStartCode(byte[], int, int)} using absolute reads.
+     */
+    public static int findStartCode(ByteBuffer data, int from, int end) {
+        int i = from + 2;
+        while (i < end) {
+            int b = data.get(i);
+            if (b == 0) {
+                ++i;
+            } else if (b == 1 && data.get(i - 1) == 0 && data.get(i - 2) == 0) {
+                return i - 2;
+            } else {
+                i += 3;
+            }
+        }
+        return -1;
+    }
+}
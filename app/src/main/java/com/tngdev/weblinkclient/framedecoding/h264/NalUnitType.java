@@ -0,0 +1,51 @@
+/****************************************************************************
+ *
+ * @file NalUnitType.java
+ * @brief
+ *
+ * Contains the NalUnitType class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * H264 NAL unit types (ITU-T H.264, Table 7-1) used by the client.
+ */
+public final class NalUnitType {
+
+    public static final int SLICE = 1;
+    public static final int SLICE_DATA_PARTITION_A = 2;
+    public static final int IDR = 5;
+    public static final int SEI = 6;
+    public static final int SPS = 7;
+    public static final int PPS = 8;
+    public static final int ACCESS_UNIT_DELIMITER = 9;
+    public static final int END_OF_SEQUENCE = 10;
+    public static final int END_OF_STREAM = 11;
+    public static final int FILLER_DATA = 12;
+
+    private NalUnitType() {
+    }
+
+    /**
+     * Returns true if the NAL unit type carries a coded slice of a picture.
+     */
+    public static boolean isSlice(int nalType) {
+        return nalType == SLICE || nalType == SLICE_DATA_PARTITION_A || nalType == IDR;
+    }
+}
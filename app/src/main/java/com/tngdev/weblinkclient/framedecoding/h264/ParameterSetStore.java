@@ -0,0 +1,231 @@
+/****************************************************************************
+ *
+ * @file ParameterSetStore.java
+ * @brief
+ *
+ * Contains the ParameterSetStore class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import com.abaltatech.weblink.core.DataBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the latest sequence and picture parameter sets of an H264 stream.
+ * <p></p>
+ * Parameter sets are stored by their ID, a parameter set that is sent again replaces the
+ * stored one instead of being added. The memory use is bounded by the number of IDs the
+ * standard allows (32 SPS, 256 PPS) and by {@link #MAX_PARAMETER_SET_SIZE}, no matter how many
+ * times the stream repeats its configuration.
+ * <p></p>
+ * The stored sets can be passed to the codec as {@code csd-0} (SPS) and {@code csd-1} (PPS)
+ * when it is configured, or written out as one Annex-B access unit.
+ * <p></p>
+ * Instances reuse their buffers and are not thread safe.
+ */
+public final class ParameterSetStore {
+
+    /**
+     * Largest parameter set NAL unit that is stored. Real parameter sets, even with scaling
+     * matrices, stay well below this, larger ones are taken as corrupt and ignored.
+     */
+    public static final int MAX_PARAMETER_SET_SIZE = 1024;
+
+    private static final int MAX_SPS_COUNT = 32;
+    private static final int MAX_PPS_COUNT = 256;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final NalUnitScanner m_scanner = new NalUnitScanner();
+    private final BitReader m_reader = new BitReader();
+    private final SpsInfo m_spsInfo = new SpsInfo();
+    private final PpsInfo m_ppsInfo = new PpsInfo();
+
+    // NAL units indexed by their ID, without start code
+    private final byte[][] m_sps = new byte[MAX_SPS_COUNT][];
+    private final int[] m_spsSize = new int[MAX_SPS_COUNT];
+    private final byte[][] m_pps = new byte[MAX_PPS_COUNT][];
+    private final int[] m_ppsSize = new int[MAX_PPS_COUNT];
+
+    // Picture size signalled by the most recently stored SPS
+    private int m_width;
+    private int m_height;
+
+    /**
+     * Stores the parameter sets of the access unit.
+     *
+     * @param data Buffer holding the access unit in Annex-B format
+     * @param offset Offset of the access unit in the buffer
+     * @param size Size of the access unit in bytes
+     * @return true if a new or changed parameter set was stored, false if all of them were
+     *         already known (or could not be parsed)
+     */
+    public boolean update(byte[] data, int offset, int size) {
+        boolean changed = false;
+        m_scanner.reset(data, offset, size);
+        while (m_scanner.next()) {
+            int nalType = m_scanner.getNalType();
+            if (NalUnitType.isSlice(nalType)) {
+                // Parameter sets precede the slices of the access unit
+                break;
+            }
+            if (nalType == NalUnitType.SPS) {
+                if (SpsParser.parse(m_scanner, m_reader, m_spsInfo)
+                        && store(m_sps, m_spsSize, m_spsInfo.spsId)) {
+                    m_width = m_spsInfo.width;
+                    m_height = m_spsInfo.height;
+                    changed = true;
+                }
+            } else if (nalType == NalUnitType.PPS) {
+                if (PpsParser.parse(m_scanner, m_reader, m_ppsInfo)
+                        && store(m_pps, m_ppsSize, m_ppsInfo.ppsId)) {
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns true if at least one SPS and one PPS are stored.
+     */
+    public boolean isComplete() {
+        return count(m_spsSize) > 0 && count(m_ppsSize) > 0;
+    }
+
+    /**
+     * Returns the picture width signalled by the most recently stored SPS, or 0.
+     */
+    public int getWidth() {
+        return m_width;
+    }
+
+    /**
+     * Returns the picture height signalled by the most recently stored SPS, or 0.
+     */
+    public int getHeight() {
+        return m_height;
+    }
+
+    /**
+     * Returns the stored SPS NAL units in Annex-B format, as expected in {@code csd-0}.
+     */
+    public ByteBuffer getSpsBuffer() {
+        return toBuffer(m_sps, m_spsSize);
+    }
+
+    /**
+     * Returns the stored PPS NAL units in Annex-B format, as expected in {@code csd-1}.
+     */
+    public ByteBuffer getPpsBuffer() {
+        return toBuffer(m_pps, m_ppsSize);
+    }
+
+    /**
+     * Replaces the content of the buffer with the stored SPS and PPS NAL units, in Annex-B format.
+     *
+     * @param out Receives the parameter sets
+     */
+    public void writeTo(DataBuffer out) {
+        out.resize(0);
+        out.reset();
+        write(m_sps, m_spsSize, out);
+        write(m_pps, m_ppsSize, out);
+    }
+
+    /**
+     * Drops all stored parameter sets. The buffers are kept for reuse.
+     */
+    public void clear() {
+        Arrays.fill(m_spsSize, 0);
+        Arrays.fill(m_ppsSize, 0);
+        m_width = 0;
+        m_height = 0;
+    }
+
+    /**
+     * Stores the NAL unit the scanner is positioned at under the given ID.
+     *
+     * @return true if the stored NAL unit changed
+     */
+    private boolean store(byte[][] slots, int[] sizes, int id) {
+        int nalOffset = m_scanner.getNalOffset();
+        int nalSize = m_scanner.getNalSize();
+        if (nalSize > MAX_PARAMETER_SET_SIZE) {
+            return false;
+        }
+        byte[] slot = slots[id];
+        if (sizes[id] == nalSize) {
+            boolean same = true;
+            for (int i = 0; i < nalSize && same; ++i) {
+                same = slot[i] == (byte) m_scanner.byteAt(nalOffset + i);
+            }
+            if (same) {
+                return false;
+            }
+        }
+        if (slot == null || slot.length < nalSize) {
+            slot = new byte[nalSize];
+            slots[id] = slot;
+        }
+        for (int i = 0; i < nalSize; ++i) {
+            slot[i] = (byte) m_scanner.byteAt(nalOffset + i);
+        }
+        sizes[id] = nalSize;
+        return true;
+    }
+
+    private static int count(int[] sizes) {
+        int count = 0;
+        for (int size : sizes) {
+            if (size > 0) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer toBuffer(byte[][] slots, int[] sizes) {
+        int total = 0;
+        for (int size : sizes) {
+            if (size > 0) {
+                total += START_CODE.length + size;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (int id = 0; id < sizes.length; ++id) {
+            if (sizes[id] > 0) {
+                buffer.put(START_CODE);
+                buffer.put(slots[id], 0, sizes[id]);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(byte[][] slots, int[] sizes, DataBuffer out) {
+        for (int id = 0; id < sizes.length; ++id) {
+            if (sizes[id] > 0) {
+                out.addBytes(START_CODE, 0, START_CODE.length);
+                out.addBytes(slots[id], 0, sizes[id]);
+            }
+        }
+    }
+}
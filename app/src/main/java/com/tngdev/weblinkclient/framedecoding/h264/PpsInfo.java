@@ -0,0 +1,44 @@
+/****************************************************************************
+ *
+ * @file PpsInfo.java
+ * @brief
+ *
+ * Contains the PpsInfo class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * Parameters extracted from an H264 picture parameter set by {@link PpsParser}.
+ * <p></p>
+ * Instances are mutable so that they can be reused by the parser without allocating.
+ */
+public final class PpsInfo {
+
+    public int ppsId;
+    public int spsId;
+    /** true for CABAC, false for CAVLC. */
+    public boolean entropyCodingModeFlag;
+    public boolean bottomFieldPicOrderInFramePresent;
+    public int numSliceGroups;
+
+    @Override
+    public String toString() {
+        return "PPS{id=" + ppsId + ", sps=" + spsId + ", cabac=" + entropyCodingModeFlag + "}";
+    }
+}
@@ -0,0 +1,76 @@
+/****************************************************************************
+ *
+ * @file PpsParser.java
+ * @brief
+ *
+ * Contains the PpsParser class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * Parses the leading fields of an H264 picture parameter set (ITU-T H.264, 7.3.2.2).
+ */
+public final class PpsParser {
+
+    private PpsParser() {
+    }
+
+    /**
+     * Parses the PPS NAL unit the scanner is positioned at.
+     *
+     * @param scanner Scanner positioned at a PPS NAL unit
+     * @param reader Reusable bit reader
+     * @param out Receives the parsed values
+     * @return true on success, false if the NAL unit is not a PPS or is truncated
+     */
+    public static boolean parse(NalUnitScanner scanner, BitReader reader, PpsInfo out) {
+        if (scanner.getNalType() != NalUnitType.PPS) {
+            return false;
+        }
+        reader.reset(scanner);
+        return parseRbsp(reader, out);
+    }
+
+    /**
+     * Parses a PPS NAL unit held in an array.
+     *
+     * @param data Buffer holding the NAL unit, starting with the NAL unit header byte
+     * @param offset Offset of the NAL unit header byte
+     * @param size Size of the NAL unit
+     * @param reader Reusable bit reader
+     * @param out Receives the parsed values
+     * @return true on success, false if the NAL unit is not a PPS or is truncated
+     */
+    public static boolean parse(byte[] data, int offset, int size, BitReader reader, PpsInfo out) {
+        if (size < 2 || (data[offset] & 0x1F) != NalUnitType.PPS) {
+            return false;
+        }
+        reader.reset(data, offset + 1, size - 1);
+        return parseRbsp(reader, out);
+    }
+
+    private static boolean parseRbsp(BitReader reader, PpsInfo out) {
+        out.ppsId = reader.readUE();
+        out.spsId = reader.readUE();
+        out.entropyCodingModeFlag = reader.readFlag();
+        out.bottomFieldPicOrderInFramePresent = reader.readFlag();
+        out.numSliceGroups = reader.readUE() + 1;
+        return !reader.isOverrun() && out.ppsId >= 0 && out.ppsId < 256 && out.spsId >= 0 && out.spsId < 32;
+    }
+}
@@ -0,0 +1,100 @@
+/****************************************************************************
+ *
+ * @file SpsInfo.java
+ * @brief
+ *
+ * Contains the SpsInfo class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * Stream parameters extracted from an H264 sequence parameter set by {@link SpsParser}.
+ * <p></p>
+ * Instances are mutable so that they can be reused by the parser without allocating.
+ */
+public final class SpsInfo {
+
+    public int profileIdc;
+    public int constraintFlags;
+    public int levelIdc;
+    public int spsId;
+    public int chromaFormatIdc;
+
+    /** Decoded picture width in pixels, after cropping. */
+    public int width;
+    /** Decoded picture height in pixels, after cropping. */
+    public int height;
+
+    public int maxNumRefFrames;
+    public boolean frameMbsOnly;
+
+    public boolean vuiPresent;
+    /** true if the VUI carries {@code bitstream_restriction} (the values below are signalled). */
+    public boolean bitstreamRestriction;
+    /** {@code max_num_reorder_frames}, signalled or inferred. */
+    public int maxNumReorderFrames;
+    /** {@code max_dec_frame_buffering}, signalled or inferred. */
+    public int maxDecFrameBuffering;
+
+    // RBSP bit offsets (counted from the first bit after the NAL unit header) of the syntax
+    // elements needed by SpsVuiRewriter, -1 when the element is not present.
+    /** Offset of {@code vui_parameters_present_flag}. */
+    public int vuiFlagBitOffset;
+    /** Offset of {@code bitstream_restriction_flag}. */
+    public int bitstreamRestrictionBitOffset;
+    /** Offset of {@code max_num_reorder_frames}. */
+    public int maxNumReorderFramesBitOffset;
+
+    /**
+     * Returns true if the {@code constraint_set3_flag} is set.
+     */
+    public boolean isConstraintSet3() {
+        return (constraintFlags & 0x10) != 0;
+    }
+
+    /**
+     * Copies all the values from the other instance.
+     */
+    public void copyFrom(SpsInfo other) {
+        profileIdc = other.profileIdc;
+        constraintFlags = other.constraintFlags;
+        levelIdc = other.levelIdc;
+        spsId = other.spsId;
+        chromaFormatIdc = other.chromaFormatIdc;
+        width = other.width;
+        height = other.height;
+        maxNumRefFrames = other.maxNumRefFrames;
+        frameMbsOnly = other.frameMbsOnly;
+        vuiPresent = other.vuiPresent;
+        bitstreamRestriction = other.bitstreamRestriction;
+        maxNumReorderFrames = other.maxNumReorderFrames;
+        maxDecFrameBuffering = other.maxDecFrameBuffering;
+        vuiFlagBitOffset = other.vuiFlagBitOffset;
+        bitstreamRestrictionBitOffset = other.bitstreamRestrictionBitOffset;
+        maxNumReorderFramesBitOffset = other.maxNumReorderFramesBitOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "SPS{id=" + spsId + ", profile=" + profileIdc + ", level=" + levelIdc
+                + ", " + width + "x" + height + ", refFrames=" + maxNumRefFrames
+                + ", reorder=" + maxNumReorderFrames + ", decBuffering=" + maxDecFrameBuffering
+                + (bitstreamRestriction ? "" : " (inferred)") + "}";
+    }
+}
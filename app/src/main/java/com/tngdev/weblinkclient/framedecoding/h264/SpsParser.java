@@ -0,0 +1,330 @@
+/****************************************************************************
+ *
+ * @file SpsParser.java
+ * @brief
+ *
+ * Contains the SpsParser class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * Parses H264 sequence parameter sets (ITU-T H.264, 7.3.2.1.1 and E.1.1).
+ * <p></p>
+ * Extracts the resolution, profile and level, and the decoder buffering parameters
+ * {@code max_num_reorder_frames} and {@code max_dec_frame_buffering}. When the SPS does not carry
+ * {@code bitstream_restriction}, the buffering parameters are inferred as the standard
+ * prescribes, which is what a conforming decoder has to assume.
+ * <p></p>
+ * Parsing does not allocate, the results are written into a caller provided {@link SpsInfo}.
+ */
+public final class SpsParser {
+
+    private SpsParser() {
+    }
+
+    /**
+     * Parses the SPS NAL unit the scanner is positioned at.
+     *
+     * @param scanner Scanner positioned at an SPS NAL unit
+     * @param reader Reusable bit reader
+     * @param out Receives the parsed values
+     * @return true on success, false if the NAL unit is not an SPS or is malformed
+     */
+    public static boolean parse(NalUnitScanner scanner, BitReader reader, SpsInfo out) {
+        if (scanner.getNalType() != NalUnitType.SPS) {
+            return false;
+        }
+        reader.reset(scanner);
+        return parseRbsp(reader, out);
+    }
+
+    /**
+     * Parses an SPS NAL unit held in an array.
+     *
+     * @param data Buffer holding the NAL unit, starting with the NAL unit header byte
+     * @param offset Offset of the NAL unit header byte
+     * @param size Size of the NAL unit
+     * @param reader Reusable bit reader
+     * @param out Receives the parsed values
+     * @return true on success, false if the NAL unit is not an SPS or is malformed
+     */
+    public static boolean parse(byte[] data, int offset, int size, BitReader reader, SpsInfo out) {
+        if (size < 4 || (data[offset] & 0x1F) != NalUnitType.SPS) {
+            return false;
+        }
+        reader.reset(data, offset + 1, size - 1);
+        return parseRbsp(reader, out);
+    }
+
+    private static boolean parseRbsp(BitReader reader, SpsInfo out) {
+        out.profileIdc = reader.readBits(8);
+        out.constraintFlags = reader.readBits(8);
+        out.levelIdc = reader.readBits(8);
+        out.spsId = reader.readUE();
+        if (out.spsId < 0 || out.spsId > 31) {
+            return false;
+        }
+
+        out.chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (hasChromaFormatInfo(out.profileIdc)) {
+            out.chromaFormatIdc = reader.readUE();
+            if (out.chromaFormatIdc == 3) {
+                separateColourPlane = reader.readFlag();
+            }
+            reader.skipUE(); // bit_depth_luma_minus8
+            reader.skipUE(); // bit_depth_chroma_minus8
+            reader.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readFlag()) { // seq_scaling_matrix_present_flag
+                int count = out.chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < count; ++i) {
+                    if (reader.readFlag()) { // seq_scaling_list_present_flag
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        reader.skipUE(); // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUE();
+        if (picOrderCntType == 0) {
+            reader.skipUE(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.skipBits(1); // delta_pic_order_always_zero_flag
+            reader.readSE(); // offset_for_non_ref_pic
+            reader.readSE(); // offset_for_top_to_bottom_field
+            int cycle = reader.readUE();
+            if (cycle < 0 || cycle > 255) {
+                return false;
+            }
+            for (int i = 0; i < cycle; ++i) {
+                reader.readSE(); // offset_for_ref_frame
+            }
+        } else if (picOrderCntType != 2) {
+            return false;
+        }
+
+        out.maxNumRefFrames = reader.readUE();
+        reader.skipBits(1); // gaps_in_frame_num_value_allowed_flag
+        int picWidthInMbs = reader.readUE() + 1;
+        int picHeightInMapUnits = reader.readUE() + 1;
+        out.frameMbsOnly = reader.readFlag();
+        if (!out.frameMbsOnly) {
+            reader.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        reader.skipBits(1); // direct_8x8_inference_flag
+
+        int frameHeightInMbs = (out.frameMbsOnly ? 1 : 2) * picHeightInMapUnits;
+        int cropLeft = 0, cropRight = 0, cropTop = 0, cropBottom = 0;
+        if (reader.readFlag()) { // frame_cropping_flag
+            cropLeft = reader.readUE();
+            cropRight = reader.readUE();
+            cropTop = reader.readUE();
+            cropBottom = reader.readUE();
+        }
+        int cropUnitX;
+        int cropUnitY;
+        if (separateColourPlane || out.chromaFormatIdc == 0) {
+            cropUnitX = 1;
+            cropUnitY = out.frameMbsOnly ? 1 : 2;
+        } else {
+            int subWidthC = out.chromaFormatIdc == 3 ? 1 : 2;
+            int subHeightC = out.chromaFormatIdc == 1 ? 2 : 1;
+            cropUnitX = subWidthC;
+            cropUnitY = subHeightC * (out.frameMbsOnly ? 1 : 2);
+        }
+        out.width = picWidthInMbs * 16 - cropUnitX * (cropLeft + cropRight);
+        out.height = frameHeightInMbs * 16 - cropUnitY * (cropTop + cropBottom);
+
+        out.vuiFlagBitOffset = reader.getBitsRead();
+        out.bitstreamRestrictionBitOffset = -1;
+        out.maxNumReorderFramesBitOffset = -1;
+        out.vuiPresent = reader.readFlag();
+        out.bitstreamRestriction = false;
+        if (out.vuiPresent && !parseVui(reader, out)) {
+            return false;
+        }
+        if (!out.bitstreamRestriction) {
+            if (isIntraOnlyProfile(out)) {
+                out.maxNumReorderFrames = 0;
+                out.maxDecFrameBuffering = 0;
+            } else {
+                int maxDpbFrames = getMaxDpbFrames(out.profileIdc, out.levelIdc, out.isConstraintSet3(),
+                        picWidthInMbs * frameHeightInMbs);
+                out.maxNumReorderFrames = maxDpbFrames;
+                out.maxDecFrameBuffering = maxDpbFrames;
+            }
+        }
+
+        return !reader.isOverrun() && out.width > 0 && out.height > 0;
+    }
+
+    private static boolean parseVui(BitReader reader, SpsInfo out) {
+        if (reader.readFlag()) { // aspect_ratio_info_present_flag
+            int aspectRatioIdc = reader.readBits(8);
+            if (aspectRatioIdc == 255) { // Extended_SAR
+                reader.skipBits(16); // sar_width
+                reader.skipBits(16); // sar_height
+            }
+        }
+        if (reader.readFlag()) { // overscan_info_present_flag
+            reader.skipBits(1); // overscan_appropriate_flag
+        }
+        if (reader.readFlag()) { // video_signal_type_present_flag
+            reader.skipBits(3); // video_format
+            reader.skipBits(1); // video_full_range_flag
+            if (reader.readFlag()) { // colour_description_present_flag
+                reader.skipBits(24); // colour_primaries, transfer_characteristics, matrix_coefficients
+            }
+        }
+        if (reader.readFlag()) { // chroma_loc_info_present_flag
+            reader.skipUE(); // chroma_sample_loc_type_top_field
+            reader.skipUE(); // chroma_sample_loc_type_bottom_field
+        }
+        if (reader.readFlag()) { // timing_info_present_flag
+            reader.skipBits(32); // num_units_in_tick
+            reader.skipBits(32); // time_scale
+            reader.skipBits(1); // fixed_frame_rate_flag
+        }
+        boolean nalHrd = reader.readFlag();
+        if (nalHrd && !skipHrdParameters(reader)) {
+            return false;
+        }
+        boolean vclHrd = reader.readFlag();
+        if (vclHrd && !skipHrdParameters(reader)) {
+            return false;
+        }
+        if (nalHrd || vclHrd) {
+            reader.skipBits(1); // low_delay_hrd_flag
+        }
+        reader.skipBits(1); // pic_struct_present_flag
+        out.bitstreamRestrictionBitOffset = reader.getBitsRead();
+        out.bitstreamRestriction = reader.readFlag();
+        if (out.bitstreamRestriction) {
+            reader.skipBits(1); // motion_vectors_over_pic_boundaries_flag
+            reader.skipUE(); // max_bytes_per_pic_denom
+            reader.skipUE(); // max_bits_per_mb_denom
+            reader.skipUE(); // log2_max_mv_length_horizontal
+            reader.skipUE(); // log2_max_mv_length_vertical
+            out.maxNumReorderFramesBitOffset = reader.getBitsRead();
+            out.maxNumReorderFrames = reader.readUE();
+            out.maxDecFrameBuffering = reader.readUE();
+        }
+        return !reader.isOverrun();
+    }
+
+    private static boolean skipHrdParameters(BitReader reader) {
+        int cpbCnt = reader.readUE() + 1;
+        if (cpbCnt < 1 || cpbCnt > 32) {
+            return false;
+        }
+        reader.skipBits(4); // bit_rate_scale
+        reader.skipBits(4); // cpb_size_scale
+        for (int i = 0; i < cpbCnt; ++i) {
+            reader.skipUE(); // bit_rate_value_minus1
+            reader.skipUE(); // cpb_size_value_minus1
+            reader.skipBits(1); // cbr_flag
+        }
+        reader.skipBits(5); // initial_cpb_removal_delay_length_minus1
+        reader.skipBits(5); // cpb_removal_delay_length_minus1
+        reader.skipBits(5); // dpb_output_delay_length_minus1
+        reader.skipBits(5); // time_offset_length
+        return true;
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; ++j) {
+            if (nextScale != 0) {
+                int deltaScale = reader.readSE();
+                nextScale = (lastScale + deltaScale + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    /**
+     * Profiles that carry chroma_format_idc and the related fields in the SPS.
+     */
+    private static boolean hasChromaFormatInfo(int profileIdc) {
+        switch (profileIdc) {
+            case 100: case 110: case 122: case 244: case 44:
+            case 83: case 86: case 118: case 128: case 138:
+            case 139: case 134: case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Intra profiles, for which max_num_reorder_frames and max_dec_frame_buffering are inferred
+     * to be 0 (E.2.1).
+     */
+    private static boolean isIntraOnlyProfile(SpsInfo sps) {
+        switch (sps.profileIdc) {
+            case 44: case 86: case 100: case 110: case 122: case 244:
+                return sps.isConstraintSet3();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns MaxDpbFrames for the level (A.3.1, Table A-1).
+     *
+     * @param profileIdc The profile_idc
+     * @param levelIdc The level_idc
+     * @param constraintSet3 The constraint_set3_flag, marks level 1b when level_idc is 11 in the
+     *                       Baseline, Main and Extended profiles
+     * @param frameSizeInMbs Frame size in macroblocks
+     */
+    static int getMaxDpbFrames(int profileIdc, int levelIdc, boolean constraintSet3, int frameSizeInMbs) {
+        // The other profiles signal level 1b with level_idc 9, and use constraint_set3_flag
+        // for the intra profiles
+        boolean isLevel1b = levelIdc == 11 && constraintSet3
+                && (profileIdc == 66 || profileIdc == 77 || profileIdc == 88);
+        int maxDpbMbs;
+        switch (levelIdc) {
+            case 9:
+            case 10: maxDpbMbs = 396; break;
+            case 11: maxDpbMbs = isLevel1b ? 396 : 900; break;
+            case 12:
+            case 13:
+            case 20: maxDpbMbs = 2376; break;
+            case 21: maxDpbMbs = 4752; break;
+            case 22:
+            case 30: maxDpbMbs = 8100; break;
+            case 31: maxDpbMbs = 18000; break;
+            case 32: maxDpbMbs = 20480; break;
+            case 40:
+            case 41: maxDpbMbs = 32768; break;
+            case 42: maxDpbMbs = 34816; break;
+            case 50: maxDpbMbs = 110400; break;
+            case 51:
+            case 52: maxDpbMbs = 184320; break;
+            default: maxDpbMbs = 696320; break;
+        }
+        if (frameSizeInMbs <= 0) {
+            return 16;
+        }
+        return Math.min(maxDpbMbs / frameSizeInMbs, 16);
+    }
+}
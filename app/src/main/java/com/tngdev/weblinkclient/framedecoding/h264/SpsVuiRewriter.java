@@ -0,0 +1,206 @@
+/****************************************************************************
+ *
+ * @file SpsVuiRewriter.java
+ * @brief
+ *
+ * Contains the SpsVuiRewriter class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+/**
+ * Rewrites the sequence parameter sets of an H264 stream so that they signal a decoder that
+ * does not need to hold back any frames for reordering.
+ * <p></p>
+ * When the SPS does not carry the VUI {@code bitstream_restriction}, a decoder has to assume
+ * the worst case reordering for the level (see {@link SpsParser}), and many hardware decoders
+ * keep that many frames before they produce any output. The rewriter adds (or patches) the
+ * {@code bitstream_restriction} with {@code max_num_reorder_frames = 0} and
+ * {@code max_dec_frame_buffering = max_num_ref_frames}, the smallest buffering the standard
+ * allows for the stream, which lets the decoder output every frame as soon as it is decoded.
+ * <p></p>
+ * This is only correct for streams whose output order equals their decoding order, i.e.
+ * streams without B-frames. The caller has to stop rewriting when it sees a B slice.
+ * <p></p>
+ * Only the SPS NAL units are touched, everything else is copied as is. Instances reuse their
+ * buffers and are not thread safe.
+ */
+public final class SpsVuiRewriter {
+
+    // Values inferred by the standard when bitstream_restriction is absent (E.2.1)
+    private static final int DEFAULT_MAX_BYTES_PER_PIC_DENOM = 2;
+    private static final int DEFAULT_MAX_BITS_PER_MB_DENOM = 1;
+    private static final int DEFAULT_LOG2_MAX_MV_LENGTH = 15;
+
+    private final NalUnitScanner m_scanner = new NalUnitScanner();
+    private final BitReader m_reader = new BitReader();
+    private final BitWriter m_writer = new BitWriter();
+    private final SpsInfo m_spsInfo = new SpsInfo();
+    private final SpsInfo m_rewrittenSpsInfo = new SpsInfo();
+    private byte[] m_rbsp = new byte[64];
+    private byte[] m_output = new byte[256];
+    private int m_outputSize;
+
+    /**
+     * Rewrites the SPS NAL units of the access unit, if needed.
+     *
+     * @param data Buffer holding the access unit in Annex-B format
+     * @param offset Offset of the access unit in the buffer
+     * @param size Size of the access unit in bytes
+     * @return true if at least one SPS was rewritten, the result is available through
+     *         {@link #getOutput()} and {@link #getOutputSize()}. false if the access unit can
+     *         be used as is.
+     */
+    public boolean rewrite(byte[] data, int offset, int size) {
+        m_outputSize = 0;
+        int copiedUpTo = offset;
+        boolean rewritten = false;
+
+        m_scanner.reset(data, offset, size);
+        while (m_scanner.next()) {
+            if (m_scanner.getNalType() != NalUnitType.SPS) {
+                continue;
+            }
+            int nalOffset = m_scanner.getNalOffset();
+            int nalSize = m_scanner.getNalSize();
+            if (!SpsParser.parse(m_scanner, m_reader, m_spsInfo) || !needsRewrite(m_spsInfo)) {
+                continue;
+            }
+            int outputStart = m_outputSize;
+            append(data, copiedUpTo, nalOffset - copiedUpTo);
+            if (appendRewrittenSps(data, nalOffset, nalSize)) {
+                copiedUpTo = nalOffset + nalSize;
+                rewritten = true;
+            } else {
+                m_outputSize = outputStart;
+            }
+        }
+
+        if (rewritten) {
+            append(data, copiedUpTo, offset + size - copiedUpTo);
+        }
+        return rewritten;
+    }
+
+    /**
+     * Returns the buffer holding the rewritten access unit. Valid until the next call to
+     * {@link #rewrite(byte[], int, int)}.
+     */
+    public byte[] getOutput() {
+        return m_output;
+    }
+
+    /**
+     * Returns the size of the rewritten access unit.
+     */
+    public int getOutputSize() {
+        return m_outputSize;
+    }
+
+    /**
+     * Returns true if the SPS lets the decoder buffer more frames than the stream needs.
+     */
+    static boolean needsRewrite(SpsInfo sps) {
+        return !sps.bitstreamRestriction
+                || sps.maxNumReorderFrames != 0
+                || sps.maxDecFrameBuffering > sps.maxNumRefFrames;
+    }
+
+    private boolean appendRewrittenSps(byte[] data, int nalOffset, int nalSize) {
+        unescape(data, nalOffset + 1, nalSize - 1);
+        SpsInfo sps = m_spsInfo;
+
+        m_writer.reset();
+        m_writer.writeBits(data[nalOffset], 8); // NAL unit header
+        if (!sps.vuiPresent) {
+            m_writer.copyBits(m_rbsp, 0, sps.vuiFlagBitOffset);
+            m_writer.writeBit(1); // vui_parameters_present_flag
+            // aspect_ratio_info, overscan_info, video_signal_type, chroma_loc_info, timing_info,
+            // nal_hrd_parameters, vcl_hrd_parameters and pic_struct present flags
+            m_writer.writeBits(0, 8);
+            writeBitstreamRestriction(sps);
+        } else if (!sps.bitstreamRestriction) {
+            m_writer.copyBits(m_rbsp, 0, sps.bitstreamRestrictionBitOffset);
+            writeBitstreamRestriction(sps);
+        } else {
+            m_writer.copyBits(m_rbsp, 0, sps.maxNumReorderFramesBitOffset);
+            m_writer.writeUE(0); // max_num_reorder_frames
+            m_writer.writeUE(sps.maxNumRefFrames); // max_dec_frame_buffering
+        }
+        m_writer.writeTrailingBits();
+
+        int escapedSize = BitWriter.getEscapedSize(m_writer.getData(), m_writer.getSize());
+        ensureOutputCapacity(m_outputSize + escapedSize);
+        int spsOffset = m_outputSize;
+        m_outputSize += BitWriter.escape(m_writer.getData(), m_writer.getSize(), m_output, m_outputSize);
+
+        // Make sure the new SPS describes the same stream, with the new buffering
+        return SpsParser.parse(m_output, spsOffset, escapedSize, m_reader, m_rewrittenSpsInfo)
+                && m_rewrittenSpsInfo.width == sps.width
+                && m_rewrittenSpsInfo.height == sps.height
+                && m_rewrittenSpsInfo.maxNumRefFrames == sps.maxNumRefFrames
+                && m_rewrittenSpsInfo.bitstreamRestriction
+                && m_rewrittenSpsInfo.maxNumReorderFrames == 0;
+    }
+
+    private void writeBitstreamRestriction(SpsInfo sps) {
+        m_writer.writeBit(1); // bitstream_restriction_flag
+        m_writer.writeBit(1); // motion_vectors_over_pic_boundaries_flag
+        m_writer.writeUE(DEFAULT_MAX_BYTES_PER_PIC_DENOM);
+        m_writer.writeUE(DEFAULT_MAX_BITS_PER_MB_DENOM);
+        m_writer.writeUE(DEFAULT_LOG2_MAX_MV_LENGTH); // horizontal
+        m_writer.writeUE(DEFAULT_LOG2_MAX_MV_LENGTH); // vertical
+        m_writer.writeUE(0); // max_num_reorder_frames
+        m_writer.writeUE(sps.maxNumRefFrames); // max_dec_frame_buffering
+    }
+
+    /**
+     * Copies the NAL unit payload into m_rbsp, without the emulation prevention bytes.
+     */
+    private void unescape(byte[] data, int offset, int size) {
+        if (m_rbsp.length < size) {
+            m_rbsp = new byte[size];
+        }
+        int rbspSize = 0;
+        int zeros = 0;
+        int end = offset + size;
+        for (int i = offset; i < end; ++i) {
+            int b = data[i] & 0xFF;
+            if (zeros >= 2 && b == 0x03) {
+                zeros = 0;
+                continue;
+            }
+            m_rbsp[rbspSize++] = (byte) b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+    }
+
+    private void append(byte[] data, int offset, int size) {
+        ensureOutputCapacity(m_outputSize + size);
+        System.arraycopy(data, offset, m_output, m_outputSize, size);
+        m_outputSize += size;
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (m_output.length < capacity) {
+            byte[] output = new byte[Math.max(capacity, m_output.length * 2)];
+            System.arraycopy(m_output, 0, output, 0, m_outputSize);
+            m_output = output;
+        }
+    }
+}
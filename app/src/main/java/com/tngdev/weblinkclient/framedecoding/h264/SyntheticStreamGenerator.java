@@ -0,0 +1,261 @@
+/****************************************************************************
+ *
+ * @file SyntheticStreamGenerator.java
+ * @brief
+ *
+ * Contains the SyntheticStreamGenerator class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a small, valid H264 Baseline stream for the decoder self-test, so that no encoded
+ * clip has to be shipped with the application.
+ * <p></p>
+ * The stream is CAVLC coded with one slice per picture. IDR pictures use Intra 16x16 DC
+ * prediction with a DC coefficient per macroblock (a blocky pattern), and P pictures move the
+ * whole picture by a varying motion vector with no residual. This makes the decoder do the
+ * real per-macroblock work (parsing, intra prediction, motion compensation, deblocking) at
+ * the given resolution, while the generator itself stays trivial.
+ * <p></p>
+ * The SPS signals {@code max_num_reorder_frames = 0}, so a decoder can output every picture
+ * as soon as it is decoded.
+ */
+public final class SyntheticStreamGenerator {
+
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    // log2_max_frame_num_minus4 = 0: frame_num is 4 bits long
+    private static final int FRAME_NUM_BITS = 4;
+
+    // Intra 16x16, DC prediction, no AC or chroma coefficients (Table 7-11)
+    private static final int MB_TYPE_I16x16_DC = 3;
+    // Intra chroma DC prediction
+    private static final int INTRA_CHROMA_PRED_DC = 0;
+    // P_L0_16x16 (Table 7-13)
+    private static final int MB_TYPE_P_L0_16x16 = 0;
+
+    private final int m_widthInMbs;
+    private final int m_heightInMbs;
+    private final BitWriter m_writer = new BitWriter();
+
+    /**
+     * @param width Picture width, a multiple of 16
+     * @param height Picture height, a multiple of 16
+     */
+    public SyntheticStreamGenerator(int width, int height) {
+        if (width <= 0 || height <= 0 || width % 16 != 0 || height % 16 != 0) {
+            throw new IllegalArgumentException("The size must be a positive multiple of 16: " + width + "x" + height);
+        }
+        m_widthInMbs = width / 16;
+        m_heightInMbs = height / 16;
+    }
+
+    /**
+     * Generates the access units of the stream in Annex-B format. Every IDR access unit is
+     * preceded by the SPS and PPS.
+     *
+     * @param frameCount Number of pictures
+     * @param gopLength Distance between IDR pictures
+     * @return The access units
+     */
+    public List<byte[]> generate(int frameCount, int gopLength) {
+        List<byte[]> accessUnits = new ArrayList<byte[]>(frameCount);
+        int idrPicId = 0;
+        int frameNum = 0;
+        for (int i = 0; i < frameCount; ++i) {
+            if (i % gopLength == 0) {
+                byte[] sps = writeSps();
+                byte[] pps = writePps();
+                byte[] idr = writeIdrSlice(idrPicId, i);
+                accessUnits.add(concat(sps, pps, idr));
+                idrPicId = (idrPicId + 1) & 0xFFFF;
+                frameNum = 1;
+            } else {
+                accessUnits.add(concat(writePSlice(frameNum, i)));
+                frameNum = (frameNum + 1) & ((1 << FRAME_NUM_BITS) - 1);
+            }
+        }
+        return accessUnits;
+    }
+
+    private byte[] writeSps() {
+        BitWriter w = startNalUnit(3, NalUnitType.SPS);
+        w.writeBits(66, 8);                 // profile_idc: Baseline
+        w.writeBits(0xC0, 8);               // constraint_set0_flag, constraint_set1_flag
+        w.writeBits(getLevelIdc(), 8);      // level_idc
+        w.writeUE(0);                       // seq_parameter_set_id
+        w.writeUE(FRAME_NUM_BITS - 4);      // log2_max_frame_num_minus4
+        w.writeUE(2);                       // pic_order_cnt_type: output order = decoding order
+        w.writeUE(1);                       // max_num_ref_frames
+        w.writeBit(0);                      // gaps_in_frame_num_value_allowed_flag
+        w.writeUE(m_widthInMbs - 1);        // pic_width_in_mbs_minus1
+        w.writeUE(m_heightInMbs - 1);       // pic_height_in_map_units_minus1
+        w.writeBit(1);                      // frame_mbs_only_flag
+        w.writeBit(1);                      // direct_8x8_inference_flag
+        w.writeBit(0);                      // frame_cropping_flag
+        w.writeBit(1);                      // vui_parameters_present_flag
+        w.writeBits(0, 8);                  // no aspect ratio, overscan, video signal, chroma
+                                            // location, timing, HRD and pic_struct info
+        w.writeBit(1);                      // bitstream_restriction_flag
+        w.writeBit(1);                      // motion_vectors_over_pic_boundaries_flag
+        w.writeUE(2);                       // max_bytes_per_pic_denom
+        w.writeUE(1);                       // max_bits_per_mb_denom
+        w.writeUE(15);                      // log2_max_mv_length_horizontal
+        w.writeUE(15);                      // log2_max_mv_length_vertical
+        w.writeUE(0);                       // max_num_reorder_frames
+        w.writeUE(1);                       // max_dec_frame_buffering
+        return finishNalUnit();
+    }
+
+    private byte[] writePps() {
+        BitWriter w = startNalUnit(3, NalUnitType.PPS);
+        w.writeUE(0);                       // pic_parameter_set_id
+        w.writeUE(0);                       // seq_parameter_set_id
+        w.writeBit(0);                      // entropy_coding_mode_flag: CAVLC
+        w.writeBit(0);                      // bottom_field_pic_order_in_frame_present_flag
+        w.writeUE(0);                       // num_slice_groups_minus1
+        w.writeUE(0);                       // num_ref_idx_l0_default_active_minus1
+        w.writeUE(0);                       // num_ref_idx_l1_default_active_minus1
+        w.writeBit(0);                      // weighted_pred_flag
+        w.writeBits(0, 2);                  // weighted_bipred_idc
+        w.writeSE(0);                       // pic_init_qp_minus26
+        w.writeSE(0);                       // pic_init_qs_minus26
+        w.writeSE(0);                       // chroma_qp_index_offset
+        w.writeBit(1);                      // deblocking_filter_control_present_flag
+        w.writeBit(0);                      // constrained_intra_pred_flag
+        w.writeBit(0);                      // redundant_pic_cnt_present_flag
+        return finishNalUnit();
+    }
+
+    private byte[] writeIdrSlice(int idrPicId, int pictureIndex) {
+        BitWriter w = startNalUnit(3, NalUnitType.IDR);
+        w.writeUE(0);                       // first_mb_in_slice
+        w.writeUE(7);                       // slice_type: I, all slices
+        w.writeUE(0);                       // pic_parameter_set_id
+        w.writeBits(0, FRAME_NUM_BITS);     // frame_num
+        w.writeUE(idrPicId);                // idr_pic_id
+        w.writeBit(0);                      // no_output_of_prior_pics_flag
+        w.writeBit(0);                      // long_term_reference_flag
+        w.writeSE(0);                       // slice_qp_delta
+        w.writeUE(0);                       // disable_deblocking_filter_idc
+        w.writeSE(0);                       // slice_alpha_c0_offset_div2
+        w.writeSE(0);                       // slice_beta_offset_div2
+
+        int mbCount = m_widthInMbs * m_heightInMbs;
+        for (int mb = 0; mb < mbCount; ++mb) {
+            w.writeUE(MB_TYPE_I16x16_DC);
+            w.writeUE(INTRA_CHROMA_PRED_DC);
+            w.writeSE(0);                   // mb_qp_delta
+            // Intra16x16DCLevel with a single +-1 DC coefficient (nC is always 0 here)
+            w.writeBits(0x1, 2);            // coeff_token: TotalCoeff 1, TrailingOnes 1
+            w.writeBit(pattern(mb, pictureIndex)); // trailing_ones_sign_flag
+            w.writeBit(1);                  // total_zeros: 0
+        }
+        return finishNalUnit();
+    }
+
+    private byte[] writePSlice(int frameNum, int pictureIndex) {
+        BitWriter w = startNalUnit(2, NalUnitType.SLICE);
+        w.writeUE(0);                       // first_mb_in_slice
+        w.writeUE(5);                       // slice_type: P, all slices
+        w.writeUE(0);                       // pic_parameter_set_id
+        w.writeBits(frameNum, FRAME_NUM_BITS);
+        w.writeBit(0);                      // num_ref_idx_active_override_flag
+        w.writeBit(0);                      // ref_pic_list_modification_flag_l0
+        w.writeBit(0);                      // adaptive_ref_pic_marking_mode_flag
+        w.writeSE(0);                       // slice_qp_delta
+        w.writeUE(0);                       // disable_deblocking_filter_idc
+        w.writeSE(0);                       // slice_alpha_c0_offset_div2
+        w.writeSE(0);                       // slice_beta_offset_div2
+
+        // The first macroblock carries the motion vector (in quarter samples), all the
+        // others predict the same vector from their neighbours.
+        int mvdX = ((pictureIndex % 8) - 4) * 3;
+        int mvdY = ((pictureIndex % 6) - 3) * 2;
+        int mbCount = m_widthInMbs * m_heightInMbs;
+        for (int mb = 0; mb < mbCount; ++mb) {
+            w.writeUE(0);                   // mb_skip_run
+            w.writeUE(MB_TYPE_P_L0_16x16);
+            w.writeSE(mb == 0 ? mvdX : 0);  // mvd_l0[0][0][0]
+            w.writeSE(mb == 0 ? mvdY : 0);  // mvd_l0[0][0][1]
+            w.writeUE(0);                   // coded_block_pattern: 0 (inter mapping)
+        }
+        return finishNalUnit();
+    }
+
+    /**
+     * Sign of the DC coefficient of the macroblock: a pattern of blocks that changes with
+     * every IDR picture.
+     */
+    private int pattern(int mb, int pictureIndex) {
+        int x = mb % m_widthInMbs;
+        int y = mb / m_widthInMbs;
+        return ((x * 7 + y * 13 + pictureIndex) >> 2) & 1;
+    }
+
+    /**
+     * Returns the lowest level that allows the picture size at 30 frames per second.
+     */
+    private int getLevelIdc() {
+        int frameSizeInMbs = m_widthInMbs * m_heightInMbs;
+        if (frameSizeInMbs <= 1620) {
+            return 30;
+        } else if (frameSizeInMbs <= 3600) {
+            return 31;
+        } else if (frameSizeInMbs <= 8192) {
+            return 40;
+        }
+        return 51;
+    }
+
+    private BitWriter startNalUnit(int nalRefIdc, int nalUnitType) {
+        m_writer.reset();
+        m_writer.writeBit(0);               // forbidden_zero_bit
+        m_writer.writeBits(nalRefIdc, 2);
+        m_writer.writeBits(nalUnitType, 5);
+        return m_writer;
+    }
+
+    private byte[] finishNalUnit() {
+        m_writer.writeTrailingBits();
+        byte[] rbsp = m_writer.getData();
+        int size = m_writer.getSize();
+        byte[] nalUnit = new byte[START_CODE.length + BitWriter.getEscapedSize(rbsp, size)];
+        System.arraycopy(START_CODE, 0, nalUnit, 0, START_CODE.length);
+        BitWriter.escape(rbsp, size, nalUnit, START_CODE.length);
+        return nalUnit;
+    }
+
+    private static byte[] concat(byte[]... nalUnits) {
+        int size = 0;
+        for (byte[] nalUnit : nalUnits) {
+            size += nalUnit.length;
+        }
+        byte[] accessUnit = new byte[size];
+        int pos = 0;
+        for (byte[] nalUnit : nalUnits) {
+            System.arraycopy(nalUnit, 0, accessUnit, pos, nalUnit.length);
+            pos += nalUnit.length;
+        }
+        return accessUnit;
+    }
+}
@@ -14,7 +14,11 @@ import com.tngdev.weblinkclient.App
 import com.tngdev.weblinkclient.IConnectionStatusNotification
 import com.tngdev.weblinkclient.IServerUpdateNotification
 import com.tngdev.weblinkclient.IWebLinkActivity
+import com.tngdev.weblinkclient.MainActivity
 import com.tngdev.weblinkclient.databinding.FragmentAutoConnectBinding
+import com.tngdev.weblinkclient.framedecoding.FrameDecoder_H264_Custom
+import com.tngdev.weblinkclient.util.ThreadScheduler.ScheduledThread
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass
 import java.util.Queue
 import java.util.concurrent.ArrayBlockingQueue
 
@@ -71,12 +75,15 @@ class AutoConnectFragment : Fragment(), IConnectionStatusNotification, IServerUp
         wlClient.registerConnectionListener(this)
         wlClient.registerServerUpdateListener(this)
 
+        // Have the codec configured by the time a host connects
+        FrameDecoder_H264_Custom.prewarmDecoder(MainActivity.ENCODE_WIDTH, MainActivity.ENCODE_HEIGHT)
+
         if (deviceScanThread != null && deviceScanThread?.isAlive == true) {
             deviceScanThread?.interrupt() // stop old thread
         }
 
-        deviceScanThread = object : Thread() {
-            override fun run() {
+        deviceScanThread = object : ScheduledThread(ThreadClass.DISCOVERY, "DeviceScanThread") {
+            override fun runScheduled() {
                 try {
                     while (!isInterrupted) {
                         MCSLogger.log(MCSLogger.eDebug, TAG, "Reset server list")
@@ -200,11 +207,11 @@ class AutoConnectFragment : Fragment(), IConnectionStatusNotification, IServerUp
     }
     // endregion IServerUpdateNotification
 
-    inner class ConnectionThread : Thread() {
+    inner class ConnectionThread : ScheduledThread(ThreadClass.CONNECTION, "ConnectionThread") {
         var deviceConnectionRequested: PeerDevice? = null
         var deviceConnected: PeerDevice? = null
 
-        override fun run() {
+        override fun runScheduled() {
             MCSLogger.log(TAG, "ConnectionThread started!")
 
             autoConnect(ConnectionMethodAOA.ID)
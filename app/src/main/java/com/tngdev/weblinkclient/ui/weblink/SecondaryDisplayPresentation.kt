@@ -0,0 +1,179 @@
+package com.tngdev.weblinkclient.ui.weblink
+
+import android.app.Presentation
+import android.content.Context
+import android.graphics.SurfaceTexture
+import android.os.Bundle
+import android.os.Handler
+import android.util.Log
+import android.view.Display
+import android.view.Surface
+import android.view.TextureView
+import android.view.TextureView.SurfaceTextureListener
+import android.view.ViewGroup
+import com.abaltatech.weblinkclient.framedecoding.IFrameDecoderNotification
+import com.abaltatech.weblinkclient.framedecoding.VideoSurface
+import com.tngdev.weblinkclient.App
+import com.tngdev.weblinkclient.MainActivity
+import com.tngdev.weblinkclient.framedecoding.FrameDecoder_H264_Custom
+import com.tngdev.weblinkclient.util.ThreadScheduler
+import com.tngdev.weblinkclient.util.ThreadScheduler.ThreadClass
+
+
+/**
+ * Shows the WebLink projection on a secondary display, e.g. the instrument cluster or a rear
+ * seat screen.
+ * <p>
+ * The WebLink Client SDK renders to a single client display, so the presentation does not get a
+ * stream of its own. It runs an independent {@link FrameDecoder_H264_Custom} instance, with its
+ * own codec, threads and statistics, and registers it as the mirror decoder: every frame the
+ * SDK hands to the main decoder is decoded a second time for this display. A stalled or failed
+ * mirror only affects this display.
+ */
+class SecondaryDisplayPresentation(outerContext: Context, display: Display) :
+    Presentation(outerContext, display) {
+
+    private var videoView: TextureView? = null
+    @Volatile
+    private var videoSurface: VideoSurface? = null
+
+    /**
+     * The decoder of this display, null while the video view has no surface.
+     */
+    @Volatile
+    var decoder: FrameDecoder_H264_Custom? = null
+        private set
+
+    // Starting and stopping a codec can take a while, keep it off the main thread
+    private val decoderThread = ThreadScheduler.newHandlerThread(ThreadClass.WORKER, "MirrorDecoderThread").apply { start() }
+    private val decoderHandler = Handler(decoderThread.looper)
+
+    private val decoderNotification = object : IFrameDecoderNotification {
+        override fun onDecodingStarted() {
+            Log.d(TAG, "mirror decoding started on display ${display.displayId}")
+        }
+
+        override fun onDecodingStartFailed() {
+            Log.w(TAG, "mirror decoding failed to start on display ${display.displayId}")
+        }
+
+        override fun onDecodingStopped() {
+        }
+
+        override fun onDecodingStopFailed() {
+            Log.w(TAG, "mirror decoding failed to stop on display ${display.displayId}")
+        }
+
+        override fun onDecodingError() {
+            // Restart the mirror, the main decoder is not affected
+            Log.w(TAG, "mirror decoding error on display ${display.displayId}, restarting")
+            val surface = videoSurface ?: return
+            decoderHandler.post {
+                stopDecoder()
+                // The surface may have been destroyed in the meantime
+                if (videoSurface === surface) {
+                    startDecoder(surface)
+                }
+            }
+        }
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+
+        val textureView = TextureView(context)
+        textureView.layoutParams = ViewGroup.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.MATCH_PARENT
+        )
+        textureView.surfaceTextureListener = object : SurfaceTextureListener {
+            override fun onSurfaceTextureAvailable(
+                surfaceTexture: SurfaceTexture,
+                width: Int,
+                height: Int
+            ) {
+                val surface = VideoSurface(Surface(surfaceTexture))
+                videoSurface = surface
+                decoderHandler.post { startDecoder(surface) }
+            }
+
+            override fun onSurfaceTextureSizeChanged(
+                surfaceTexture: SurfaceTexture,
+                width: Int,
+                height: Int
+            ) {
+            }
+
+            override fun onSurfaceTextureDestroyed(surfaceTexture: SurfaceTexture): Boolean {
+                Log.d(TAG, "onSurfaceTextureDestroyed!")
+                val surface = videoSurface
+                videoSurface = null
+                // The codec renders into the texture until it is stopped, release the texture
+                // only after that
+                val released = decoderHandler.post {
+                    stopDecoder()
+                    surface?.release()
+                    surfaceTexture.release()
+                }
+                if (!released) {
+                    // The decoder thread has quit, onStop() stopped the decoder
+                    surface?.release()
+                    return true
+                }
+                return false
+            }
+
+            override fun onSurfaceTextureUpdated(surfaceTexture: SurfaceTexture) {
+            }
+        }
+        videoView = textureView
+        setContentView(textureView)
+    }
+
+    override fun onStop() {
+        decoderHandler.post { stopDecoder() }
+        decoderThread.quitSafely()
+        super.onStop()
+    }
+
+    /**
+     * Starts a decoder on the surface and makes it the mirror decoder. Runs on the decoder
+     * thread.
+     */
+    private fun startDecoder(surface: VideoSurface) {
+        if (decoder != null || !surface.surface.isValid) {
+            return
+        }
+        // Start at the size of the session, the mirror follows the later changes in-band
+        var width = MainActivity.ENCODE_WIDTH
+        var height = MainActivity.ENCODE_HEIGHT
+        val mainDecoder = App.instance.getWebLinkClientCore().frameDecoder
+        if (mainDecoder is FrameDecoder_H264_Custom && mainDecoder.videoWidth > 0 && mainDecoder.videoHeight > 0) {
+            width = mainDecoder.videoWidth
+            height = mainDecoder.videoHeight
+        }
+        val mirror = FrameDecoder_H264_Custom.createMirrorDecoder()
+        if (!mirror.startDecoding(decoderNotification, width, height, surface)) {
+            Log.w(TAG, "could not start the mirror decoder")
+            return
+        }
+        decoder = mirror
+        FrameDecoder_H264_Custom.setMirrorDecoder(mirror)
+    }
+
+    /**
+     * Detaches the mirror decoder from the stream and stops it. Runs on the decoder thread.
+     */
+    private fun stopDecoder() {
+        val mirror = decoder ?: return
+        decoder = null
+        if (FrameDecoder_H264_Custom.getMirrorDecoder() === mirror) {
+            FrameDecoder_H264_Custom.setMirrorDecoder(null)
+        }
+        mirror.stopDecoding()
+    }
+
+    companion object {
+        val TAG = SecondaryDisplayPresentation::class.simpleName
+    }
+}
@@ -1,7 +1,9 @@
 package com.tngdev.weblinkclient.ui.weblink
 
+import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.Point
+import android.hardware.display.DisplayManager
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
@@ -34,7 +36,9 @@ import com.tngdev.weblinkclient.IWebLinkActivity
 import com.tngdev.weblinkclient.R
 import com.tngdev.weblinkclient.databinding.WeblinkFragmentCommonBinding
 import com.tngdev.weblinkclient.framedecoding.FrameDecoder_H264_Custom
+import com.tngdev.weblinkclient.framedecoding.FrameDecoder_I420_GL
 import com.tngdev.weblinkclient.util.KeyMap
+import com.tngdev.weblinkclient.util.ThreadScheduler
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import java.lang.StringBuilder
@@ -54,10 +58,19 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
 
     private val activeAudioChannels: MutableSet<Int> = mutableSetOf()
     private val handler: Handler = Handler(Looper.getMainLooper())
+    // The thread statistics are read from /proc, keep the file I/O off the main thread
+    private var threadStatsThread: ThreadScheduler.ScheduledHandlerThread? = null
+    @Volatile
+    private var threadStatsHandler: Handler? = null
+    @Volatile
+    private var threadStatsLines: List<String> = emptyList()
     private var startProxy: Boolean = false
     private var showStats: Boolean = false
     private var showCmdBar: Boolean = false
     private var cmdBarVisible: Boolean = false
+    @Volatile
+    private var isFragmentStarted: Boolean = false
+    private var secondaryDisplay: SecondaryDisplayPresentation? = null
     protected val wlClient = App.instance.getWebLinkClientCore()
 
     protected var mScaleX: Float = 1.0f
@@ -131,12 +144,29 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
             // listen for connection state changes
 //            wlClient.registerConnectionListener(this)
 
+            // Admit frames before attaching, see canProcessFrame()
+            isFragmentStarted = true
+
             // attach to receive client notification
             App.instance.wlClient.clientListener = this
             App.instance.wlClient.pingHandler = this
 
+            // Hide the loading screen as soon as the video is on screen
+            FrameDecoder_H264_Custom.setVideoReadyListener(videoReadyListener)
+
             onFragmentStarted()
 
+            // Mirror the projection to a secondary display, if one is attached
+            val displayManager = requireContext().getSystemService(Context.DISPLAY_SERVICE) as DisplayManager
+            displayManager.registerDisplayListener(displayListener, handler)
+            updateSecondaryDisplay()
+
+            // The decoder kept running while the fragment was stopped
+            val decoder = wlClient.frameDecoder
+            if (decoder is FrameDecoder_H264_Custom && decoder.isVideoOutGenerated && !decoder.isOutputSuspended) {
+                setLoadingScreenState(false)
+            }
+
             //Check if any scaling is needed to sync between the render size and the client.
             val videoViewSize = getVideoViewDimensions()
             val renderSize = wlClient.renderSize
@@ -144,6 +174,10 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
             mScaleY = if (videoViewSize.y > 0) renderSize.y / videoViewSize.y.toFloat() else 1.0f
 
             if (showStats) {
+                val statsThread = ThreadScheduler.newHandlerThread(ThreadScheduler.ThreadClass.WORKER, "ThreadStatsThread")
+                statsThread.start()
+                threadStatsThread = statsThread
+                threadStatsHandler = Handler(statsThread.looper).apply { post(collectThreadStats) }
                 handler.postDelayed(updateStats, 0)
             }
 
@@ -181,9 +215,20 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
 
     override fun onStop() {
         handler.removeCallbacks(updateStats)
+        threadStatsHandler?.removeCallbacks(collectThreadStats)
+        threadStatsHandler = null
+        threadStatsThread?.quitSafely()
+        threadStatsThread = null
 
         // unregister from client notification
         App.instance.wlClient.clientListener = null
+        isFragmentStarted = false
+        FrameDecoder_H264_Custom.setVideoReadyListener(null)
+
+        val displayManager = requireContext().getSystemService(Context.DISPLAY_SERVICE) as DisplayManager
+        displayManager.unregisterDisplayListener(displayListener)
+        secondaryDisplay?.dismiss()
+        secondaryDisplay = null
 
         // force hide keyboard (not automatic on all platforms)
         if (activity is IWebLinkActivity) {
@@ -341,6 +386,18 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
 
                 var frameCount: Long = -1
                 var keyFrameCount: Long = -1
+                var decodeLatencyP50: Long = -1
+                var decodeLatencyP99: Long = -1
+                var lostLatencySampleCount: Long = -1
+                var droppedFrameCount: Long = -1
+                var skippedFrameCount: Long = -1
+                var timeToFirstFrame: Long = -1
+                var inputQueueDepth = -1
+                var maxInputQueueDepth = -1
+                var refusedFrameCount: Long = -1
+                var mirrorFrameCount: Long = -1
+                var mirrorSkippedFrameCount: Long = -1
+                var mirrorTimeToFirstFrame: Long = -1
 
                 val decoder = wlClient.frameDecoder
                 if (decoder != null) {
@@ -351,7 +408,26 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
                     if (decoder is FrameDecoder_H264_Custom) {
                         frameCount = decoder.frameInputCount
                         keyFrameCount = decoder.keyFrameInputCount
+                        decodeLatencyP50 = decoder.queueToOutputLatency.getPercentileUs(50.0)
+                        decodeLatencyP99 = decoder.queueToOutputLatency.getPercentileUs(99.0)
+                        lostLatencySampleCount = decoder.lostLatencySampleCount
+                        droppedFrameCount = decoder.droppedFrameCount
+                        skippedFrameCount = decoder.skippedFrameCount
+                        timeToFirstFrame = decoder.timeToFirstFrameMs
+                        inputQueueDepth = decoder.inputQueueDepth
+                        maxInputQueueDepth = decoder.maxInputQueueDepth
+                        refusedFrameCount = decoder.refusedFrameCount
                     }
+                    if (decoder is FrameDecoder_I420_GL) {
+                        frameCount = decoder.frameInputCount
+                        skippedFrameCount = decoder.skippedFrameCount
+                    }
+                }
+                val mirror = secondaryDisplay?.decoder
+                if (mirror != null) {
+                    mirrorFrameCount = mirror.frameInputCount
+                    mirrorSkippedFrameCount = mirror.skippedFrameCount
+                    mirrorTimeToFirstFrame = mirror.timeToFirstFrameMs
                 }
 
                 var count = 0
@@ -384,6 +460,70 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
                     sb.append(String.format("KeyFrame #: $keyFrameCount"))
                     count++
                 }
+                if (decodeLatencyP50 != -1L) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("Decode p50/p99: ${decodeLatencyP50 / 1000}/${decodeLatencyP99 / 1000}ms (lost: $lostLatencySampleCount)"))
+                    count++
+                }
+                if (droppedFrameCount != -1L) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("Dropped #: $droppedFrameCount"))
+                    count++
+                }
+                if (skippedFrameCount != -1L) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("Skipped #: $skippedFrameCount"))
+                    count++
+                }
+                if (refusedFrameCount != -1L) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("Refused #: $refusedFrameCount"))
+                    count++
+                }
+                if (timeToFirstFrame != -1L) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("First frame: ${timeToFirstFrame}ms"))
+                    count++
+                }
+                if (inputQueueDepth != -1) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("Input queue: $inputQueueDepth (max $maxInputQueueDepth)"))
+                    count++
+                }
+                if (mirrorFrameCount != -1L) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(String.format("Mirror #: $mirrorFrameCount, skipped $mirrorSkippedFrameCount, first frame ${mirrorTimeToFirstFrame}ms"))
+                    count++
+                }
+                for (threadStatsLine in threadStatsLines) {
+                    if (count > 0) {
+                        sb.append("\n")
+                        count--
+                    }
+                    sb.append(threadStatsLine)
+                    count++
+                }
                 if (activeAudioChannels.isNotEmpty()) {
                     sb.append("\n")
                     for (activeAudioChannel in activeAudioChannels) {
@@ -398,6 +538,70 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
     }
 
 
+    /**
+     * Formats the statistics of the client threads for the stats overlay. Runs on the thread
+     * statistics thread, once per second.
+     */
+    private val collectThreadStats = object : Runnable {
+        override fun run() {
+            val lines = ArrayList<String>()
+            for (threadStats in ThreadScheduler.getThreadStats()) {
+                lines.add("${threadStats.name}: cpu ${threadStats.cpuTimeMs}ms, wake-ups ${threadStats.wakeUps}")
+            }
+            threadStatsLines = lines
+            threadStatsHandler?.postDelayed(this, 1000)
+        }
+    }
+
+    private val videoReadyListener = FrameDecoder_H264_Custom.VideoReadyListener { decoder, timeToFirstFrameMs ->
+        // The mirror decoder of the secondary display reports here too
+        if (decoder === wlClient.frameDecoder) {
+            Log.d(TAG, "video ready after ${timeToFirstFrameMs}ms")
+            setLoadingScreenState(false)
+        }
+    }
+
+    /**
+     * Shows the projection on the first presentation display, or removes it when that display
+     * is gone.
+     */
+    private fun updateSecondaryDisplay() {
+        val displayManager = requireContext().getSystemService(Context.DISPLAY_SERVICE) as DisplayManager
+        val display = displayManager.getDisplays(DisplayManager.DISPLAY_CATEGORY_PRESENTATION).firstOrNull()
+
+        val current = secondaryDisplay
+        if (current != null && current.display.displayId == display?.displayId) {
+            return
+        }
+        current?.dismiss()
+        secondaryDisplay = null
+
+        if (display != null) {
+            Log.d(TAG, "mirroring to display ${display.displayId} (${display.name})")
+            val presentation = SecondaryDisplayPresentation(requireContext(), display)
+            try {
+                presentation.show()
+                secondaryDisplay = presentation
+            } catch (e: Exception) {
+                // The display was removed in the meantime
+                Log.w(TAG, "could not show the secondary display: $e")
+            }
+        }
+    }
+
+    private val displayListener = object : DisplayManager.DisplayListener {
+        override fun onDisplayAdded(displayId: Int) {
+            updateSecondaryDisplay()
+        }
+
+        override fun onDisplayRemoved(displayId: Int) {
+            updateSecondaryDisplay()
+        }
+
+        override fun onDisplayChanged(displayId: Int) {
+        }
+    }
+
     // region IClientNotification
     override fun onServerListUpdated(p0: Array<out IClientNotification.ServerInfo>?) {
         // already connected
@@ -473,10 +677,20 @@ abstract class WebLinkFragment : Fragment(), View.OnTouchListener, IClientNotifi
     /**
      * Called to check if the client is able to receive new frame
      * <p>
+     * Frames are refused while the fragment is stopped, while the video surface is not valid
+     * and while the decoder is backed up. The decoding resumes at the next key-frame.
+     * <p>
      * return boolean - true to receive the frame, false to ignore it
      */
     override fun canProcessFrame(): Boolean {
-        return true
+        if (!isFragmentStarted) {
+            return false
+        }
+        val decoder = wlClient.frameDecoder
+        if (decoder is FrameDecoder_H264_Custom) {
+            return decoder.canAcceptFrame()
+        }
+        return wlClient.surface?.surface?.isValid ?: false
     }
 
     /**
@@ -7,6 +7,7 @@ import android.view.TextureView
 import android.view.TextureView.SurfaceTextureListener
 import android.view.View
 import com.tngdev.weblinkclient.R
+import com.tngdev.weblinkclient.framedecoding.FrameDecoder_H264_Custom
 
 
 /**
@@ -50,6 +51,11 @@ class WebLinkFragment_TextureView: WebLinkFragment() {
                 //this represents when the texture is no longer valid
                 //to the system so we will have to recreate it next start() cycle.
                 if (wlClient.isConnected) {
+                    // Keep decoding offscreen, so the video is back as soon as the view returns
+                    val decoder = wlClient.frameDecoder
+                    if (decoder is FrameDecoder_H264_Custom && decoder.suspendOutput()) {
+                        return false
+                    }
                     val res = wlClient.pauseVideoEncoding()
                     if (!res) {
                         wlClient.disconnect()
@@ -82,6 +88,17 @@ class WebLinkFragment_TextureView: WebLinkFragment() {
         if (videoView?.surfaceTexture == null) {
             videoView?.setSurfaceTexture(wlClient.surface.surfaceTexture)
         }
+        val decoder = wlClient.frameDecoder
+        if (decoder is FrameDecoder_H264_Custom && decoder.isOutputSuspended) {
+            if (!decoder.resumeOutput(wlClient.surface.surface)) {
+                // Fall back to restarting the decoder
+                if (wlClient.pauseVideoEncoding()) {
+                    wlClient.resumeVideoEncoding()
+                } else {
+                    wlClient.disconnect()
+                }
+            }
+        }
     }
 
     override fun onFragmentStopped() {
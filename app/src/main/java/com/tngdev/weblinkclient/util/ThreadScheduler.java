@@ -0,0 +1,416 @@
+/****************************************************************************
+ *
+ * @file ThreadScheduler.java
+ * @brief
+ *
+ * Contains the ThreadScheduler class.
+ *
+ * @cond Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @endcond
+ *****************************************************************************/
+package com.tngdev.weblinkclient.util;
+
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.abaltatech.mcs.logger.MCSLogger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the worker threads of the client and keeps track of them.
+ * <p></p>
+ * Every thread belongs to a {@link ThreadClass}, which sets its Linux scheduling priority. The
+ * video threads run above the default priority and the device discovery runs below it, so that
+ * on a busy SoC the decoding keeps its CPU share and the video does not stutter.
+ * <p></p>
+ * While a thread runs, its CPU time and wake-up count can be read with
+ * {@link #getThreadStats()}. The numbers come from the kernel (/proc/self/task), they cost
+ * nothing on the thread itself.
+ */
+public final class ThreadScheduler {
+
+    private static final String TAG = ThreadScheduler.class.getSimpleName();
+
+    /**
+     * Classes of worker threads, from the most to the least urgent.
+     */
+    public enum ThreadClass {
+        // Audio playback, if the client plays audio on threads of its own
+        AUDIO(Process.THREAD_PRIORITY_URGENT_AUDIO),
+        // Decoder input and output, rendering and the codec callbacks
+        VIDEO(Process.THREAD_PRIORITY_DISPLAY),
+        // Connection set-up with a discovered host
+        CONNECTION(Process.THREAD_PRIORITY_DEFAULT),
+        // Work that is not on the frame path: codec self-test, screenshots, decoder start/stop
+        WORKER(Process.THREAD_PRIORITY_DEFAULT),
+        // Periodic scanning for hosts
+        DISCOVERY(Process.THREAD_PRIORITY_BACKGROUND);
+
+        private final int m_defaultPriority;
+
+        ThreadClass(int defaultPriority) {
+            m_defaultPriority = defaultPriority;
+        }
+    }
+
+    // Priority of each thread class, indexed by the ordinal
+    private static final int[] PRIORITIES = new int[ThreadClass.values().length];
+
+    static {
+        for (ThreadClass threadClass : ThreadClass.values()) {
+            PRIORITIES[threadClass.ordinal()] = threadClass.m_defaultPriority;
+        }
+    }
+
+    // Highest Linux priority (lowest nice value)
+    private static final int HIGHEST_PRIORITY = -20;
+
+    // Clock ticks per second of the utime and stime fields of /proc/<pid>/task/<tid>/stat.
+    // USER_HZ is 100 on Android.
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    /**
+     * A running thread.
+     */
+    private static class Entry {
+        final String name;
+        final ThreadClass threadClass;
+        final int tid;
+
+        Entry(String name, ThreadClass threadClass, int tid) {
+            this.name = name;
+            this.threadClass = threadClass;
+            this.tid = tid;
+        }
+    }
+
+    private static final List<Entry> RUNNING_THREADS = new ArrayList<Entry>();
+
+    /**
+     * CPU time and wake-ups of a thread.
+     */
+    public static class ThreadStats {
+        private final String m_name;
+        private final ThreadClass m_threadClass;
+        private final int m_tid;
+        private final long m_cpuTimeMs;
+        private final long m_wakeUps;
+
+        ThreadStats(String name, ThreadClass threadClass, int tid, long cpuTimeMs, long wakeUps) {
+            m_name = name;
+            m_threadClass = threadClass;
+            m_tid = tid;
+            m_cpuTimeMs = cpuTimeMs;
+            m_wakeUps = wakeUps;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public ThreadClass getThreadClass() {
+            return m_threadClass;
+        }
+
+        /**
+         * Returns the Linux thread ID.
+         */
+        public int getTid() {
+            return m_tid;
+        }
+
+        /**
+         * Returns the CPU time used by the thread since it started, -1 if unknown.
+         */
+        public long getCpuTimeMs() {
+            return m_cpuTimeMs;
+        }
+
+        /**
+         * Returns how many times the thread was woken up after blocking (its voluntary context
+         * switches), -1 if unknown.
+         */
+        public long getWakeUps() {
+            return m_wakeUps;
+        }
+    }
+
+    /**
+     * A thread that runs with the priority of its class and shows up in
+     * {@link #getThreadStats()}. Subclasses put their work in {@link #runScheduled()} instead
+     * of {@link #run()}.
+     */
+    public static class ScheduledThread extends Thread {
+
+        private final ThreadClass m_threadClass;
+
+        public ScheduledThread(ThreadClass threadClass, String name) {
+            super(name);
+            m_threadClass = threadClass;
+        }
+
+        public ScheduledThread(ThreadClass threadClass, String name, Runnable task) {
+            super(task, name);
+            m_threadClass = threadClass;
+        }
+
+        public ThreadClass getThreadClass() {
+            return m_threadClass;
+        }
+
+        @Override
+        public final void run() {
+            Entry entry = onThreadStarted(m_threadClass, getName());
+            try {
+                runScheduled();
+            } finally {
+                onThreadFinished(entry);
+            }
+        }
+
+        /**
+         * The work of the thread. Runs the task given to the constructor by default.
+         */
+        protected void runScheduled() {
+            super.run();
+        }
+    }
+
+    /**
+     * A {@link HandlerThread} that runs with the priority of its class and shows up in
+     * {@link #getThreadStats()}.
+     */
+    public static class ScheduledHandlerThread extends HandlerThread {
+
+        private final ThreadClass m_threadClass;
+
+        public ScheduledHandlerThread(ThreadClass threadClass, String name) {
+            super(name, getClassPriority(threadClass));
+            m_threadClass = threadClass;
+        }
+
+        public ThreadClass getThreadClass() {
+            return m_threadClass;
+        }
+
+        @Override
+        public void run() {
+            Entry entry = onThreadStarted(m_threadClass, getName());
+            try {
+                super.run();
+            } finally {
+                onThreadFinished(entry);
+            }
+        }
+    }
+
+    private ThreadScheduler() {
+    }
+
+    /**
+     * Creates a thread of the given class. The thread is not started.
+     *
+     * @param threadClass Class of the thread, sets its priority
+     * @param name Name of the thread
+     * @param task The work of the thread
+     * @return The thread
+     */
+    public static ScheduledThread newThread(ThreadClass threadClass, String name, Runnable task) {
+        return new ScheduledThread(threadClass, name, task);
+    }
+
+    /**
+     * Creates a handler thread of the given class. The thread is not started.
+     *
+     * @param threadClass Class of the thread, sets its priority
+     * @param name Name of the thread
+     * @return The thread
+     */
+    public static ScheduledHandlerThread newHandlerThread(ThreadClass threadClass, String name) {
+        return new ScheduledHandlerThread(threadClass, name);
+    }
+
+    /**
+     * Returns the Linux priority (nice value) the threads of the class run with.
+     */
+    public static int getClassPriority(ThreadClass threadClass) {
+        synchronized (PRIORITIES) {
+            return PRIORITIES[threadClass.ordinal()];
+        }
+    }
+
+    /**
+     * Sets the Linux priority (nice value) of a thread class, e.g. to tune the scheduling on a
+     * particular head unit. Applies to the threads started afterwards.
+     *
+     * @param threadClass The thread class
+     * @param priority A {@link Process} THREAD_PRIORITY_* value, from -20 (highest) to 19
+     */
+    public static void setClassPriority(ThreadClass threadClass, int priority) {
+        if (priority < HIGHEST_PRIORITY || priority > Process.THREAD_PRIORITY_LOWEST) {
+            throw new IllegalArgumentException("Invalid thread priority: " + priority);
+        }
+        synchronized (PRIORITIES) {
+            PRIORITIES[threadClass.ordinal()] = priority;
+        }
+    }
+
+    /**
+     * Returns the CPU time and wake-ups of the running threads.
+     * <p></p>
+     * Reads a few small files per thread. Call it off the main thread, at most every few hundred
+     * milliseconds.
+     *
+     * @return The statistics, in the order the threads started
+     */
+    public static List<ThreadStats> getThreadStats() {
+        List<Entry> entries;
+        synchronized (RUNNING_THREADS) {
+            entries = new ArrayList<Entry>(RUNNING_THREADS);
+        }
+        List<ThreadStats> stats = new ArrayList<ThreadStats>(entries.size());
+        for (Entry entry : entries) {
+            String taskPath = "/proc/self/task/" + entry.tid + "/";
+            long cpuTimeNs = parseSchedstatRunTimeNs(readFile(taskPath + "schedstat"));
+            long cpuTimeMs;
+            if (cpuTimeNs >= 0) {
+                cpuTimeMs = cpuTimeNs / 1000000;
+            } else {
+                // Kernels without schedstats only count clock ticks
+                long cpuTicks = parseStatCpuTicks(readFile(taskPath + "stat"));
+                cpuTimeMs = cpuTicks >= 0 ? cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND : -1;
+            }
+            long wakeUps = parseVoluntarySwitches(readFile(taskPath + "status"));
+            stats.add(new ThreadStats(entry.name, entry.threadClass, entry.tid, cpuTimeMs, wakeUps));
+        }
+        return stats;
+    }
+
+    /**
+     * Applies the priority of the class to the calling thread and registers it.
+     */
+    private static Entry onThreadStarted(ThreadClass threadClass, String name) {
+        int tid = Process.myTid();
+        int priority = getClassPriority(threadClass);
+        try {
+            Process.setThreadPriority(priority);
+        } catch (Exception e) {
+            // Raising the priority may not be allowed, the thread still runs
+            MCSLogger.log(MCSLogger.ELogType.eWarning, TAG, "Could not set priority " + priority + " for " + name + ": " + e);
+        }
+        Entry entry = new Entry(name, threadClass, tid);
+        synchronized (RUNNING_THREADS) {
+            RUNNING_THREADS.add(entry);
+        }
+        return entry;
+    }
+
+    private static void onThreadFinished(Entry entry) {
+        synchronized (RUNNING_THREADS) {
+            RUNNING_THREADS.remove(entry);
+        }
+    }
+
+    /**
+     * Returns the content of the file, or null if it cannot be read.
+     */
+    private static String readFile(String path) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(path));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time spent on the CPU from the content of /proc/.../schedstat
+     * ("run_time_ns wait_time_ns timeslices"), or -1.
+     */
+    static long parseSchedstatRunTimeNs(String schedstat) {
+        if (schedstat == null) {
+            return -1;
+        }
+        String[] fields = schedstat.trim().split("\\s+");
+        try {
+            return fields.length >= 3 ? Long.parseLong(fields[0]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns utime + stime, in clock ticks, from the content of /proc/.../stat, or -1.
+     */
+    static long parseStatCpuTicks(String stat) {
+        if (stat == null) {
+            return -1;
+        }
+        // The thread name may contain spaces and parentheses, the fields start after the last ')'
+        int nameEnd = stat.lastIndexOf(')');
+        if (nameEnd < 0) {
+            return -1;
+        }
+        String[] fields = stat.substring(nameEnd + 1).trim().split("\\s+");
+        // fields[0] is the state (field 3), utime and stime are fields 14 and 15
+        if (fields.length < 13) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the voluntary_ctxt_switches value from the content of /proc/.../status, or -1.
+     */
+    static long parseVoluntarySwitches(String status) {
+        if (status == null) {
+            return -1;
+        }
+        for (String line : status.split("\n")) {
+            if (line.startsWith("voluntary_ctxt_switches:")) {
+                try {
+                    return Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
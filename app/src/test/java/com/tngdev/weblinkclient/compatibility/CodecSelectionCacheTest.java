@@ -0,0 +1,28 @@
+package com.tngdev.weblinkclient.compatibility;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for {@link CodecSelectionCache}.
+ */
+public class CodecSelectionCacheTest {
+
+    @Test
+    public void splitsCodecFailureEntries() {
+        assertEquals(Arrays.asList("OMX.qcom.video.decoder.avc", "2", "1700000000000"),
+                Arrays.asList(CodecSelectionCache.splitCodecFailure("OMX.qcom.video.decoder.avc|2|1700000000000")));
+    }
+
+    @Test
+    public void rejectsMalformedCodecFailureEntries() {
+        assertNull(CodecSelectionCache.splitCodecFailure("OMX.qcom.video.decoder.avc"));
+        assertNull(CodecSelectionCache.splitCodecFailure("OMX.qcom.video.decoder.avc|2"));
+        assertNull(CodecSelectionCache.splitCodecFailure("|2|1700000000000"));
+        assertNull(CodecSelectionCache.splitCodecFailure("OMX.qcom.video.decoder.avc|x|1700000000000"));
+    }
+}
@@ -0,0 +1,153 @@
+package com.tngdev.weblinkclient.framedecoding;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link DecoderLifecycle}.
+ */
+public class DecoderLifecycleTest {
+
+    @Test
+    public void followsTheSessionTransitions() {
+        DecoderLifecycle lifecycle = new DecoderLifecycle();
+        assertEquals(DecoderLifecycle.State.IDLE, lifecycle.get());
+
+        assertTrue(lifecycle.beginConfigure());
+        assertFalse(lifecycle.beginConfigure());
+        assertFalse(lifecycle.isRunning());
+        assertTrue(lifecycle.onConfigured());
+        assertTrue(lifecycle.isRunning());
+        assertFalse(lifecycle.beginConfigure());
+
+        assertEquals(DecoderLifecycle.State.RUNNING, lifecycle.beginDrain());
+        assertEquals(DecoderLifecycle.State.DRAINING, lifecycle.beginDrain());
+        lifecycle.onReleased();
+        assertEquals(DecoderLifecycle.State.RELEASED, lifecycle.get());
+        assertEquals(DecoderLifecycle.State.RELEASED, lifecycle.beginDrain());
+
+        assertTrue(lifecycle.beginConfigure());
+    }
+
+    @Test
+    public void stopWhileConfiguringCancelsTheStart() {
+        DecoderLifecycle lifecycle = new DecoderLifecycle();
+        assertTrue(lifecycle.beginConfigure());
+        assertEquals(DecoderLifecycle.State.CONFIGURING, lifecycle.beginDrain());
+        assertFalse(lifecycle.awaitSettled(5));
+
+        // The starting thread releases what it created
+        assertFalse(lifecycle.onConfigured());
+        lifecycle.onReleased();
+        assertTrue(lifecycle.awaitSettled(0));
+        assertEquals(DecoderLifecycle.State.RELEASED, lifecycle.get());
+    }
+
+    @Test
+    public void failedStartReleasesTheSession() {
+        DecoderLifecycle lifecycle = new DecoderLifecycle();
+        assertTrue(lifecycle.beginConfigure());
+        lifecycle.onReleased();
+        assertEquals(DecoderLifecycle.State.RELEASED, lifecycle.get());
+        assertTrue(lifecycle.beginConfigure());
+    }
+
+    /**
+     * Rapid reconnects: several threads start and stop the same decoder at random, following the
+     * protocol of {@link FrameDecoder_H264_Custom}. A codec must never be created twice, nor
+     * released twice or by a thread that does not own it, and every stop must settle.
+     */
+    @Test
+    public void concurrentStartsAndStopsNeverOverlap() throws InterruptedException {
+        final DecoderLifecycle lifecycle = new DecoderLifecycle();
+        final AtomicInteger codecs = new AtomicInteger();
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        final int threadCount = 8;
+        final int iterations = 20000;
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; ++t) {
+            final long seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        startGate.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < iterations; ++i) {
+                        if (random.nextBoolean()) {
+                            // startDecoding
+                            if (lifecycle.beginConfigure()) {
+                                if (codecs.incrementAndGet() != 1) {
+                                    violations.incrementAndGet();
+                                }
+                                created.incrementAndGet();
+                                if (random.nextInt(4) == 0) {
+                                    Thread.yield();
+                                }
+                                if (random.nextInt(10) == 0) {
+                                    // Failed start
+                                    codecs.decrementAndGet();
+                                    released.incrementAndGet();
+                                    lifecycle.onReleased();
+                                } else if (!lifecycle.onConfigured()) {
+                                    // Cancelled by a stop
+                                    codecs.decrementAndGet();
+                                    released.incrementAndGet();
+                                    lifecycle.onReleased();
+                                }
+                            }
+                        } else {
+                            // stopDecoding
+                            DecoderLifecycle.State previousState = lifecycle.beginDrain();
+                            if (previousState == DecoderLifecycle.State.RUNNING) {
+                                if (random.nextInt(4) == 0) {
+                                    Thread.yield();
+                                }
+                                if (codecs.decrementAndGet() != 0) {
+                                    violations.incrementAndGet();
+                                }
+                                released.incrementAndGet();
+                                lifecycle.onReleased();
+                            } else if (previousState == DecoderLifecycle.State.CONFIGURING
+                                    || previousState == DecoderLifecycle.State.DRAINING) {
+                                if (!lifecycle.awaitSettled(5000)) {
+                                    violations.incrementAndGet();
+                                }
+                            }
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        startGate.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        // Final stop
+        if (lifecycle.beginDrain() == DecoderLifecycle.State.RUNNING) {
+            codecs.decrementAndGet();
+            released.incrementAndGet();
+            lifecycle.onReleased();
+        }
+        assertTrue(lifecycle.awaitSettled(0));
+        assertEquals(0, violations.get());
+        assertEquals(0, codecs.get());
+        assertEquals(created.get(), released.get());
+        assertTrue(created.get() > 0);
+    }
+}
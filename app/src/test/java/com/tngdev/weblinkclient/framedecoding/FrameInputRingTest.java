@@ -0,0 +1,132 @@
+package com.tngdev.weblinkclient.framedecoding;
+
+import com.abaltatech.weblink.core.DataBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link FrameInputRing}.
+ */
+public class FrameInputRingTest {
+
+    private static DataBuffer frame(int size, int value) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) value;
+        }
+        DataBuffer frameBits = new DataBuffer();
+        frameBits.addBytes(data, 0, size);
+        return frameBits;
+    }
+
+    @Test
+    public void keepsFramesInOrderUpToTheCapacity() {
+        FrameInputRing ring = new FrameInputRing(4);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.offer(frame(16, i), i, 0));
+        }
+        assertFalse(ring.offer(frame(16, 4), 4, 0));
+        assertEquals(4, ring.size());
+        assertEquals(4, ring.getMaxSize());
+
+        for (int i = 0; i < 4; ++i) {
+            FrameInputRing.Slot slot = ring.peek();
+            assertEquals(i, slot.presentationTimeUs);
+            assertEquals(16, slot.data.remaining());
+            assertEquals(i, slot.data.get(0));
+            ring.remove();
+        }
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void growsSlotsForLargeFrames() {
+        FrameInputRing ring = new FrameInputRing(2);
+        int size = 256 * 1024;
+        assertTrue(ring.offer(frame(size, 7), 0, 3));
+        FrameInputRing.Slot slot = ring.peek();
+        assertEquals(size, slot.data.remaining());
+        assertEquals(7, slot.data.get(size - 1));
+        assertEquals(3, slot.flags);
+    }
+
+    @Test
+    public void clearFreesAllSlots() {
+        FrameInputRing ring = new FrameInputRing(2);
+        ring.offer(frame(8, 0), 0, 0);
+        ring.offer(frame(8, 1), 1, 0);
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(frame(8, 2), 2, 0));
+        assertEquals(2, ring.peek().presentationTimeUs);
+        ring.resetMaxSize();
+        assertEquals(1, ring.getMaxSize());
+    }
+
+    @Test
+    public void blockingOfferGivesUpAfterTheDeadline() {
+        FrameInputRing ring = new FrameInputRing(1);
+        ring.offer(frame(8, 0), 0, 0);
+        long start = System.nanoTime();
+        assertFalse(ring.offer(frame(8, 1), 1, 0, 20));
+        assertTrue(System.nanoTime() - start >= 20 * 1000 * 1000L);
+    }
+
+    @Test
+    public void blockingOfferWaitsForTheConsumer() throws InterruptedException {
+        final FrameInputRing ring = new FrameInputRing(1);
+        ring.offer(frame(8, 0), 0, 0);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.remove();
+            }
+        });
+        consumer.start();
+        assertTrue(ring.offer(frame(8, 1), 1, 0, 5000));
+        consumer.join();
+        assertEquals(1, ring.peek().presentationTimeUs);
+    }
+
+    @Test
+    public void transfersFramesBetweenThreads() throws InterruptedException {
+        final FrameInputRing ring = new FrameInputRing(8);
+        final int frameCount = 20000;
+        final long[] received = new long[1];
+        final boolean[] inOrder = {true};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long expected = 0;
+                while (expected < frameCount && ring.awaitFrame(5000)) {
+                    FrameInputRing.Slot slot = ring.peek();
+                    if (slot.presentationTimeUs != expected || slot.data.get(0) != (byte) expected) {
+                        inOrder[0] = false;
+                    }
+                    ring.remove();
+                    ++expected;
+                }
+                received[0] = expected;
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < frameCount; ++i) {
+            assertTrue(ring.offer(frame(32, i), i, 0, 5000));
+        }
+        consumer.join();
+        assertEquals(frameCount, received[0]);
+        assertTrue(inOrder[0]);
+        assertTrue(ring.getMaxSize() <= 8);
+    }
+}
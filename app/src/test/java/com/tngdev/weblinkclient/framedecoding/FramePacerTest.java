@@ -0,0 +1,27 @@
+package com.tngdev.weblinkclient.framedecoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link FramePacer}.
+ */
+public class FramePacerTest {
+
+    private static final long VSYNC_NS = 16666667;
+
+    @Test
+    public void targetsTheVsyncOfTheCallbackForFramesReadyBeforeIt() {
+        long vsyncNs = 1000 * VSYNC_NS;
+        assertEquals(vsyncNs, FramePacer.getRenderTimeNs(vsyncNs, VSYNC_NS, vsyncNs - 5000000));
+        assertEquals(vsyncNs, FramePacer.getRenderTimeNs(vsyncNs, VSYNC_NS, vsyncNs));
+    }
+
+    @Test
+    public void targetsTheNextVsyncForFramesReadyAfterTheCallbackVsync() {
+        long vsyncNs = 1000 * VSYNC_NS;
+        assertEquals(vsyncNs + VSYNC_NS, FramePacer.getRenderTimeNs(vsyncNs, VSYNC_NS, vsyncNs + 1));
+        assertEquals(vsyncNs + VSYNC_NS, FramePacer.getRenderTimeNs(vsyncNs, VSYNC_NS, vsyncNs + VSYNC_NS));
+    }
+}
@@ -0,0 +1,44 @@
+package com.tngdev.weblinkclient.framedecoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link FrameTimestampTracker}.
+ */
+public class FrameTimestampTrackerTest {
+
+    @Test
+    public void tracksEveryFrameOfAFullRing() {
+        FrameTimestampTracker tracker = new FrameTimestampTracker();
+        long[] timesUs = new long[64];
+        for (int i = 0; i < timesUs.length; ++i) {
+            timesUs[i] = tracker.nextPresentationTimeUs();
+            tracker.onFrameQueued(timesUs[i]);
+        }
+        for (long timeUs : timesUs) {
+            tracker.onFrameOutput(timeUs);
+        }
+        assertEquals(64, tracker.getQueueToOutputLatency().getCount());
+        assertEquals(0, tracker.getEvictedFrameCount());
+    }
+
+    @Test
+    public void countsFramesPushedOutOfTheRing() {
+        FrameTimestampTracker tracker = new FrameTimestampTracker();
+        long[] timesUs = new long[70];
+        for (int i = 0; i < timesUs.length; ++i) {
+            timesUs[i] = tracker.nextPresentationTimeUs();
+            tracker.onFrameQueued(timesUs[i]);
+        }
+        for (long timeUs : timesUs) {
+            tracker.onFrameOutput(timeUs);
+        }
+        assertEquals(64, tracker.getQueueToOutputLatency().getCount());
+        assertEquals(6, tracker.getEvictedFrameCount());
+
+        tracker.reset();
+        assertEquals(0, tracker.getEvictedFrameCount());
+    }
+}
@@ -0,0 +1,123 @@
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark for the hot path helpers of the h264 package.
+ * <p></p>
+ * Run from the IDE through {@link #main(String[])} or with the JMH Gradle tooling. Use
+ * {@code -prof gc} to verify the scanner and parsers stay allocation free.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class H264ParserBenchmark {
+
+    private static final byte[] SPS_1080P = {
+            0x67, 0x64, 0x00, 0x28, (byte) 0xAC, (byte) 0xD9, 0x40, 0x78, 0x02, 0x27,
+            (byte) 0xE5, (byte) 0xC0, 0x44, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03,
+            0x00, (byte) 0xF0, 0x3C, 0x60, (byte) 0xC6, 0x58 };
+
+    private final NalUnitScanner m_scanner = new NalUnitScanner();
+    private final BitReader m_bitReader = new BitReader();
+    private final SpsInfo m_spsInfo = new SpsInfo();
+    private final H264FrameClassifier m_classifier = new H264FrameClassifier();
+
+    private byte[] m_keyFrame;
+    private ByteBuffer m_directKeyFrame;
+    private byte[] m_predictedFrame;
+
+    @Setup
+    public void setup() {
+        // SPS + PPS + 200KB IDR slice of random (start code free) payload
+        Random random = new Random(1);
+        byte[] slice = new byte[200 * 1024];
+        for (int i = 0; i < slice.length; ++i) {
+            slice[i] = (byte) (random.nextInt(255) + 1);
+        }
+        m_keyFrame = new byte[4 + SPS_1080P.length + 4 + 6 + 4 + slice.length];
+        ByteBuffer keyFrame = ByteBuffer.wrap(m_keyFrame);
+        keyFrame.put(new byte[] { 0, 0, 0, 1 }).put(SPS_1080P);
+        keyFrame.put(new byte[] { 0, 0, 0, 1, 0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0 });
+        slice[0] = 0x65;
+        slice[1] = (byte) 0x88;
+        keyFrame.put(new byte[] { 0, 0, 0, 1 }).put(slice);
+
+        m_directKeyFrame = ByteBuffer.allocateDirect(m_keyFrame.length);
+        m_directKeyFrame.put(m_keyFrame);
+        m_directKeyFrame.flip();
+
+        m_predictedFrame = new byte[20 * 1024];
+        System.arraycopy(slice, 0, m_predictedFrame, 0, m_predictedFrame.length);
+        m_predictedFrame[0] = 0;
+        m_predictedFrame[1] = 0;
+        m_predictedFrame[2] = 0;
+        m_predictedFrame[3] = 1;
+        m_predictedFrame[4] = 0x41;
+        m_predictedFrame[5] = (byte) 0x9A;
+    }
+
+    @Benchmark
+    public int scanKeyFrame() {
+        m_scanner.reset(m_keyFrame, 0, m_keyFrame.length);
+        int sizes = 0;
+        while (m_scanner.next()) {
+            sizes += m_scanner.getNalSize();
+        }
+        return sizes;
+    }
+
+    @Benchmark
+    public int scanDirectKeyFrame() {
+        m_scanner.reset(m_directKeyFrame);
+        int sizes = 0;
+        while (m_scanner.next()) {
+            sizes += m_scanner.getNalSize();
+        }
+        return sizes;
+    }
+
+    @Benchmark
+    public void parseSps(Blackhole blackhole) {
+        blackhole.consume(SpsParser.parse(SPS_1080P, 0, SPS_1080P.length, m_bitReader, m_spsInfo));
+        blackhole.consume(m_spsInfo.maxDecFrameBuffering);
+    }
+
+    @Benchmark
+    public int classifyKeyFrame() {
+        return m_classifier.classify(m_keyFrame, 0, m_keyFrame.length);
+    }
+
+    @Benchmark
+    public int classifyPredictedFrame() {
+        return m_classifier.classify(m_predictedFrame, 0, m_predictedFrame.length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(H264ParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,139 @@
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link NalUnitScanner}.
+ */
+public class NalUnitScannerTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    // SPS (4 byte start code), PPS (3 byte start code), IDR slice
+    private static final byte[] ACCESS_UNIT = bytes(
+            0x00, 0x00, 0x00, 0x01, 0x67, 0x42, 0x00, 0x1E,
+            0x00, 0x00, 0x01, 0x68, 0xCE, 0x38, 0x80,
+            0x00, 0x00, 0x00, 0x01, 0x65, 0x88, 0x84, 0x00, 0x00, 0x03, 0x01, 0x20);
+
+    @Test
+    public void findsAllNalUnits() {
+        NalUnitScanner scanner = new NalUnitScanner();
+        scanner.reset(ACCESS_UNIT, 0, ACCESS_UNIT.length);
+
+        assertTrue(scanner.next());
+        assertEquals(NalUnitType.SPS, scanner.getNalType());
+        assertEquals(3, scanner.getNalRefIdc());
+        assertEquals(4, scanner.getNalOffset());
+        assertEquals(4, scanner.getNalSize());
+
+        assertTrue(scanner.next());
+        assertEquals(NalUnitType.PPS, scanner.getNalType());
+        assertEquals(11, scanner.getNalOffset());
+        assertEquals(4, scanner.getNalSize());
+
+        assertTrue(scanner.next());
+        assertEquals(NalUnitType.IDR, scanner.getNalType());
+        assertEquals(19, scanner.getNalOffset());
+        assertEquals(8, scanner.getNalSize());
+
+        assertFalse(scanner.next());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void iteratesWithoutAskingForSizes() {
+        NalUnitScanner scanner = new NalUnitScanner();
+        scanner.reset(ACCESS_UNIT, 0, ACCESS_UNIT.length);
+        int count = 0;
+        while (scanner.next()) {
+            ++count;
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void honoursOffsetAndSize() {
+        byte[] data = new byte[ACCESS_UNIT.length + 10];
+        System.arraycopy(ACCESS_UNIT, 0, data, 5, ACCESS_UNIT.length);
+        NalUnitScanner scanner = new NalUnitScanner();
+        // Only the SPS and the PPS
+        scanner.reset(data, 5, 15);
+
+        assertTrue(scanner.next());
+        assertEquals(NalUnitType.SPS, scanner.getNalType());
+        assertEquals(9, scanner.getNalOffset());
+        assertTrue(scanner.next());
+        assertEquals(NalUnitType.PPS, scanner.getNalType());
+        assertEquals(4, scanner.getNalSize());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void scansDirectBuffers() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ACCESS_UNIT.length);
+        buffer.put(ACCESS_UNIT);
+        buffer.flip();
+        NalUnitScanner scanner = new NalUnitScanner();
+        scanner.reset(buffer);
+
+        int[] expectedTypes = { NalUnitType.SPS, NalUnitType.PPS, NalUnitType.IDR };
+        int[] expectedSizes = { 4, 4, 8 };
+        for (int i = 0; i < expectedTypes.length; ++i) {
+            assertTrue(scanner.next());
+            assertEquals(expectedTypes[i], scanner.getNalType());
+            assertEquals(expectedSizes[i], scanner.getNalSize());
+        }
+        assertFalse(scanner.next());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void handlesDataWithoutStartCode() {
+        byte[] data = bytes(0x12, 0x00, 0x00, 0x02, 0x00, 0x00);
+        NalUnitScanner scanner = new NalUnitScanner();
+        scanner.reset(data, 0, data.length);
+        assertFalse(scanner.next());
+
+        scanner.reset(data, 0, 0);
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void findStartCodeMatchesNaiveSearch() {
+        java.util.Random random = new java.util.Random(42);
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; ++i) {
+            // Plenty of zeros and ones to exercise the skipping logic
+            int r = random.nextInt(8);
+            data[i] = (byte) (r < 4 ? 0 : r < 6 ? 1 : random.nextInt(256));
+        }
+        int from = 0;
+        while (true) {
+            int expected = -1;
+            for (int i = from; i + 2 < data.length; ++i) {
+                if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                    expected = i;
+                    break;
+                }
+            }
+            int actual = NalUnitScanner.findStartCode(data, from, data.length);
+            assertEquals("from " + from, expected, actual);
+            if (actual < 0) {
+                break;
+            }
+            from = actual + 1;
+        }
+    }
+}
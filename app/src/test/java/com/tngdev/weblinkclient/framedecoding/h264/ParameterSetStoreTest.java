@@ -0,0 +1,72 @@
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ParameterSetStore}.
+ */
+public class ParameterSetStoreTest {
+
+    // PPS with pps_id 0 and sps_id 0, differing only in the bits after the parsed fields
+    private static final byte[] PPS_0 = {0, 0, 0, 1, 0x68, (byte) 0xC8};
+    private static final byte[] PPS_0_CHANGED = {0, 0, 0, 1, 0x68, (byte) 0xCC};
+    // PPS with pps_id 1 and sps_id 0
+    private static final byte[] PPS_1 = {0, 0, 0, 1, 0x68, 0x53};
+
+    @Test
+    public void storesRepeatedParameterSetsOnce() {
+        byte[] keyFrame = new SyntheticStreamGenerator(320, 240).generate(1, 1).get(0);
+        ParameterSetStore store = new ParameterSetStore();
+        assertFalse(store.isComplete());
+
+        assertTrue(store.update(keyFrame, 0, keyFrame.length));
+        assertTrue(store.isComplete());
+        assertEquals(320, store.getWidth());
+        assertEquals(240, store.getHeight());
+        int spsSize = store.getSpsBuffer().remaining();
+        int ppsSize = store.getPpsBuffer().remaining();
+
+        for (int i = 0; i < 10; ++i) {
+            assertFalse(store.update(keyFrame, 0, keyFrame.length));
+        }
+        assertEquals(spsSize, store.getSpsBuffer().remaining());
+        assertEquals(ppsSize, store.getPpsBuffer().remaining());
+    }
+
+    @Test
+    public void writesAnnexBBuffers() {
+        byte[] keyFrame = new SyntheticStreamGenerator(320, 240).generate(1, 1).get(0);
+        ParameterSetStore store = new ParameterSetStore();
+        store.update(keyFrame, 0, keyFrame.length);
+
+        ByteBuffer sps = store.getSpsBuffer();
+        assertEquals(1, sps.getInt(0));
+        assertEquals(NalUnitType.SPS, sps.get(4) & 0x1F);
+        ByteBuffer pps = store.getPpsBuffer();
+        assertEquals(1, pps.getInt(0));
+        assertEquals(NalUnitType.PPS, pps.get(4) & 0x1F);
+    }
+
+    @Test
+    public void replacesParameterSetsById() {
+        ParameterSetStore store = new ParameterSetStore();
+        assertTrue(store.update(PPS_0, 0, PPS_0.length));
+        assertFalse(store.update(PPS_0, 0, PPS_0.length));
+        assertTrue(store.update(PPS_0_CHANGED, 0, PPS_0_CHANGED.length));
+        assertEquals((byte) 0xCC, store.getPpsBuffer().get(5));
+        assertEquals(PPS_0.length, store.getPpsBuffer().remaining());
+
+        assertTrue(store.update(PPS_1, 0, PPS_1.length));
+        assertEquals(PPS_0.length + PPS_1.length, store.getPpsBuffer().remaining());
+        assertFalse(store.isComplete());
+
+        store.clear();
+        assertEquals(0, store.getPpsBuffer().remaining());
+    }
+}
@@ -0,0 +1,240 @@
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SpsParser}, {@link PpsParser} and {@link BitReader}.
+ */
+public class SpsParserTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    // High profile 1920x1080 SPS and its PPS, as produced by x264. The SPS carries
+    // bitstream_restriction and an emulation prevention byte.
+    private static final byte[] SPS_1080P = bytes(
+            0x67, 0x64, 0x00, 0x28, 0xAC, 0xD9, 0x40, 0x78, 0x02, 0x27, 0xE5, 0xC0, 0x44,
+            0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03, 0x00, 0xF0, 0x3C, 0x60, 0xC6, 0x58);
+    private static final byte[] PPS_1080P = bytes(0x68, 0xEB, 0xE3, 0xCB, 0x22, 0xC0);
+
+    @Test
+    public void parsesHighProfileSps() {
+        SpsInfo sps = new SpsInfo();
+        assertTrue(SpsParser.parse(SPS_1080P, 0, SPS_1080P.length, new BitReader(), sps));
+        assertEquals(100, sps.profileIdc);
+        assertEquals(40, sps.levelIdc);
+        assertEquals(0, sps.spsId);
+        assertEquals(1920, sps.width);
+        assertEquals(1080, sps.height);
+        assertEquals(4, sps.maxNumRefFrames);
+        assertTrue(sps.bitstreamRestriction);
+        assertEquals(2, sps.maxNumReorderFrames);
+        assertEquals(4, sps.maxDecFrameBuffering);
+    }
+
+    @Test
+    public void parsesPps() {
+        PpsInfo pps = new PpsInfo();
+        assertTrue(PpsParser.parse(PPS_1080P, 0, PPS_1080P.length, new BitReader(), pps));
+        assertEquals(0, pps.ppsId);
+        assertEquals(0, pps.spsId);
+        assertTrue(pps.entropyCodingModeFlag);
+    }
+
+    @Test
+    public void infersBufferingWithoutBitstreamRestriction() {
+        // Baseline, level 3.1, 800x480, no VUI
+        BitWriter writer = new BitWriter();
+        writer.writeBits(0x67, 8);
+        writer.writeBits(66, 8);     // profile_idc
+        writer.writeBits(0xC0, 8);   // constraint_set0/1
+        writer.writeBits(31, 8);     // level_idc
+        writer.writeUE(0);           // seq_parameter_set_id
+        writer.writeUE(0);           // log2_max_frame_num_minus4
+        writer.writeUE(2);           // pic_order_cnt_type
+        writer.writeUE(1);           // max_num_ref_frames
+        writer.writeBits(0, 1);      // gaps_in_frame_num_value_allowed_flag
+        writer.writeUE(49);          // pic_width_in_mbs_minus1
+        writer.writeUE(29);          // pic_height_in_map_units_minus1
+        writer.writeBits(1, 1);      // frame_mbs_only_flag
+        writer.writeBits(1, 1);      // direct_8x8_inference_flag
+        writer.writeBits(0, 1);      // frame_cropping_flag
+        writer.writeBits(0, 1);      // vui_parameters_present_flag
+        byte[] nal = writer.toNalUnit();
+
+        SpsInfo sps = new SpsInfo();
+        assertTrue(SpsParser.parse(nal, 0, nal.length, new BitReader(), sps));
+        assertEquals(66, sps.profileIdc);
+        assertEquals(800, sps.width);
+        assertEquals(480, sps.height);
+        assertFalse(sps.vuiPresent);
+        assertFalse(sps.bitstreamRestriction);
+        // MaxDpbMbs for level 3.1 is 18000, 18000 / (50 * 30) = 12
+        assertEquals(12, sps.maxNumReorderFrames);
+        assertEquals(12, sps.maxDecFrameBuffering);
+    }
+
+    @Test
+    public void appliesCroppingForFieldCoding() {
+        // Main profile, 1920x1080 interlaced (frame_mbs_only_flag = 0), cropped by 8 lines
+        BitWriter writer = new BitWriter();
+        writer.writeBits(0x67, 8);
+        writer.writeBits(77, 8);
+        writer.writeBits(0x40, 8);
+        writer.writeBits(40, 8);
+        writer.writeUE(1);           // seq_parameter_set_id
+        writer.writeUE(0);
+        writer.writeUE(0);           // pic_order_cnt_type
+        writer.writeUE(2);           // log2_max_pic_order_cnt_lsb_minus4
+        writer.writeUE(4);
+        writer.writeBits(0, 1);
+        writer.writeUE(119);         // 120 MBs wide
+        writer.writeUE(33);          // 34 map units = 68 MBs high
+        writer.writeBits(0, 1);      // frame_mbs_only_flag
+        writer.writeBits(1, 1);      // mb_adaptive_frame_field_flag
+        writer.writeBits(1, 1);
+        writer.writeBits(1, 1);      // frame_cropping_flag
+        writer.writeUE(0);
+        writer.writeUE(0);
+        writer.writeUE(0);
+        writer.writeUE(2);           // 2 * CropUnitY (4) = 8 lines
+        writer.writeBits(0, 1);
+        byte[] nal = writer.toNalUnit();
+
+        SpsInfo sps = new SpsInfo();
+        assertTrue(SpsParser.parse(nal, 0, nal.length, new BitReader(), sps));
+        assertEquals(1, sps.spsId);
+        assertEquals(1920, sps.width);
+        assertEquals(1080, sps.height);
+        assertFalse(sps.frameMbsOnly);
+    }
+
+    @Test
+    public void readsLevel1bOnlyForBaselineMainAndExtended() {
+        // QCIF, 99 macroblocks
+        assertEquals(4, SpsParser.getMaxDpbFrames(66, 11, true, 99));
+        assertEquals(4, SpsParser.getMaxDpbFrames(77, 11, true, 99));
+        assertEquals(9, SpsParser.getMaxDpbFrames(66, 11, false, 99));
+        // constraint_set3_flag means intra-only for High, the level stays 1.1
+        assertEquals(9, SpsParser.getMaxDpbFrames(100, 11, true, 99));
+        assertEquals(4, SpsParser.getMaxDpbFrames(100, 9, false, 99));
+    }
+
+    @Test
+    public void rejectsTruncatedSps() {
+        SpsInfo sps = new SpsInfo();
+        assertFalse(SpsParser.parse(SPS_1080P, 0, 8, new BitReader(), sps));
+        assertFalse(SpsParser.parse(PPS_1080P, 0, PPS_1080P.length, new BitReader(), sps));
+    }
+
+    @Test
+    public void bitReaderSkipsEmulationPrevention() {
+        BitReader reader = new BitReader();
+        byte[] data = bytes(0x00, 0x00, 0x03, 0x01, 0xFF);
+        reader.reset(data, 0, data.length);
+        assertEquals(0, reader.readBits(16));
+        assertEquals(0x01, reader.readBits(8));
+        assertEquals(0xFF, reader.readBits(8));
+        assertFalse(reader.isOverrun());
+        reader.readBit();
+        assertTrue(reader.isOverrun());
+    }
+
+    @Test
+    public void bitReaderDecodesExpGolomb() {
+        BitWriter writer = new BitWriter();
+        for (int i = 0; i < 300; ++i) {
+            writer.writeUE(i);
+        }
+        writer.writeUE(-1 >>> 1 >>> 16);
+        byte[] data = writer.toByteArray();
+        BitReader reader = new BitReader();
+        reader.reset(data, 0, data.length);
+        for (int i = 0; i < 300; ++i) {
+            assertEquals(i, reader.readUE());
+        }
+        assertEquals(-1 >>> 1 >>> 16, reader.readUE());
+
+        // se(v) mapping: 0, 1, -1, 2, -2
+        writer = new BitWriter();
+        for (int codeNum = 0; codeNum < 5; ++codeNum) {
+            writer.writeUE(codeNum);
+        }
+        data = writer.toByteArray();
+        reader.reset(data, 0, data.length);
+        assertEquals(0, reader.readSE());
+        assertEquals(1, reader.readSE());
+        assertEquals(-1, reader.readSE());
+        assertEquals(2, reader.readSE());
+        assertEquals(-2, reader.readSE());
+    }
+
+    /**
+     * Minimal bit writer used to build parameter sets for the tests.
+     */
+    static class BitWriter {
+        private final ByteArrayOutputStream m_out = new ByteArrayOutputStream();
+        private int m_current;
+        private int m_bitCount;
+
+        void writeBits(int value, int count) {
+            for (int i = count - 1; i >= 0; --i) {
+                m_current = (m_current << 1) | ((value >>> i) & 1);
+                if (++m_bitCount == 8) {
+                    m_out.write(m_current);
+                    m_current = 0;
+                    m_bitCount = 0;
+                }
+            }
+        }
+
+        void writeUE(int value) {
+            long codeNum = (value & 0xFFFFFFFFL) + 1;
+            int length = 64 - Long.numberOfLeadingZeros(codeNum);
+            writeBits(0, length - 1);
+            for (int i = length - 1; i >= 0; --i) {
+                writeBits((int) ((codeNum >>> i) & 1), 1);
+            }
+        }
+
+        /**
+         * Returns the written bits, padded with zeros to a whole byte.
+         */
+        byte[] toByteArray() {
+            if (m_bitCount > 0) {
+                writeBits(0, 8 - m_bitCount);
+            }
+            return m_out.toByteArray();
+        }
+
+        /**
+         * Adds the RBSP trailing bits and the emulation prevention bytes.
+         */
+        byte[] toNalUnit() {
+            writeBits(1, 1);
+            byte[] rbsp = toByteArray();
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            int zeros = 0;
+            for (byte b : rbsp) {
+                if (zeros >= 2 && (b & 0xFF) <= 3) {
+                    nal.write(0x03);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+}
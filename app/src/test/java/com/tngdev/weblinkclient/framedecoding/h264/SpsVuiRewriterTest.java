@@ -0,0 +1,182 @@
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SpsVuiRewriter}.
+ */
+public class SpsVuiRewriterTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        byte[] result = new byte[size];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, pos, part.length);
+            pos += part.length;
+        }
+        return result;
+    }
+
+    private static final byte[] START_CODE = bytes(0x00, 0x00, 0x00, 0x01);
+
+    // x264 SPS signalling max_num_reorder_frames = 2, with emulation prevention bytes
+    private static final byte[] SPS_1080P = bytes(
+            0x67, 0x64, 0x00, 0x28, 0xAC, 0xD9, 0x40, 0x78, 0x02, 0x27, 0xE5, 0xC0, 0x44,
+            0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03, 0x00, 0xF0, 0x3C, 0x60, 0xC6, 0x58);
+    private static final byte[] PPS_1080P = bytes(0x68, 0xEB, 0xE3, 0xCB, 0x22, 0xC0);
+    private static final byte[] IDR_SLICE = bytes(0x65, 0x88, 0x84, 0x00, 0x00, 0x03, 0x01, 0x20);
+
+    /**
+     * Builds a baseline 1280x720 SPS, optionally with a VUI carrying only timing info.
+     */
+    private static byte[] buildSps(boolean withVui) {
+        BitWriter writer = new BitWriter();
+        writer.writeBits(0x67, 8);
+        writer.writeBits(66, 8);    // profile_idc
+        writer.writeBits(0xC0, 8);  // constraint flags
+        writer.writeBits(31, 8);    // level_idc
+        writer.writeUE(0);          // seq_parameter_set_id
+        writer.writeUE(0);          // log2_max_frame_num_minus4
+        writer.writeUE(2);          // pic_order_cnt_type
+        writer.writeUE(1);          // max_num_ref_frames
+        writer.writeBit(0);         // gaps_in_frame_num_value_allowed_flag
+        writer.writeUE(79);         // pic_width_in_mbs_minus1
+        writer.writeUE(44);         // pic_height_in_map_units_minus1
+        writer.writeBit(1);         // frame_mbs_only_flag
+        writer.writeBit(1);         // direct_8x8_inference_flag
+        writer.writeBit(0);         // frame_cropping_flag
+        writer.writeBit(withVui ? 1 : 0);
+        if (withVui) {
+            writer.writeBits(0, 4); // aspect ratio, overscan, video signal, chroma location
+            writer.writeBit(1);     // timing_info_present_flag
+            writer.writeBits(1, 32);
+            writer.writeBits(120, 32);
+            writer.writeBit(0);
+            writer.writeBits(0, 3); // nal_hrd, vcl_hrd, pic_struct
+            writer.writeBit(0);     // bitstream_restriction_flag
+        }
+        writer.writeTrailingBits();
+        byte[] nal = new byte[BitWriter.getEscapedSize(writer.getData(), writer.getSize())];
+        BitWriter.escape(writer.getData(), writer.getSize(), nal, 0);
+        return nal;
+    }
+
+    /**
+     * Returns the rewritten SPS of an access unit starting with a start code and an SPS.
+     */
+    private static SpsInfo parseFirstSps(byte[] data, int size) {
+        NalUnitScanner scanner = new NalUnitScanner();
+        scanner.reset(data, 0, size);
+        assertTrue(scanner.next());
+        SpsInfo sps = new SpsInfo();
+        assertTrue(SpsParser.parse(scanner, new BitReader(), sps));
+        return sps;
+    }
+
+    private static void assertNoStartCodeEmulation(byte[] data, int offset, int size) {
+        for (int i = offset; i + 2 < offset + size; ++i) {
+            assertFalse("start code emulation at " + i,
+                    data[i] == 0 && data[i + 1] == 0 && (data[i + 2] & 0xFF) <= 2);
+        }
+    }
+
+    @Test
+    public void patchesSignalledReordering() {
+        byte[] accessUnit = concat(START_CODE, SPS_1080P, START_CODE, PPS_1080P, START_CODE, IDR_SLICE);
+        SpsVuiRewriter rewriter = new SpsVuiRewriter();
+        assertTrue(rewriter.rewrite(accessUnit, 0, accessUnit.length));
+
+        byte[] output = rewriter.getOutput();
+        int size = rewriter.getOutputSize();
+        SpsInfo sps = parseFirstSps(output, size);
+        assertEquals(1920, sps.width);
+        assertEquals(1080, sps.height);
+        assertEquals(100, sps.profileIdc);
+        assertTrue(sps.bitstreamRestriction);
+        assertEquals(0, sps.maxNumReorderFrames);
+        assertEquals(4, sps.maxDecFrameBuffering);
+
+        // Everything after the SPS is copied as is
+        byte[] tail = concat(START_CODE, PPS_1080P, START_CODE, IDR_SLICE);
+        assertArrayEquals(tail, Arrays.copyOfRange(output, size - tail.length, size));
+        assertNoStartCodeEmulation(output, 4, size - tail.length - 4);
+    }
+
+    @Test
+    public void addsVuiWhenMissing() {
+        byte[] accessUnit = concat(START_CODE, buildSps(false), START_CODE, PPS_1080P);
+        SpsInfo original = parseFirstSps(accessUnit, accessUnit.length);
+        assertEquals(5, original.maxNumReorderFrames);
+
+        SpsVuiRewriter rewriter = new SpsVuiRewriter();
+        assertTrue(rewriter.rewrite(accessUnit, 0, accessUnit.length));
+        SpsInfo sps = parseFirstSps(rewriter.getOutput(), rewriter.getOutputSize());
+        assertEquals(1280, sps.width);
+        assertEquals(720, sps.height);
+        assertTrue(sps.vuiPresent);
+        assertTrue(sps.bitstreamRestriction);
+        assertEquals(0, sps.maxNumReorderFrames);
+        assertEquals(1, sps.maxDecFrameBuffering);
+    }
+
+    @Test
+    public void addsBitstreamRestrictionToExistingVui() {
+        byte[] sps = buildSps(true);
+        byte[] accessUnit = concat(START_CODE, sps, START_CODE, PPS_1080P);
+        SpsInfo original = parseFirstSps(accessUnit, accessUnit.length);
+        assertTrue(original.vuiPresent);
+        assertFalse(original.bitstreamRestriction);
+
+        SpsVuiRewriter rewriter = new SpsVuiRewriter();
+        assertTrue(rewriter.rewrite(accessUnit, 0, accessUnit.length));
+        SpsInfo rewritten = parseFirstSps(rewriter.getOutput(), rewriter.getOutputSize());
+        assertTrue(rewritten.bitstreamRestriction);
+        assertEquals(0, rewritten.maxNumReorderFrames);
+        assertEquals(1, rewritten.maxDecFrameBuffering);
+        // The timing info contains long runs of zeros
+        assertNoStartCodeEmulation(rewriter.getOutput(), 4, rewriter.getOutputSize() - 4 - 4 - PPS_1080P.length);
+    }
+
+    @Test
+    public void leavesLowLatencyStreamsAlone() {
+        byte[] accessUnit = concat(START_CODE, SPS_1080P, START_CODE, PPS_1080P);
+        SpsVuiRewriter rewriter = new SpsVuiRewriter();
+        assertTrue(rewriter.rewrite(accessUnit, 0, accessUnit.length));
+        byte[] rewritten = Arrays.copyOf(rewriter.getOutput(), rewriter.getOutputSize());
+
+        // A second pass has nothing left to do
+        assertFalse(rewriter.rewrite(rewritten, 0, rewritten.length));
+
+        byte[] noSps = concat(START_CODE, PPS_1080P, START_CODE, IDR_SLICE);
+        assertFalse(rewriter.rewrite(noSps, 0, noSps.length));
+    }
+
+    @Test
+    public void honoursOffset() {
+        byte[] accessUnit = concat(bytes(0x11, 0x22), START_CODE, buildSps(false), bytes(0x33));
+        SpsVuiRewriter rewriter = new SpsVuiRewriter();
+        assertTrue(rewriter.rewrite(accessUnit, 2, accessUnit.length - 3));
+        SpsInfo sps = parseFirstSps(rewriter.getOutput(), rewriter.getOutputSize());
+        assertEquals(0, sps.maxNumReorderFrames);
+        assertEquals(0, rewriter.getOutput()[0]);
+    }
+}
@@ -0,0 +1,141 @@
+package com.tngdev.weblinkclient.framedecoding.h264;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SyntheticStreamGenerator}.
+ */
+public class SyntheticStreamGeneratorTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int MB_COUNT = (WIDTH / 16) * (HEIGHT / 16);
+
+    @Test
+    public void generatesParsableParameterSets() {
+        List<byte[]> accessUnits = new SyntheticStreamGenerator(WIDTH, HEIGHT).generate(5, 5);
+        byte[] keyFrame = accessUnits.get(0);
+
+        NalUnitScanner scanner = new NalUnitScanner();
+        scanner.reset(keyFrame, 0, keyFrame.length);
+        BitReader reader = new BitReader();
+
+        assertTrue(scanner.next());
+        SpsInfo sps = new SpsInfo();
+        assertTrue(SpsParser.parse(scanner, reader, sps));
+        assertEquals(66, sps.profileIdc);
+        assertEquals(WIDTH, sps.width);
+        assertEquals(HEIGHT, sps.height);
+        assertTrue(sps.bitstreamRestriction);
+        assertEquals(0, sps.maxNumReorderFrames);
+        assertFalse(SpsVuiRewriter.needsRewrite(sps));
+
+        assertTrue(scanner.next());
+        PpsInfo pps = new PpsInfo();
+        assertTrue(PpsParser.parse(scanner, reader, pps));
+        assertFalse(pps.entropyCodingModeFlag);
+
+        assertTrue(scanner.next());
+        assertEquals(NalUnitType.IDR, scanner.getNalType());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void classifiesPictures() {
+        List<byte[]> accessUnits = new SyntheticStreamGenerator(WIDTH, HEIGHT).generate(12, 6);
+        assertEquals(12, accessUnits.size());
+        H264FrameClassifier classifier = new H264FrameClassifier();
+        for (int i = 0; i < accessUnits.size(); ++i) {
+            byte[] accessUnit = accessUnits.get(i);
+            int frameClass = classifier.classify(accessUnit, 0, accessUnit.length);
+            boolean idr = i % 6 == 0;
+            assertEquals("picture " + i, idr, H264FrameClassifier.isKeyFrame(frameClass));
+            assertEquals("picture " + i, idr, H264FrameClassifier.isConfigFrame(frameClass));
+            assertFalse("picture " + i, H264FrameClassifier.isDisposable(frameClass));
+            assertEquals("picture " + i, idr ? 2 : 0, H264FrameClassifier.getSliceType(frameClass));
+        }
+    }
+
+    @Test
+    public void slicesEndWithTheLastMacroblock() {
+        List<byte[]> accessUnits = new SyntheticStreamGenerator(WIDTH, HEIGHT).generate(3, 3);
+        NalUnitScanner scanner = new NalUnitScanner();
+        BitReader reader = new BitReader();
+        for (byte[] accessUnit : accessUnits) {
+            scanner.reset(accessUnit, 0, accessUnit.length);
+            while (scanner.next()) {
+                int type = scanner.getNalType();
+                if (!NalUnitType.isSlice(type)) {
+                    continue;
+                }
+                reader.reset(scanner);
+                boolean idr = type == NalUnitType.IDR;
+                assertEquals(0, reader.readUE());           // first_mb_in_slice
+                assertEquals(idr ? 7 : 5, reader.readUE()); // slice_type
+                assertEquals(0, reader.readUE());           // pic_parameter_set_id
+                reader.skipBits(4);                         // frame_num
+                if (idr) {
+                    reader.skipUE();                        // idr_pic_id
+                    reader.skipBits(2);                     // dec_ref_pic_marking
+                } else {
+                    reader.skipBits(3);                     // override, list modification, marking
+                }
+                assertEquals(0, reader.readSE());           // slice_qp_delta
+                assertEquals(0, reader.readUE());           // disable_deblocking_filter_idc
+                assertEquals(0, reader.readSE());
+                assertEquals(0, reader.readSE());
+                for (int mb = 0; mb < MB_COUNT; ++mb) {
+                    if (idr) {
+                        assertEquals(3, reader.readUE());   // I_16x16_2_0_0
+                        assertEquals(0, reader.readUE());
+                        assertEquals(0, reader.readSE());
+                        assertEquals(1, reader.readBits(2)); // coeff_token
+                        reader.skipBits(1);
+                        assertEquals(1, reader.readBit());  // total_zeros
+                    } else {
+                        assertEquals(0, reader.readUE());   // mb_skip_run
+                        assertEquals(0, reader.readUE());   // P_L0_16x16
+                        reader.readSE();
+                        reader.readSE();
+                        assertEquals(0, reader.readUE());   // coded_block_pattern
+                    }
+                }
+                // rbsp_slice_trailing_bits
+                assertEquals(1, reader.readBit());
+                while (reader.getBitsRead() % 8 != 0) {
+                    assertEquals(0, reader.readBit());
+                }
+                assertEquals((scanner.getNalSize() - 1) * 8 - countEmulationPreventionBytes(accessUnit, scanner) * 8,
+                        reader.getBitsRead());
+                assertFalse(reader.isOverrun());
+            }
+        }
+    }
+
+    private static int countEmulationPreventionBytes(byte[] data, NalUnitScanner scanner) {
+        int count = 0;
+        int zeros = 0;
+        int end = scanner.getNalOffset() + scanner.getNalSize();
+        for (int i = scanner.getNalOffset() + 1; i < end; ++i) {
+            int b = data[i] & 0xFF;
+            if (zeros >= 2 && b == 3) {
+                ++count;
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return count;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnalignedSizes() {
+        new SyntheticStreamGenerator(100, 64);
+    }
+}
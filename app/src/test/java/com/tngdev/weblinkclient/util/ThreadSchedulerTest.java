@@ -0,0 +1,41 @@
+package com.tngdev.weblinkclient.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link ThreadScheduler}.
+ */
+public class ThreadSchedulerTest {
+
+    @Test
+    public void parsesTheRunTimeFromSchedstat() {
+        assertEquals(123456789L, ThreadScheduler.parseSchedstatRunTimeNs("123456789 4567 89\n"));
+        assertEquals(-1L, ThreadScheduler.parseSchedstatRunTimeNs(""));
+        assertEquals(-1L, ThreadScheduler.parseSchedstatRunTimeNs(null));
+    }
+
+    @Test
+    public void parsesTheCpuTicksFromStat() {
+        // The thread name contains a space and a parenthesis
+        String stat = "4321 (Frame) Thread) S 1 1 0 0 -1 1077952576 100 0 0 0 250 75 0 0 16 -4 40 0\n";
+        assertEquals(325L, ThreadScheduler.parseStatCpuTicks(stat));
+        assertEquals(-1L, ThreadScheduler.parseStatCpuTicks("4321 (Thread) S 1 1"));
+        assertEquals(-1L, ThreadScheduler.parseStatCpuTicks(null));
+    }
+
+    @Test
+    public void parsesTheWakeUpsFromStatus() {
+        String status = "Name:\tFrameDecodeThrea\nState:\tS (sleeping)\n"
+                + "voluntary_ctxt_switches:\t5821\nnonvoluntary_ctxt_switches:\t37\n";
+        assertEquals(5821L, ThreadScheduler.parseVoluntarySwitches(status));
+        assertEquals(-1L, ThreadScheduler.parseVoluntarySwitches("Name:\tThread\n"));
+        assertEquals(-1L, ThreadScheduler.parseVoluntarySwitches(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidPriority() {
+        ThreadScheduler.setClassPriority(ThreadScheduler.ThreadClass.DISCOVERY, 20);
+    }
+}